@@ -0,0 +1,98 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.lang.instrument.IllegalClassFormatException;
+
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.*;
+
+import com.sun.source.util.*;
+
+/**
+ * Rewrites the <code>__nullsafe(...)</code> calls of each class file right after javac has written it, using the same
+ * {@link Agent} which would otherwise rewrite the class when it is loaded.
+ * <p>
+ * The class files are thus exactly the ones the agent or the {@link Tool} would produce, and the application runs
+ * without the agent at all.
+ */
+class ClassFileRewriter implements TaskListener {
+
+	/**
+	 * Locates the class file written by javac for a class.
+	 */
+	interface ClassOutput {
+		/**
+		 * Return the class file of the given class for reading.
+		 */
+		FileObject classFile(String binaryName) throws IOException;
+
+		/**
+		 * Return the class file of the given class for writing, which has just been read via
+		 * {@link #classFile(String)}.
+		 */
+		FileObject rewrittenClassFile(String binaryName, FileObject classFile) throws IOException;
+	}
+
+	private final Agent agent = new Agent(new AgentOptions());
+	private final Elements elements;
+	private final Trees trees;
+	private final ClassOutput output;
+
+	ClassFileRewriter(JavacTask task, ClassOutput output) {
+		this.elements = task.getElements();
+		this.trees = Trees.instance(task);
+		this.output = output;
+	}
+
+	public void started(TaskEvent e) {
+	}
+
+	public void finished(TaskEvent e) {
+		if (e.getKind() != TaskEvent.Kind.GENERATE)
+			return;
+		TypeElement type = e.getTypeElement();
+		String binaryName = elements.getBinaryName(type).toString();
+		try {
+			rewrite(binaryName);
+		} catch (IOException ex) {
+			error(e, "Failed to rewrite class '" + binaryName + "': " + ex);
+		} catch (IllegalClassFormatException ex) {
+			error(e, "Failed to rewrite class '" + binaryName + "': " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Report an error for the source file of the class, whose tree javac no longer has once it generated the class.
+	 */
+	private void error(TaskEvent e, String message) {
+		trees.printMessage(Diagnostic.Kind.ERROR, message, e.getCompilationUnit(), e.getCompilationUnit());
+	}
+
+	private void rewrite(String binaryName) throws IOException, IllegalClassFormatException {
+		FileObject file = output.classFile(binaryName);
+		byte[] transformed = agent.transform((ClassLoader) null, binaryName.replace('.', '/'), null, null, read(file));
+		if (transformed == null)
+			return;
+		OutputStream out = output.rewrittenClassFile(binaryName, file).openOutputStream();
+		try {
+			out.write(transformed);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] read(FileObject file) throws IOException {
+		InputStream in = file.openInputStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
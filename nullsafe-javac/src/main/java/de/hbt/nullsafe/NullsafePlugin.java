@@ -0,0 +1,55 @@
+package de.hbt.nullsafe;
+
+import java.io.IOException;
+
+import javax.tools.*;
+
+import com.sun.source.util.*;
+
+/**
+ * The javac plugin <code>-Xplugin:Nullsafe</code>, which rewrites the <code>__nullsafe(...)</code> calls of the
+ * compiled classes, so that the application does not need the agent.
+ * <p>
+ * The plugin needs the file manager of javac, which is not part of its public API. On Java 9 and later, javac must
+ * therefore be run with
+ *
+ * <pre>
+ * -J--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED
+ * -J--add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED
+ * </pre>
+ *
+ * or the {@link NullsafeProcessor} be used instead, which does the same.
+ */
+public class NullsafePlugin implements Plugin {
+
+	public String getName() {
+		return "Nullsafe";
+	}
+
+	public void init(JavacTask task, String... args) {
+		final JavaFileManager fileManager = fileManager(task);
+		task.addTaskListener(new ClassFileRewriter(task, new ClassFileRewriter.ClassOutput() {
+			public FileObject classFile(String binaryName) throws IOException {
+				return fileManager.getJavaFileForOutput(StandardLocation.CLASS_OUTPUT, binaryName,
+						JavaFileObject.Kind.CLASS, null);
+			}
+
+			public FileObject rewrittenClassFile(String binaryName, FileObject classFile) {
+				return classFile;
+			}
+		}));
+	}
+
+	private static JavaFileManager fileManager(JavacTask task) {
+		try {
+			Object context = task.getClass().getMethod("getContext").invoke(task);
+			return (JavaFileManager) context.getClass().getMethod("get", Class.class).invoke(context,
+					JavaFileManager.class);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot access the file manager of javac: " + e
+					+ ". Run javac with -J--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED"
+					+ " -J--add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED or use the annotation processor "
+					+ NullsafeProcessor.class.getName() + " instead");
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package de.hbt.nullsafe;
+
+import java.io.IOException;
+import java.util.Set;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.*;
+
+import com.sun.source.util.JavacTask;
+
+/**
+ * An annotation processor which rewrites the <code>__nullsafe(...)</code> calls of the compiled classes, so that the
+ * application does not need the agent.
+ * <p>
+ * It does not process any annotations, but only registers the same listener as the {@link NullsafePlugin} with javac.
+ * Unlike the plugin, it only uses the public API of javac and is picked up automatically from the class path, but it
+ * is not run with <code>-proc:none</code>.
+ */
+@SupportedAnnotationTypes("*")
+public class NullsafeProcessor extends AbstractProcessor {
+
+	@Override
+	public synchronized void init(ProcessingEnvironment processingEnv) {
+		super.init(processingEnv);
+		final Filer filer = processingEnv.getFiler();
+		JavacTask task = JavacTask.instance(processingEnv);
+		task.addTaskListener(new ClassFileRewriter(task, new ClassFileRewriter.ClassOutput() {
+			public FileObject classFile(String binaryName) throws IOException {
+				return filer.getResource(StandardLocation.CLASS_OUTPUT, "", binaryName.replace('.', '/') + ".class");
+			}
+
+			public FileObject rewrittenClassFile(String binaryName, FileObject classFile) throws IOException {
+				/* The Filer only returns read-only resources, and only creates files it did not create before */
+				return filer.createResource(StandardLocation.CLASS_OUTPUT, "", binaryName.replace('.', '/') + ".class");
+			}
+		}));
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		return false;
+	}
+}
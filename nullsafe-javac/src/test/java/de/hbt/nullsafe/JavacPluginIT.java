@@ -0,0 +1,99 @@
+package de.hbt.nullsafe;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import javax.tools.*;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runner.notification.Failure;
+
+/**
+ * Compiles the {@link NullsafeIT} of the agent with the javac plugin and with the annotation processor, and runs it in
+ * this JVM, which runs without the agent.
+ */
+public class JavacPluginIT {
+
+	private File sourceFile;
+	private Path outputDir;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceFile = new File(System.getProperty("nullsafe.it.source"));
+		assertTrue(sourceFile + " does not exist", sourceFile.isFile());
+		outputDir = Files.createTempDirectory("nullsafe-javac");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.walkFileTree(outputDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testPlugin() throws Exception {
+		compile("-Xplugin:Nullsafe", "-proc:none");
+		run();
+	}
+
+	@Test
+	public void testProcessor() throws Exception {
+		compile("-processor", NullsafeProcessor.class.getName());
+		run();
+	}
+
+	@Test
+	public void testWithoutRewrite() throws Exception {
+		compile("-proc:none");
+		Result result = JUnitCore.runClasses(load());
+		assertFalse("NullsafeIT must fail without the plugin", result.wasSuccessful());
+	}
+
+	private void compile(String... options) throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+		try {
+			List<String> args = new ArrayList<String>(Arrays.asList(options));
+			/* Class files the agent can read */
+			args.addAll(Arrays.asList("-source", "1.8", "-target", "1.8", "-nowarn"));
+			args.addAll(Arrays.asList("-d", outputDir.toString(), "-cp", System.getProperty("java.class.path")));
+			DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+			boolean success = compiler.getTask(null, fileManager, diagnostics, args, null,
+					fileManager.getJavaFileObjects(sourceFile)).call().booleanValue();
+			assertTrue("Compilation failed: " + diagnostics.getDiagnostics(), success);
+		} finally {
+			fileManager.close();
+		}
+	}
+
+	private Class<?> load() throws MalformedURLException, ClassNotFoundException {
+		ClassLoader loader = new URLClassLoader(new URL[] { outputDir.toUri().toURL() }, getClass().getClassLoader());
+		return Class.forName("de.hbt.nullsafe.NullsafeIT", true, loader);
+	}
+
+	private void run() throws Exception {
+		Result result = JUnitCore.runClasses(load());
+		List<String> failures = new ArrayList<String>();
+		for (Failure failure : result.getFailures())
+			failures.add(failure.toString());
+		assertTrue(failures.toString(), result.wasSuccessful());
+		assertTrue(result.getRunCount() > 0);
+	}
+}
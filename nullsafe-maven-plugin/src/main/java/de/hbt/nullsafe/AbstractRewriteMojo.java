@@ -0,0 +1,73 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+
+import org.apache.maven.plugin.*;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Rewrites the <code>__nullsafe(...)</code> calls of a directory of compiled classes with a {@link ClassesRewriter},
+ * whose state file is kept in <code>target/nullsafe</code>.
+ */
+abstract class AbstractRewriteMojo extends AbstractMojo {
+
+	@Parameter(defaultValue = "${project.build.directory}", readonly = true, required = true)
+	private File buildDirectory;
+
+	/**
+	 * The number of threads which rewrite the changed class files, by default the number of available processors.
+	 */
+	@Parameter(property = "nullsafe.threads")
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The <code>budget</code> option of the agent.
+	 */
+	@Parameter(property = "nullsafe.budget")
+	private int budget = CodeSize.HUGE_METHOD_LIMIT;
+
+	/**
+	 * Whether to skip the rewrite.
+	 */
+	@Parameter(property = "nullsafe.skip", defaultValue = "false")
+	private boolean skip;
+
+	/**
+	 * Return the directory of the class files to rewrite.
+	 */
+	abstract File getClassesDirectory();
+
+	/**
+	 * Return the name of the state file of the class files.
+	 */
+	abstract String getStateFileName();
+
+	public void execute() throws MojoExecutionException {
+		if (skip) {
+			getLog().info("Skipping the rewrite of __nullsafe(...) calls");
+			return;
+		}
+		File classesDir = getClassesDirectory();
+		if (!classesDir.isDirectory()) {
+			getLog().info("No classes to rewrite in " + classesDir);
+			return;
+		}
+		if (threads < 1 || budget < 0)
+			throw new MojoExecutionException("Invalid threads " + threads + " or budget " + budget);
+		AgentOptions options = new AgentOptions();
+		options.budget = budget;
+		File stateFile = new File(new File(buildDirectory, "nullsafe"), getStateFileName());
+		ClassesRewriter.Summary summary;
+		try {
+			summary = new ClassesRewriter(options, threads).rewrite(classesDir, stateFile);
+		} catch (IOException e) {
+			throw new MojoExecutionException("Failed to rewrite the classes in " + classesDir + ": " + e.getMessage(), e);
+		}
+		if (summary.optionsChanged)
+			getLog().warn("The classes in " + classesDir + " were rewritten with other options or by another version of"
+					+ " nullsafe, which still apply to the classes which were not compiled again. Run a clean build to"
+					+ " rewrite all classes with budget " + budget + ".");
+		getLog().info("Rewrote " + summary.transformed + " classes of " + summary.changed + " changed and "
+				+ summary.classes + " total classes in " + classesDir);
+	}
+}
@@ -0,0 +1,267 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rewrites the <code>__nullsafe(...)</code> calls of the class files in a directory, such as
+ * <code>target/classes</code>, in place, but only of those class files which changed since the last run.
+ * <p>
+ * A state file records the modification time, size and SHA-1 hash of each class file as the last run left it. A class
+ * file whose modification time and size did not change is skipped without reading it. A class file whose content did
+ * not change either, because it was only touched or copied, is not transformed again. All other class files were
+ * compiled since the last run and are transformed concurrently by <code>threads</code> worker threads.
+ * <p>
+ * The state file also records the agent options. Since the class files rewritten by an earlier run no longer contain
+ * any <code>__nullsafe(...)</code> calls, other options only apply to the class files compiled since then. Such a run
+ * reads all class files, but reports {@link Summary#optionsChanged}, so that a clean build can be requested.
+ */
+class ClassesRewriter {
+
+	private static final String HEADER = "# nullsafe class files, format 1, budget=";
+
+	private final Agent agent;
+	private final String header;
+	private final int threads;
+
+	/**
+	 * The state of a class file as the last run left it.
+	 */
+	private static class State {
+		private final long lastModified;
+		private final long length;
+		private final String hash;
+
+		State(long lastModified, long length, String hash) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		boolean isUpToDate(File file) {
+			return file.lastModified() == lastModified && file.length() == length;
+		}
+	}
+
+	/**
+	 * The numbers of class files of a run.
+	 */
+	static class Summary {
+		/* All class files in the directory */
+		int classes;
+		/* Class files which were read, because they changed since the last run */
+		int changed;
+		/* Class files which were transformed, because they contain __nullsafe(...) calls */
+		int transformed;
+		/* Whether the state file was written with other options, which do not apply to already rewritten classes */
+		boolean optionsChanged;
+	}
+
+	ClassesRewriter(AgentOptions options, int threads) {
+		this.agent = new Agent(options);
+		this.header = HEADER + options.budget;
+		this.threads = threads;
+	}
+
+	/**
+	 * Rewrite the class files in the given directory which changed since the run that wrote the given state file, and
+	 * update the state file.
+	 */
+	Summary rewrite(final File classesDir, File stateFile) throws IOException {
+		Summary summary = new Summary();
+		Map<String, State> previous = readState(stateFile, summary);
+		List<String> paths = new ArrayList<String>();
+		listClassFiles(classesDir, "", paths);
+		Collections.sort(paths);
+		summary.classes = paths.size();
+		Map<String, State> current = new TreeMap<String, State>();
+		Map<String, Callable<State>> changed = new LinkedHashMap<String, Callable<State>>();
+		for (final String path : paths) {
+			final File file = new File(classesDir, path);
+			final State state = previous.get(path);
+			if (state != null && state.isUpToDate(file)) {
+				current.put(path, state);
+				continue;
+			}
+			changed.put(path, new Callable<State>() {
+				public State call() throws IOException {
+					return rewrite(file, path.substring(0, path.length() - 6), state);
+				}
+			});
+		}
+		summary.changed = changed.size();
+		long classesTransformed = agent.getStats().getClassesTransformed();
+		if (threads <= 1 || changed.size() <= 1)
+			rewriteSequentially(changed, current);
+		else
+			rewriteConcurrently(changed, current);
+		summary.transformed = (int) (agent.getStats().getClassesTransformed() - classesTransformed);
+		writeState(stateFile, current);
+		return summary;
+	}
+
+	private static void rewriteSequentially(Map<String, Callable<State>> changed, Map<String, State> current)
+			throws IOException {
+		for (Map.Entry<String, Callable<State>> e : changed.entrySet()) {
+			try {
+				current.put(e.getKey(), e.getValue().call());
+			} catch (IOException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new IOException("Failed to rewrite class file '" + e.getKey() + "': " + ex);
+			}
+		}
+	}
+
+	private void rewriteConcurrently(Map<String, Callable<State>> changed, Map<String, State> current)
+			throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, changed.size()));
+		try {
+			Map<String, Future<State>> pending = new LinkedHashMap<String, Future<State>>();
+			for (Map.Entry<String, Callable<State>> e : changed.entrySet())
+				pending.put(e.getKey(), executor.submit(e.getValue()));
+			for (Map.Entry<String, Future<State>> e : pending.entrySet())
+				current.put(e.getKey(), await(e.getKey(), e.getValue()));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static State await(String path, Future<State> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while rewriting class files");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Failed to rewrite class file '" + path + "': " + cause);
+		}
+	}
+
+	/**
+	 * Rewrite the given class file, unless its content is still the one the last run left, and return its new state.
+	 */
+	private State rewrite(File file, String className, State state) throws IOException {
+		byte[] bytes = read(file);
+		String hash = hash(bytes);
+		if (state != null && state.hash.equals(hash))
+			return new State(file.lastModified(), file.length(), hash);
+		byte[] transformed;
+		try {
+			transformed = agent.transform((ClassLoader) null, className, null, null, bytes);
+		} catch (IllegalClassFormatException e) {
+			throw new IOException("Failed to transform class '" + className + "': " + e.getMessage());
+		}
+		if (transformed != null) {
+			write(file, transformed);
+			hash = hash(transformed);
+		}
+		return new State(file.lastModified(), file.length(), hash);
+	}
+
+	private static void listClassFiles(File dir, String prefix, List<String> paths) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory())
+				listClassFiles(file, prefix + file.getName() + "/", paths);
+			else if (file.getName().endsWith(".class"))
+				paths.add(prefix + file.getName());
+		}
+	}
+
+	/**
+	 * Read the given state file, or return an empty state if it does not exist or was written with other options, in
+	 * which case {@link Summary#optionsChanged} is set.
+	 */
+	private Map<String, State> readState(File stateFile, Summary summary) throws IOException {
+		Map<String, State> states = new HashMap<String, State>();
+		if (!stateFile.isFile())
+			return states;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+		try {
+			if (!header.equals(in.readLine())) {
+				summary.optionsChanged = true;
+				return states;
+			}
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 4)
+					continue;
+				states.put(fields[0], new State(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+			}
+		} catch (NumberFormatException e) {
+			states.clear();
+		} finally {
+			in.close();
+		}
+		return states;
+	}
+
+	/**
+	 * Write the given state file via a temporary file, so that an interrupted build does not leave a truncated one.
+	 */
+	private void writeState(File stateFile, Map<String, State> states) throws IOException {
+		File dir = stateFile.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create directory '" + dir + "'");
+		File tmpFile = new File(dir, stateFile.getName() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+		try {
+			out.write(header);
+			out.write('\n');
+			for (Map.Entry<String, State> e : states.entrySet()) {
+				State state = e.getValue();
+				out.write(e.getKey() + "\t" + state.lastModified + "\t" + state.length + "\t" + state.hash + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (stateFile.exists() && !stateFile.delete() || !tmpFile.renameTo(stateFile))
+			throw new IOException("Could not replace '" + stateFile + "'");
+	}
+
+	private static String hash(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest(bytes))
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+}
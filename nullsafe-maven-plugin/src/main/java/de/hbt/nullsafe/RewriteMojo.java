@@ -0,0 +1,26 @@
+package de.hbt.nullsafe;
+
+import java.io.File;
+
+import org.apache.maven.plugins.annotations.*;
+
+/**
+ * Rewrites the <code>__nullsafe(...)</code> calls of the classes in <code>target/classes</code> which changed since
+ * the last build.
+ */
+@Mojo(name = "rewrite", defaultPhase = LifecyclePhase.PROCESS_CLASSES, threadSafe = true)
+public class RewriteMojo extends AbstractRewriteMojo {
+
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File classesDirectory;
+
+	@Override
+	File getClassesDirectory() {
+		return classesDirectory;
+	}
+
+	@Override
+	String getStateFileName() {
+		return "classes.state";
+	}
+}
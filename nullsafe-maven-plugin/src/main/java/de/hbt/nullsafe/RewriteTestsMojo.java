@@ -0,0 +1,39 @@
+package de.hbt.nullsafe;
+
+import java.io.File;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.*;
+
+/**
+ * Rewrites the <code>__nullsafe(...)</code> calls of the classes in <code>target/test-classes</code> which changed
+ * since the last build.
+ */
+@Mojo(name = "rewrite-tests", defaultPhase = LifecyclePhase.PROCESS_TEST_CLASSES, threadSafe = true)
+public class RewriteTestsMojo extends AbstractRewriteMojo {
+
+	@Parameter(defaultValue = "${project.build.testOutputDirectory}", required = true)
+	private File testClassesDirectory;
+
+	/**
+	 * Whether to skip the rewrite of the test classes, like <code>-Dmaven.test.skip</code>.
+	 */
+	@Parameter(property = "maven.test.skip", defaultValue = "false")
+	private boolean skipTests;
+
+	@Override
+	File getClassesDirectory() {
+		return testClassesDirectory;
+	}
+
+	@Override
+	String getStateFileName() {
+		return "test-classes.state";
+	}
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		if (!skipTests)
+			super.execute();
+	}
+}
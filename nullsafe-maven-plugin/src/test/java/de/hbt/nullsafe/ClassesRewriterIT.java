@@ -0,0 +1,140 @@
+package de.hbt.nullsafe;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import javax.tools.*;
+
+import org.junit.*;
+import org.junit.runner.*;
+
+/**
+ * Compiles the {@link NullsafeIT} of the agent, rewrites its classes incrementally and runs it in this JVM, which runs
+ * without the agent.
+ */
+public class ClassesRewriterIT {
+
+	private File sourceFile;
+	private Path tmpDir;
+	private File classesDir;
+	private File stateFile;
+
+	@Before
+	public void setUp() throws IOException {
+		sourceFile = new File(System.getProperty("nullsafe.it.source"));
+		assertTrue(sourceFile + " does not exist", sourceFile.isFile());
+		tmpDir = Files.createTempDirectory("nullsafe-maven-plugin");
+		classesDir = tmpDir.resolve("classes").toFile();
+		stateFile = tmpDir.resolve("nullsafe/classes.state").toFile();
+		assertTrue(classesDir.mkdir());
+		compile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.walkFileTree(tmpDir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test
+	public void testRewrite() throws Exception {
+		ClassesRewriter.Summary summary = rewrite(4);
+		assertEquals(summary.classes, summary.changed);
+		assertTrue(summary.transformed > 0);
+		Result result = JUnitCore.runClasses(load());
+		assertTrue(result.getFailures().toString(), result.wasSuccessful());
+	}
+
+	@Test
+	public void testUnchangedClassesAreSkipped() throws Exception {
+		ClassesRewriter.Summary first = rewrite(1);
+		ClassesRewriter.Summary second = rewrite(1);
+		assertEquals(first.classes, second.classes);
+		assertEquals(0, second.changed);
+		assertEquals(0, second.transformed);
+	}
+
+	@Test
+	public void testTouchedClassesAreNotTransformedAgain() throws Exception {
+		rewrite(1);
+		File classFile = new File(classesDir, "de/hbt/nullsafe/NullsafeIT.class");
+		assertTrue(classFile.setLastModified(classFile.lastModified() - 10000));
+		ClassesRewriter.Summary summary = rewrite(1);
+		assertEquals(1, summary.changed);
+		assertEquals(0, summary.transformed);
+		assertEquals(0, rewrite(1).changed);
+	}
+
+	@Test
+	public void testRecompiledClassesAreTransformedAgain() throws Exception {
+		ClassesRewriter.Summary first = rewrite(2);
+		compile();
+		ClassesRewriter.Summary second = rewrite(2);
+		assertEquals(first.classes, second.changed);
+		assertEquals(first.transformed, second.transformed);
+		Result result = JUnitCore.runClasses(load());
+		assertTrue(result.getFailures().toString(), result.wasSuccessful());
+	}
+
+	@Test
+	public void testOtherOptionsOnlyApplyToRecompiledClasses() throws Exception {
+		ClassesRewriter.Summary first = rewrite(1);
+		assertFalse(first.optionsChanged);
+		AgentOptions options = new AgentOptions();
+		options.budget = 1;
+		ClassesRewriter.Summary second = new ClassesRewriter(options, 1).rewrite(classesDir, stateFile);
+		assertTrue(second.optionsChanged);
+		assertEquals(first.classes, second.changed);
+		/* The rewritten class files no longer contain any __nullsafe(...) calls */
+		assertEquals(0, second.transformed);
+		assertFalse(new ClassesRewriter(options, 1).rewrite(classesDir, stateFile).optionsChanged);
+		/* The options apply once the classes were compiled again */
+		compile();
+		ClassesRewriter.Summary third = new ClassesRewriter(options, 1).rewrite(classesDir, stateFile);
+		assertFalse(third.optionsChanged);
+		assertEquals(first.transformed, third.transformed);
+		Result result = JUnitCore.runClasses(load());
+		assertTrue(result.getFailures().toString(), result.wasSuccessful());
+	}
+
+	private ClassesRewriter.Summary rewrite(int threads) throws IOException {
+		return new ClassesRewriter(new AgentOptions(), threads).rewrite(classesDir, stateFile);
+	}
+
+	private void compile() throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+		try {
+			/* Class files the agent can read */
+			List<String> args = Arrays.asList("-source", "1.8", "-target", "1.8", "-nowarn", "-proc:none", "-d",
+					classesDir.toString(), "-cp", System.getProperty("java.class.path"));
+			DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+			boolean success = compiler.getTask(null, fileManager, diagnostics, args, null,
+					fileManager.getJavaFileObjects(sourceFile)).call().booleanValue();
+			assertTrue("Compilation failed: " + diagnostics.getDiagnostics(), success);
+		} finally {
+			fileManager.close();
+		}
+	}
+
+	private Class<?> load() throws MalformedURLException, ClassNotFoundException {
+		ClassLoader loader = new URLClassLoader(new URL[] { classesDir.toURI().toURL() }, getClass().getClassLoader());
+		return Class.forName("de.hbt.nullsafe.NullsafeIT", true, loader);
+	}
+}
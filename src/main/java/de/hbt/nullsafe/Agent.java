@@ -15,14 +15,115 @@ import org.objectweb.asm.util.*;
 
 class Agent implements ClassFileTransformer {
 
-	private static final String Nullsafe_name = Type.getInternalName(Nullsafe.class);
-	private static final String __nullsafe = "__nullsafe";
+	static final String Nullsafe_name = Type.getInternalName(Nullsafe.class);
+	static final String __nullsafe = "__nullsafe";
+	static final String __nullsafeOrElseGet = "__nullsafeOrElseGet";
+	static final String Fallback_name = Type.getInternalName(Nullsafe.Fallback.class);
+
+	/**
+	 * Determine whether the given method is {@link Nullsafe#__nullsafe(Object)} or
+	 * one of its variants, such as {@link Nullsafe#__nullsafeInt(int, int)}.
+	 */
+	static boolean isNullsafeMethod(String owner, String name) {
+		return name.startsWith(__nullsafe) && Nullsafe_name.equals(owner);
+	}
+
+	/**
+	 * Determine whether the given annotation declares a value to be never null, such
+	 * as <code>javax.annotation.Nonnull</code>,
+	 * <code>org.jetbrains.annotations.NotNull</code> or <code>lombok.NonNull</code>.
+	 */
+	static boolean isNonNullAnnotation(String descriptor) {
+		return descriptor.endsWith("/Nonnull;") || descriptor.endsWith("/NotNull;")
+				|| descriptor.endsWith("/NonNull;") || descriptor.endsWith("$Nonnull;")
+				|| descriptor.endsWith("$NotNull;") || descriptor.endsWith("$NonNull;");
+	}
 
 	private final boolean withTrace;
+	private final PackageFilter packageFilter;
+	private final boolean computeFrames;
+	private final int budget;
+	/* The cache of transformed classes, or null */
+	private final TransformCache cache;
+	/* The diffs of transformed methods written in the background, or null */
+	private final Diagnostics diagnostics;
+	/* Whether the null-checks count their hits in the NullProfile */
+	private final boolean profile;
+	/* The classes whose field and array dereferences are guarded by the exception table, or null */
+	private final PackageFilter implicitChecks;
+	private final AgentStats stats = new AgentStats();
+	/* The jars known not to contain __nullsafe(...) calls, or null */
+	private final JarIndex jarIndex;
+	private volatile MethodSizeListener sizeListener;
+	/* Whether classes are only trapped when they are loaded and transformed on their first call */
+	private boolean lazy;
+	/* Whether the arguments of __nullsafe(...) calls are sliced instead of analyzing whole methods where possible */
+	private boolean sliceArguments = true;
+
+	/**
+	 * Receives the size of the bytecode of each transformed method before and after
+	 * its rewrite, including any outlining.
+	 */
+	interface MethodSizeListener {
+		void methodTransformed(String className, String method, int sizeBefore, int sizeAfter);
+	}
+
+	/**
+	 * Thrown when the frames of a transformed method could not be preserved, so that
+	 * the frames of the whole class must be computed.
+	 */
+	private static class FramesNotPreservedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
 
 	Agent(boolean withTrace) {
+		this(withTrace ? AgentOptions.parse("t") : new AgentOptions());
+	}
+
+	Agent(AgentOptions options) {
 		super();
-		this.withTrace = withTrace;
+		this.withTrace = options.trace;
+		this.packageFilter = options.packageFilter();
+		this.computeFrames = options.computeFrames;
+		this.budget = options.budget;
+		this.lazy = options.lazy;
+		this.cache = options.cacheDir == null ? null
+				: new TransformCache(options.cacheDir, "budget=" + budget + ",frames=" + computeFrames
+						+ (options.implicitChecks.isEmpty() ? "" : ",implicitChecks=" + options.implicitChecks));
+		this.diagnostics = options.diagnosticsFile == null ? null
+				: new Diagnostics(options.diagnosticsFile, options.diagnosticsFilter(), stats);
+		this.profile = options.profile || options.profileFile != null;
+		this.implicitChecks = options.implicitChecks.isEmpty() ? null : options.implicitChecksFilter();
+		this.jarIndex = options.jarIndex ? new JarIndex(stats) : null;
+	}
+
+	AgentStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Determine whether the given class passes the included and excluded packages, so that it is transformed if it
+	 * contains any <code>__nullsafe(...)</code> calls.
+	 */
+	boolean includes(String className) {
+		return packageFilter.matches(className);
+	}
+
+	Diagnostics getDiagnostics() {
+		return diagnostics;
+	}
+
+	void setSizeListener(MethodSizeListener sizeListener) {
+		this.sizeListener = sizeListener;
+	}
+
+	void setSliceArguments(boolean sliceArguments) {
+		this.sliceArguments = sliceArguments;
 	}
 
 	static class DefUseBasicValue extends BasicValue {
@@ -30,69 +131,411 @@ class Agent implements ClassFileTransformer {
 		private final AbstractInsnNode node;
 		private final boolean needsNullCheck;
 		private final boolean canProduceNull;
+		/* Whether the value is known to never be null */
+		private final boolean nonNull;
+		/* The local variable this value was loaded from, or -1 */
+		private final int local;
+		/* The first instruction of the default value of a __nullsafe(...) call with a default value */
+		private AbstractInsnNode defaultStart;
+		/* The index of the value of the expression on the stack within the default value */
+		private int valueIndex;
 
 		DefUseBasicValue(AbstractInsnNode node, BasicValue delegate, List<? extends BasicValue> values,
-				boolean needsNullCheck, boolean canProduceNull) {
+				boolean needsNullCheck, boolean canProduceNull, boolean nonNull, int local) {
 			super(delegate.getType());
 			this.values = values;
 			this.node = node;
 			this.needsNullCheck = needsNullCheck;
-			this.canProduceNull = canProduceNull;
+			this.canProduceNull = canProduceNull && !nonNull;
+			this.nonNull = nonNull;
+			this.local = local;
 		}
 
-		private void makeNullSafe(MethodNode mn, LabelNode label) {
+		/**
+		 * Return this value with the given nullness.
+		 */
+		DefUseBasicValue withNonNull(boolean nonNull) {
+			if (nonNull == this.nonNull)
+				return this;
+			return new DefUseBasicValue(node, this, values, needsNullCheck, canProduceNull || this.nonNull, nonNull,
+					local);
+		}
+
+		/**
+		 * Return the value this value was computed from first, such as the receiver of a call, or <code>null</code>.
+		 */
+		BasicValue firstValue() {
+			return values != null && values.size() >= 1 ? values.get(0) : null;
+		}
+
+		static boolean isNonNull(BasicValue value) {
+			return value instanceof DefUseBasicValue && ((DefUseBasicValue) value).nonNull;
+		}
+
+		/**
+		 * Values are only equal if they also agree on their nullness, so that the
+		 * {@link Analyzer} keeps merging frames until the nullness is stable.
+		 */
+		@Override
+		public boolean equals(Object value) {
+			return super.equals(value) && isNonNull(this) == isNonNull((BasicValue) value);
+		}
+
+		@Override
+		public int hashCode() {
+			return super.hashCode();
+		}
+
+		/**
+		 * Insert the null-checks jumping to the given label and return whether any
+		 * null-check was inserted.
+		 */
+		private boolean makeNullSafe(MethodNode mn, LabelNode label, String profiledClass,
+				ImplicitNullChecks implicit) {
+			boolean checked = false;
 			if (needsNullCheck) {
 				DefUseBasicValue firstValue = (DefUseBasicValue) values.get(0);
 				if (firstValue.canProduceNull) {
-					mn.instructions.insert(firstValue.node, new JumpInsnNode(IFNULL, label));
-					mn.instructions.insert(firstValue.node, new InsnNode(DUP));
+					if (implicit == null || !implicit.guard(mn, node, label))
+						mn.instructions.insert(firstValue.node, firstValue.nullCheck(mn, IFNULL, label, profiledClass));
+					checked = true;
 				}
 			}
-			processPrevious(mn, label);
+			return processPrevious(mn, label, profiledClass, implicit) | checked;
+		}
+
+		/**
+		 * Return the check of this value, which keeps the value on the stack and jumps to the given label if it is
+		 * <code>null</code> (IFNULL) or not <code>null</code> (IFNONNULL). In profile mode, the check calls
+		 * {@link Hooks#__isNull(Object, int)} instead, which counts the value being <code>null</code>.
+		 *
+		 * @param profiledClass the class of the method in profile mode, or <code>null</code>
+		 */
+		private InsnList nullCheck(MethodNode mn, int opcode, LabelNode label, String profiledClass) {
+			InsnList check = new InsnList();
+			check.add(new InsnNode(DUP));
+			int site = profiledClass == null ? -1
+					: NullProfile.site(profiledClass, mn.name + mn.desc, line(), position(), link(mn));
+			if (site < 0) {
+				check.add(new JumpInsnNode(opcode, label));
+				return check;
+			}
+			/* There are less than Short.MAX_VALUE sites */
+			check.add(new IntInsnNode(SIPUSH, site));
+			check.add(new MethodInsnNode(INVOKESTATIC, BootHooks.name(), "__isNull", "(Ljava/lang/Object;I)Z", false));
+			check.add(new JumpInsnNode(opcode == IFNULL ? IFNE : IFEQ, label));
+			return check;
 		}
 
-		void makeNullSafe(MethodNode mn) {
-			LabelNode label = new LabelNode();
-			mn.instructions.insertBefore(node, label);
-			processPrevious(mn, label);
-			mn.instructions.remove(node);
+		/**
+		 * Return the line of the instruction producing this value, or <code>-1</code> if unknown.
+		 */
+		private int line() {
+			for (AbstractInsnNode insn = node; insn != null; insn = insn.getPrevious()) {
+				if (insn instanceof LineNumberNode)
+					return ((LineNumberNode) insn).line;
+			}
+			return -1;
+		}
+
+		/**
+		 * Return the position of this value in its expression, where the first value is <code>0</code>.
+		 */
+		private int position() {
+			int position = 0;
+			for (BasicValue value = firstValue(); value instanceof DefUseBasicValue; value = ((DefUseBasicValue) value)
+					.firstValue())
+				position++;
+			return position;
 		}
 
-		private void processPrevious(MethodNode mn, LabelNode label) {
-			BasicValue prev = values != null && values.size() >= 1 ? values.get(0) : null;
+		/**
+		 * Describe the instruction producing this value, such as the name of the called method.
+		 */
+		private String link(MethodNode mn) {
+			if (node instanceof MethodInsnNode)
+				return ((MethodInsnNode) node).name + "()";
+			if (node instanceof FieldInsnNode)
+				return ((FieldInsnNode) node).name;
+			if (node instanceof VarInsnNode) {
+				int var = ((VarInsnNode) node).var;
+				if (mn.localVariables != null) {
+					int index = mn.instructions.indexOf(node);
+					for (LocalVariableNode lv : mn.localVariables) {
+						if (lv.index == var && mn.instructions.indexOf(lv.start) <= index
+								&& index < mn.instructions.indexOf(lv.end))
+							return lv.name;
+					}
+				}
+				return "local " + var;
+			}
+			/* A cast is only checked in place of the value it casts */
+			if (node.getOpcode() == CHECKCAST && firstValue() instanceof DefUseBasicValue)
+				return ((DefUseBasicValue) firstValue()).link(mn);
+			return node.getOpcode() < 0 ? "?" : Printer.OPCODES[node.getOpcode()].toLowerCase();
+		}
+
+		/**
+		 * Rewrite this __nullsafe(...) call and add each label which became a new jump
+		 * target to the given map, together with the type of the value on top of the
+		 * stack at that label.
+		 *
+		 * @param profiledClass the class of the method if the null-checks are profiled, or <code>null</code>
+		 * @param implicit      the exception table entries to guard field and array dereferences with instead of
+		 *                      explicit null-checks, or <code>null</code>
+		 * @return <code>false</code> if the existing frames of the method are no longer
+		 *         valid after the rewrite
+		 */
+		boolean makeNullSafe(MethodNode mn, Map<LabelNode, Object> labels, String profiledClass,
+				ImplicitNullChecks implicit) {
+			if (implicit != null && !implicit.canGuard(node))
+				implicit = null;
+			Type[] argumentTypes = Type.getArgumentTypes(((MethodInsnNode) node).desc);
+			if (argumentTypes.length == 1) {
+				LabelNode label = new LabelNode();
+				mn.instructions.insertBefore(node, label);
+				processPrevious(mn, label, profiledClass, implicit);
+				mn.instructions.remove(node);
+				labels.put(label, "java/lang/Object");
+				return true;
+			}
+			return makeNullSafeWithDefault(mn, labels, profiledClass, implicit);
+		}
+
+		/**
+		 * Locate the first instruction of the default value of this __nullsafe(...) call,
+		 * if it has one. This must be done before any instructions are modified, while
+		 * the given frames still match the instructions.
+		 * <p>
+		 * The code of the default value is the longest sequence of instructions before
+		 * the call which all keep the value of the expression on the stack below the
+		 * default value.
+		 */
+		void locateDefault(MethodNode mn, Frame<BasicValue>[] frames) {
+			if (Type.getArgumentTypes(((MethodInsnNode) node).desc).length == 1)
+				return;
+			Frame<BasicValue> callFrame = frames[mn.instructions.indexOf(node)];
+			valueIndex = callFrame.getStackSize() - 2;
+			BasicValue value = callFrame.getStack(valueIndex);
+			AbstractInsnNode start = node;
+			for (AbstractInsnNode insn = node.getPrevious(); insn != null; insn = insn.getPrevious()) {
+				Frame<BasicValue> f = frames[mn.instructions.indexOf(insn)];
+				if (f == null || f.getStackSize() <= valueIndex || f.getStack(valueIndex) != value)
+					break;
+				start = insn;
+			}
+			defaultStart = start;
+		}
+
+		/**
+		 * Set the first instruction of the default value of this __nullsafe(...) call, as located by the
+		 * {@link ArgumentSlicer} without any frames.
+		 */
+		void setDefaultStart(AbstractInsnNode defaultStart) {
+			this.defaultStart = defaultStart;
+		}
+
+		/**
+		 * Rewrite a call with a default value, such as
+		 * {@link Nullsafe#__nullsafeInt(int, int)} or
+		 * {@link Nullsafe#__nullsafe(Object, Object)}. The code of the default value
+		 * directly follows the code of the expression, and is skipped when the
+		 * expression does not produce null:
+		 *
+		 * <pre>
+		 * expression (with null-checks jumping to nullLabel)
+		 * GOTO end (or DUP, IFNONNULL end, if the value itself can be null)
+		 * nullLabel: POP
+		 * default value (and INVOKEINTERFACE Fallback.get() for __nullsafeOrElseGet)
+		 * end:
+		 * </pre>
+		 */
+		private boolean makeNullSafeWithDefault(MethodNode mn, Map<LabelNode, Object> labels, String profiledClass,
+				ImplicitNullChecks implicit) {
+			MethodInsnNode call = (MethodInsnNode) node;
+			Type type = Type.getReturnType(call.desc);
+			LabelNode nullLabel = new LabelNode();
+			boolean checked = processPrevious(mn, nullLabel, profiledClass, implicit);
+			/* Unlike with __nullsafe(v), a null value of the expression itself yields the default value */
+			BasicValue value = values.get(0);
+			boolean checkValue = type.getSort() == Type.OBJECT && value instanceof DefUseBasicValue
+					&& ((DefUseBasicValue) value).canProduceNull;
+			if (!checked && !checkValue) {
+				/*
+				 * The expression can never produce null, so the default value is never
+				 * needed.
+				 */
+				AbstractInsnNode insn = defaultStart;
+				while (insn != node) {
+					AbstractInsnNode next = insn.getNext();
+					if (insn.getOpcode() >= 0)
+						mn.instructions.remove(insn);
+					insn = next;
+				}
+				mn.instructions.remove(node);
+				return true;
+			}
+			boolean framesValid = true;
+			for (AbstractInsnNode insn = defaultStart; insn != node; insn = insn.getNext()) {
+				/*
+				 * The frames within the default value still contain the value of the
+				 * expression on the stack, which is not there anymore on the null path.
+				 */
+				if (!(insn instanceof FrameNode))
+					continue;
+				FrameNode frame = (FrameNode) insn;
+				if (frame.type == F_NEW && frame.stack.size() > valueIndex)
+					frame.stack.remove(valueIndex);
+				else
+					framesValid = false;
+			}
+			LabelNode end = new LabelNode();
+			InsnList nullPath = new InsnList();
+			if (checkValue) {
+				nullPath.add(((DefUseBasicValue) value).nullCheck(mn, IFNONNULL, end, profiledClass));
+			} else {
+				nullPath.add(new JumpInsnNode(GOTO, end));
+			}
+			nullPath.add(nullLabel);
+			nullPath.add(new InsnNode(POP));
+			mn.instructions.insertBefore(defaultStart, nullPath);
+			if (__nullsafeOrElseGet.equals(call.name)) {
+				mn.instructions.insertBefore(node, new MethodInsnNode(INVOKEINTERFACE, Fallback_name, "get",
+						"()Ljava/lang/Object;", true));
+			}
+			mn.instructions.set(node, end);
+			labels.put(nullLabel, "java/lang/Object");
+			labels.put(end, frameType(type));
+			return framesValid;
+		}
+
+		private static Object frameType(Type type) {
+			switch (type.getSort()) {
+			case Type.LONG:
+				return LONG;
+			case Type.DOUBLE:
+				return DOUBLE;
+			case Type.FLOAT:
+				return FLOAT;
+			case Type.OBJECT:
+			case Type.ARRAY:
+				return type.getInternalName();
+			default:
+				return INTEGER;
+			}
+		}
+
+		private boolean processPrevious(MethodNode mn, LabelNode label, String profiledClass,
+				ImplicitNullChecks implicit) {
+			BasicValue prev = firstValue();
 			if (prev instanceof DefUseBasicValue) {
 				DefUseBasicValue mc = (DefUseBasicValue) prev;
-				mc.makeNullSafe(mn, label);
+				return mc.makeNullSafe(mn, label, profiledClass, implicit);
 			}
+			return false;
 		}
 
 		boolean isNullsafeCall() {
 			if (!(node instanceof MethodInsnNode))
 				return false;
 			MethodInsnNode min = (MethodInsnNode) node;
-			return __nullsafe.equals(min.name) && Nullsafe_name.equals(min.owner);
+			return isNullsafeMethod(min.owner, min.name);
 		}
 	}
 
 	static class DefUseAnalyzer extends Analyzer<BasicValue> {
-		DefUseAnalyzer(boolean instanceMethod) {
-			super(new DefUseInterpreter(instanceMethod));
+		DefUseAnalyzer(boolean instanceMethod, String owner, ClassScan scan) {
+			super(new DefUseInterpreter(instanceMethod, owner, scan));
+		}
+
+		@Override
+		protected Frame<BasicValue> newFrame(int numLocals, int numStack) {
+			return new DefUseFrame(numLocals, numStack);
+		}
+
+		@Override
+		protected Frame<BasicValue> newFrame(Frame<? extends BasicValue> frame) {
+			return new DefUseFrame(frame);
+		}
+	}
+
+	/**
+	 * Frame which knows that a local variable is not null on the branch of an IFNULL
+	 * or IFNONNULL test of that variable where the test failed or succeeded,
+	 * respectively.
+	 */
+	static class DefUseFrame extends Frame<BasicValue> {
+		/* The value tested by the last executed IFNULL or IFNONNULL */
+		private DefUseBasicValue tested;
+		/* The local variable which was replaced by a non-null value for one jump target, or -1 */
+		private int refinedLocal = -1;
+		private BasicValue unrefinedValue;
+
+		DefUseFrame(int numLocals, int numStack) {
+			super(numLocals, numStack);
+		}
+
+		DefUseFrame(Frame<? extends BasicValue> frame) {
+			super(frame);
+		}
+
+		@Override
+		public void execute(AbstractInsnNode insn, Interpreter<BasicValue> interpreter) throws AnalyzerException {
+			tested = null;
+			refinedLocal = -1;
+			int opcode = insn.getOpcode();
+			if (opcode == IFNULL || opcode == IFNONNULL) {
+				BasicValue value = getStack(getStackSize() - 1);
+				/* Only trust the local if it was loaded immediately before the test */
+				if (value instanceof DefUseBasicValue && ((DefUseBasicValue) value).local >= 0
+						&& ((DefUseBasicValue) value).node == insn.getPrevious())
+					tested = (DefUseBasicValue) value;
+			}
+			super.execute(insn, interpreter);
+		}
+
+		@Override
+		public void initJumpTarget(int opcode, LabelNode target) {
+			if (refinedLocal >= 0) {
+				setLocal(refinedLocal, unrefinedValue);
+				refinedLocal = -1;
+			}
+			if (tested == null)
+				return;
+			boolean nonNull = opcode == IFNULL ? target == null : target != null;
+			BasicValue value = getLocal(tested.local);
+			if (nonNull && !DefUseBasicValue.isNonNull(value) && value.isReference()) {
+				refinedLocal = tested.local;
+				unrefinedValue = value;
+				setLocal(refinedLocal, value instanceof DefUseBasicValue ? ((DefUseBasicValue) value).withNonNull(true)
+						: new DefUseBasicValue(null, value, Collections.<BasicValue>emptyList(), false, false, true,
+								-1));
+			}
 		}
 	}
 
 	static class DefUseInterpreter extends BasicInterpreter {
 		private final boolean instanceMethod;
+		private final String owner;
+		private final ClassScan scan;
 
-		DefUseInterpreter(boolean instanceMethod) {
+		DefUseInterpreter(boolean instanceMethod, String owner, ClassScan scan) {
 			super(ASM7);
 			this.instanceMethod = instanceMethod;
+			this.owner = owner;
+			this.scan = scan;
+		}
+
+		private static BasicValue produce(AbstractInsnNode insn, BasicValue delegate, List<? extends BasicValue> values,
+				boolean needsNullCheck, boolean canProduceNull, boolean nonNull) {
+			return produce(insn, delegate, values, needsNullCheck, canProduceNull, nonNull, -1);
 		}
 
 		private static BasicValue produce(AbstractInsnNode insn, BasicValue delegate, List<? extends BasicValue> values,
-				boolean needsNullCheck, boolean canProduceNull) {
+				boolean needsNullCheck, boolean canProduceNull, boolean nonNull, int local) {
 			if (delegate == null)
 				return null;
-			return new DefUseBasicValue(insn, delegate, values, needsNullCheck, canProduceNull);
+			return new DefUseBasicValue(insn, delegate, values, needsNullCheck, canProduceNull, nonNull, local);
 		}
 
 		@Override
@@ -100,23 +543,37 @@ class Agent implements ClassFileTransformer {
 				throws AnalyzerException {
 			boolean isCallReturningRef = insn instanceof MethodInsnNode
 					&& typeIsReference(Type.getReturnType(((MethodInsnNode) insn).desc));
-			return produce(insn, super.naryOperation(insn, values), values, true, isCallReturningRef);
+			boolean nonNull = insn.getOpcode() == MULTIANEWARRAY || isCallReturningRef && isNonNullMethod(
+					(MethodInsnNode) insn);
+			return produce(insn, super.naryOperation(insn, values), values, true, isCallReturningRef, nonNull);
+		}
+
+		/**
+		 * Determine whether the called method is a method of the analyzed class with a
+		 * return value annotated as not null.
+		 */
+		private boolean isNonNullMethod(MethodInsnNode min) {
+			return owner.equals(min.owner) && scan.isNonNullMethod(min.name, min.desc);
 		}
 
 		@Override
 		public BasicValue unaryOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
 			boolean isGetField = insn.getOpcode() == GETFIELD;
+			boolean isRefGetField = isGetField && typeIsReference(Type.getType(((FieldInsnNode) insn).desc));
 			boolean isCheckCast = insn.getOpcode() == CHECKCAST;
+			boolean nonNull = insn.getOpcode() == NEWARRAY || insn.getOpcode() == ANEWARRAY
+					|| isCheckCast && DefUseBasicValue.isNonNull(value);
 			return produce(insn, super.unaryOperation(insn, value), Collections.singletonList(value), isGetField,
-					isGetField || isCheckCast);
+					isRefGetField || isCheckCast, nonNull);
 		}
 
 		@Override
 		public BasicValue newOperation(AbstractInsnNode insn) throws AnalyzerException {
 			boolean nullConstOrRefFieldGet = insn.getOpcode() == ACONST_NULL
 					|| (insn.getOpcode() == GETSTATIC && typeIsReference(Type.getType(((FieldInsnNode) insn).desc)));
+			boolean nonNull = insn.getOpcode() == NEW || insn.getOpcode() == LDC;
 			return produce(insn, super.newOperation(insn), Collections.<BasicValue>emptyList(), false,
-					nullConstOrRefFieldGet);
+					nullConstOrRefFieldGet, nonNull);
 		}
 
 		private static boolean typeIsReference(Type t) {
@@ -125,14 +582,15 @@ class Agent implements ClassFileTransformer {
 
 		@Override
 		public BasicValue copyOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
-			boolean nonThisRefVariableLoad = insn.getOpcode() == ALOAD
-					&& (!instanceMethod || ((VarInsnNode) insn).var != 0);
+			boolean isRefVariableLoad = insn.getOpcode() == ALOAD;
+			boolean isThisLoad = isRefVariableLoad && instanceMethod && ((VarInsnNode) insn).var == 0;
 			/*
 			 * Use empty source value to not leak null-checks out of the __nullsafe(...)
 			 * call!
 			 */
 			return produce(insn, super.copyOperation(insn, value), Collections.<BasicValue>emptyList(), false,
-					nonThisRefVariableLoad);
+					isRefVariableLoad, isThisLoad || DefUseBasicValue.isNonNull(value),
+					isRefVariableLoad ? ((VarInsnNode) insn).var : -1);
 		}
 
 		@Override
@@ -141,74 +599,215 @@ class Agent implements ClassFileTransformer {
 			boolean isArrayLoad = insn.getOpcode() >= IALOAD && insn.getOpcode() <= SALOAD;
 			boolean isRefArrayLoad = insn.getOpcode() == AALOAD;
 			return produce(insn, super.binaryOperation(insn, value1, value2), Arrays.asList(value1, value2),
-					isArrayLoad, isRefArrayLoad);
+					isArrayLoad, isRefArrayLoad, false);
+		}
+
+		/**
+		 * Merge the given values, which are only known to be not null if both are.
+		 */
+		@Override
+		public BasicValue merge(BasicValue value1, BasicValue value2) {
+			if (!sameType(value1, value2))
+				return super.merge(value1, value2);
+			if (DefUseBasicValue.isNonNull(value1) && !DefUseBasicValue.isNonNull(value2))
+				return ((DefUseBasicValue) value1).withNonNull(false);
+			return value1;
+		}
+
+		private static boolean sameType(BasicValue value1, BasicValue value2) {
+			return value1.getType() == null ? value2.getType() == null : value1.getType().equals(value2.getType());
 		}
 	}
 
 	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
 			ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
 		/*
-		 * Exclude some classes that are guaranteed not to contain __nullsafe(...) calls
-		 * to speed up the transformation process.
+		 * Exclude classes which are configured not to be transformed, such as the ones
+		 * that are guaranteed not to contain __nullsafe(...) calls, to speed up the
+		 * transformation process.
 		 */
-		if (className == null || classfileBuffer == null || className.startsWith("java/")
-				|| className.startsWith("javax/") || className.startsWith("com/sun/")
-				|| className.startsWith("com/ibm/") || className.startsWith("sun/")
-				|| className.startsWith("jdk/") || className.startsWith("org/hibernate/")
-				|| className.startsWith("org/apache/"))
+		stats.classesSeen.increment();
+		if (className == null || classfileBuffer == null)
+			return null;
+		if (!packageFilter.matches(className)) {
+			stats.classesRejectedByFilter.increment();
+			return null;
+		}
+		if (jarIndex != null && jarIndex.withoutNullsafe(protectionDomain)) {
+			stats.classesRejectedByJarIndex.increment();
 			return null;
+		}
+		long start = System.nanoTime();
 		try {
-			return doTransform(className, classfileBuffer);
+			return doTransform(className, classfileBuffer, classBeingRedefined == null);
 		} catch (Throwable t) {
 			System.err.println("Exception while transforming class '" + className.replace('/', '.') + "'");
 			t.printStackTrace();
 			throw new IllegalClassFormatException(t.getMessage());
+		} finally {
+			stats.transformed(className, System.nanoTime() - start);
 		}
 	}
 
-	private byte[] doTransform(String className, byte[] classfileBuffer) {
-		/* Quickly scan for methods that contain __nullsafe(...) calls. */
-		ClassReader cr = new ClassReader(classfileBuffer);
-		final Set<String> methodsToTransform = new HashSet<String>();
-		cr.accept(new ClassVisitor(ASM7) {
-			public MethodVisitor visitMethod(int access, final String methodName, final String methodDescriptor,
-					String signature, String[] exceptions) {
-				return new MethodVisitor(ASM7) {
-					public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
-							boolean isInterface) {
-						if (opcode == INVOKESTATIC && Nullsafe_name.equals(owner) && __nullsafe.equals(name))
-							methodsToTransform.add(methodName + methodDescriptor);
-					}
-				};
-			}
-		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+	/**
+	 * The size of the bytecode of a transformed method before and after its rewrite.
+	 */
+	private static class MethodSize {
+		private final int index;
+		private final String name;
+		private final String descriptor;
+		private final int before;
+		private final int after;
 
-		/* If the set is empty, then no methods need to be transformed. */
-		if (methodsToTransform.isEmpty())
+		MethodSize(int index, String name, String descriptor, int before, int after) {
+			this.index = index;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.before = before;
+			this.after = after;
+		}
+	}
+
+	private byte[] doTransform(String className, byte[] classfileBuffer, boolean mayAddMethods) {
+		/*
+		 * Reject classes without any reference to __nullsafe(...) in their constant pool before building any ASM
+		 * structures. This is cheaper than looking them up in the cache.
+		 */
+		if (!ConstantPoolScanner.referencesNullsafe(classfileBuffer)) {
+			stats.classesWithoutNullsafe.increment();
+			return null;
+		}
+		/*
+		 * Tracing and diagnostics print the transformed classes, so they must really be transformed. The sites of the
+		 * profile are only valid in this JVM.
+		 */
+		TransformCache cache = this.cache;
+		if (cache == null || withTrace || profile || diagnostics != null && diagnostics.diagnoses(className))
+			return transformReferencingClass(className, classfileBuffer, mayAddMethods);
+		String key = cache.key(classfileBuffer, !mayAddMethods ? 'r' : lazy ? 'l' : 't');
+		byte[] cached = cache.get(key);
+		if (cached != null) {
+			stats.classesFromCache.increment();
+			return cached == TransformCache.WITHOUT_NULLSAFE ? null : cached;
+		}
+		byte[] newDefinition = transformReferencingClass(className, classfileBuffer, mayAddMethods);
+		cache.put(key, newDefinition);
+		return newDefinition;
+	}
+
+	/**
+	 * Transform a class which references __nullsafe(...) in its constant pool, or return <code>null</code> if it does
+	 * not call it after all.
+	 */
+	private byte[] transformReferencingClass(String className, byte[] classfileBuffer, boolean mayAddMethods) {
+		/* Quickly scan the class file for methods that contain __nullsafe(...) calls. */
+		ClassScan scan = ClassScan.of(classfileBuffer);
+
+		/* If there are none, then no methods need to be transformed. */
+		if (scan.isEmpty()) {
+			stats.classesWithoutNullsafe.increment();
 			return null;
+		}
+		ClassReader cr = new ClassReader(classfileBuffer);
+
+		/*
+		 * In lazy mode, a class which is loaded only gets traps, which retransform it on
+		 * the first call of one of its methods.
+		 */
+		if (lazy && mayAddMethods && LazyTransformer.canTrap(cr, scan)) {
+			stats.classesDeferred.increment();
+			return LazyTransformer.insertTraps(className, cr, scan);
+		}
+
+		List<MethodSize> sizes = new ArrayList<MethodSize>();
+		List<Diagnostics.MethodDiff> diffs = diagnostics != null && diagnostics.diagnoses(className)
+				? new ArrayList<Diagnostics.MethodDiff>()
+				: null;
+		byte[] newDefinition = transformClass(className, cr, scan, new BitSet(), sizes, diffs);
 
-		/* Transform the scanned methods */
-		return transformMethods(className, cr, methodsToTransform);
+		/*
+		 * If methods grew beyond the budget, move their __nullsafe(...) calls into helper methods. This needs the
+		 * frames of the methods to know the types of the locals, and is not possible when a loaded class is
+		 * retransformed, which must not add methods.
+		 */
+		if (budget > 0 && mayAddMethods && !lazy && cr.readByte(7) >= 51 && (cr.getAccess() & ACC_INTERFACE) == 0) {
+			BitSet oversized = new BitSet();
+			for (MethodSize size : sizes) {
+				if (size.after > budget)
+					oversized.set(size.index);
+			}
+			if (!oversized.isEmpty()) {
+				newDefinition = transformClass(className, cr, scan, oversized, sizes, diffs);
+				stats.methodsOutlined.add(oversized.cardinality());
+			}
+		}
+		stats.classesTransformed.increment();
+		stats.methodsTransformed.add(scan.methodsToTransform());
+		MethodSizeListener listener = sizeListener;
+		for (MethodSize size : sizes) {
+			stats.codeBytesAdded.add(size.after - size.before);
+			if (listener != null)
+				listener.methodTransformed(className, size.name + size.descriptor, size.before, size.after);
+		}
+		if (diffs != null)
+			diagnostics.offer(diffs);
+		return newDefinition;
 	}
 
-	private byte[] transformMethods(final String className, ClassReader cr, final Set<String> methodsToTransform) {
+	/**
+	 * Transform the scanned methods. Stack map frames are only mandatory since Java 7
+	 * class files. For those, try to keep the existing frames and only insert new
+	 * frames where necessary, and fall back to computing all frames if that fails.
+	 */
+	private byte[] transformClass(String className, ClassReader cr, ClassScan scan, BitSet outline,
+			List<MethodSize> sizes, List<Diagnostics.MethodDiff> diffs) {
 		byte majorVersion = (byte) cr.readByte(7);
+		if (majorVersion < 51)
+			return transformMethods(className, cr, scan, outline, sizes, diffs, false, false);
+		if (computeFrames)
+			return transformMethods(className, cr, scan, outline, sizes, diffs, true, false);
+		try {
+			return transformMethods(className, cr, scan, outline, sizes, diffs, false, true);
+		} catch (FramesNotPreservedException e) {
+			stats.classesWithComputedFrames.increment();
+			return transformMethods(className, cr, scan, outline, sizes, diffs, true, false);
+		}
+	}
+
+	/**
+	 * Transform the scanned methods in a single pass of the {@link ClassReader}. Only the methods to transform are
+	 * buffered in a {@link MethodNode}; all other methods are copied as is by the {@link ClassWriter}.
+	 *
+	 * @param diffs receives the diff of each transformed method, or <code>null</code> if the class is not diagnosed
+	 */
+	private byte[] transformMethods(final String className, ClassReader cr, final ClassScan scan,
+			final BitSet outline, final List<MethodSize> sizes, final List<Diagnostics.MethodDiff> diffs,
+			boolean computeFrames, final boolean preserveFrames) {
 		/*
 		 * Build ClassWriter based on ClassReader to quickly copy all untransformed
 		 * methods and the constant pool.
 		 */
+		final int[] callSites = new int[1];
+		sizes.clear();
+		if (diffs != null)
+			diffs.clear();
+		final Outliner outliner = outline.isEmpty() ? null : new Outliner(className, scan.methodNames());
 		ClassWriter cw = new ClassWriter(cr,
-				ClassWriter.COMPUTE_MAXS | (majorVersion >= 51 ? ClassWriter.COMPUTE_FRAMES : 0));
+				ClassWriter.COMPUTE_MAXS | (computeFrames ? ClassWriter.COMPUTE_FRAMES : 0));
 		cr.accept(new ClassVisitor(ASM7, cw) {
+			/* The index of the next visited method in the class file */
+			private int methodIndex;
+
 			@Override
-			public MethodVisitor visitMethod(final int access, String methodName, String methodDescriptor,
+			public MethodVisitor visitMethod(final int access, final String methodName, final String methodDescriptor,
 					String signature, String[] exceptions) {
 				final MethodVisitor original = super.visitMethod(access, methodName, methodDescriptor, signature,
 						exceptions);
 				/*
 				 * If this method should not get transformed, return the original MethodVisitor
 				 */
-				if (!methodsToTransform.contains(methodName + methodDescriptor))
+				final int index = methodIndex++;
+				if (!scan.transforms(index))
 					return original;
 				/* Build a MethodNode whose instructions we later modify */
 				final MethodNode mn = new MethodNode(ASM7, access, methodName, methodDescriptor, signature, exceptions);
@@ -219,7 +818,14 @@ class Agent implements ClassFileTransformer {
 					 */
 					public void visitEnd() {
 						/* Do the transformation */
-						transformMethod(className, mn);
+						int sizeBefore = CodeSize.of(mn.instructions);
+						Diagnostics.Listing before = diffs == null ? null : Diagnostics.before(mn);
+						callSites[0] += transformMethod(className, mn, scan, outline.get(index) ? outliner : null,
+								preserveFrames);
+						sizes.add(new MethodSize(index, methodName, methodDescriptor, sizeBefore,
+								CodeSize.of(mn.instructions)));
+						if (diffs != null)
+							diffs.add(Diagnostics.after(className, mn, before));
 						/* Replay the transformed method into the original MethodVisitor */
 						try {
 							mn.accept(original);
@@ -228,41 +834,27 @@ class Agent implements ClassFileTransformer {
 							throw new RuntimeException("Failed to replay method instructions", e);
 						}
 					}
+				};
+			}
 
-					/**
-					 * Finds calls to __nullsafe(...) and injects null-checks in the definition-use
-					 * instruction chain.
-					 */
-					private void transformMethod(String className, MethodNode mn) {
-						Analyzer<BasicValue> analyzer = new DefUseAnalyzer((access & ACC_STATIC) == 0);
-						Frame<BasicValue>[] frames;
-						try {
-							frames = analyzer.analyze(className, mn);
-						} catch (AnalyzerException e) {
-							throw new RuntimeException("Could not analyze method", e);
-						}
-						List<DefUseBasicValue> nullsafeCalls = new ArrayList<DefUseBasicValue>();
-						for (int i = frames.length - 1; i >= 0; i--) {
-							Frame<BasicValue> f = frames[i];
-							if (f == null || f.getStackSize() == 0)
-								continue;
-							for (int s = 0; s < f.getStackSize(); s++) {
-								BasicValue value = f.getStack(s);
-								if (!(value instanceof DefUseBasicValue))
-									continue;
-								DefUseBasicValue val = (DefUseBasicValue) value;
-								if (!val.isNullsafeCall())
-									continue;
-								nullsafeCalls.add(val);
-							}
-						}
-						for (DefUseBasicValue call : nullsafeCalls)
-							call.makeNullSafe(mn);
+			/**
+			 * Add the helper methods of all outlined __nullsafe(...) calls after all other methods.
+			 */
+			@Override
+			public void visitEnd() {
+				if (outliner != null) {
+					for (MethodNode helper : outliner.getHelpers()) {
+						callSites[0] += transformMethod(className, helper, scan, null, preserveFrames);
+						helper.accept(cv);
 					}
-				};
+				}
+				super.visitEnd();
 			}
-		}, 0);
+		}, preserveFrames || outliner != null ? ClassReader.EXPAND_FRAMES : 0);
+		long start = System.nanoTime();
 		byte[] newDefinition = cw.toByteArray();
+		stats.written(System.nanoTime() - start);
+		stats.callSitesRewritten.add(callSites[0]);
 		if (withTrace) {
 			TraceClassVisitor tcv = new TraceClassVisitor(new PrintWriter(System.out));
 			cr = new ClassReader(newDefinition);
@@ -271,9 +863,169 @@ class Agent implements ClassFileTransformer {
 		return newDefinition;
 	}
 
+	/**
+	 * Finds calls to __nullsafe(...) and injects null-checks in the definition-use
+	 * instruction chain.
+	 *
+	 * @param outliner the {@link Outliner} to move the calls into helper methods
+	 *                 first, or <code>null</code> to keep them in the method
+	 * @return the number of rewritten calls
+	 */
+	private int transformMethod(String className, MethodNode mn, ClassScan scan, Outliner outliner,
+			boolean preserveFrames) {
+		/* Once the calls were outlined by slicing, the remaining calls of the method are sliced as well */
+		if (outliner != null && outlineSliced(className, mn, scan, outliner))
+			outliner = null;
+		Collection<DefUseBasicValue> nullsafeCalls = outliner == null ? slice(className, mn, scan) : null;
+		if (nullsafeCalls == null)
+			nullsafeCalls = analyzeNullsafeCalls(className, mn, scan, outliner);
+		Map<LabelNode, Object> labels = new HashMap<LabelNode, Object>();
+		ImplicitNullChecks implicit = implicitChecks != null && implicitChecks.matches(className)
+				? new ImplicitNullChecks(className, mn)
+				: null;
+		boolean framesValid = true;
+		for (DefUseBasicValue call : nullsafeCalls)
+			framesValid &= call.makeNullSafe(mn, labels, profile ? className : null, implicit);
+		if (implicit != null)
+			implicit.finish(mn);
+		if (preserveFrames && (!framesValid || !StackMapFrames.insert(className, mn, labels, implicit)))
+			throw new FramesNotPreservedException();
+		return nullsafeCalls.size();
+	}
+
+	/**
+	 * Return the values of the __nullsafe(...) calls of the given method from the slices of their arguments, or
+	 * <code>null</code> if the control flow of the method requires analyzing it as a whole.
+	 */
+	private Collection<DefUseBasicValue> slice(String className, MethodNode mn, ClassScan scan) {
+		if (!sliceArguments)
+			return null;
+		long start = System.nanoTime();
+		try {
+			List<DefUseBasicValue> nullsafeCalls = new ArgumentSlicer(className, mn, scan).nullsafeCalls();
+			if (nullsafeCalls != null)
+				stats.methodsSliced.increment();
+			return nullsafeCalls;
+		} finally {
+			stats.analyzed(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Move the __nullsafe(...) calls of the given method into helper methods, with the instructions of their arguments
+	 * found by the {@link ArgumentSlicer}, so that methods which grew too large are not analyzed as a whole. Return
+	 * <code>false</code> if the control flow of the method requires analyzing it to find them.
+	 */
+	private boolean outlineSliced(String className, MethodNode mn, ClassScan scan, Outliner outliner) {
+		if (!sliceArguments)
+			return false;
+		long start = System.nanoTime();
+		try {
+			Map<MethodInsnNode, AbstractInsnNode> starts = new ArgumentSlicer(className, mn, scan).argumentStarts();
+			if (starts == null)
+				return false;
+			outliner.outline(mn, starts);
+			return true;
+		} finally {
+			stats.analyzed(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Analyze the whole method and return the values of its __nullsafe(...) calls, with their default values
+	 * located, after moving them into helper methods first if an {@link Outliner} is given.
+	 */
+	private Collection<DefUseBasicValue> analyzeNullsafeCalls(String className, MethodNode mn, ClassScan scan,
+			Outliner outliner) {
+		Analyzer<BasicValue> analyzer = new DefUseAnalyzer((mn.access & ACC_STATIC) == 0, className, scan);
+		Frame<BasicValue>[] frames = analyze(analyzer, className, mn);
+		Collection<DefUseBasicValue> nullsafeCalls = nullsafeCalls(frames);
+		if (outliner != null) {
+			List<MethodInsnNode> calls = new ArrayList<MethodInsnNode>();
+			for (DefUseBasicValue call : nullsafeCalls)
+				calls.add((MethodInsnNode) call.node);
+			if (outliner.outline(mn, frames, calls) > 0) {
+				analyzer = new DefUseAnalyzer((mn.access & ACC_STATIC) == 0, className, scan);
+				frames = analyze(analyzer, className, mn);
+				nullsafeCalls = nullsafeCalls(frames);
+			}
+		}
+		for (DefUseBasicValue call : nullsafeCalls)
+			call.locateDefault(mn, frames);
+		return nullsafeCalls;
+	}
+
+	private Frame<BasicValue>[] analyze(Analyzer<BasicValue> analyzer, String className, MethodNode mn) {
+		long start = System.nanoTime();
+		try {
+			return analyzer.analyze(className, mn);
+		} catch (AnalyzerException e) {
+			throw new RuntimeException("Could not analyze method", e);
+		} finally {
+			stats.analyzed(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Return the values of all __nullsafe(...) calls. The value of a call can be on
+	 * the stack of many frames, so make sure to return each call only once. The calls
+	 * are returned in the order of the frames, so that they are rewritten in the same
+	 * order in every run.
+	 */
+	private static Collection<DefUseBasicValue> nullsafeCalls(Frame<BasicValue>[] frames) {
+		List<DefUseBasicValue> nullsafeCalls = new ArrayList<DefUseBasicValue>();
+		Map<DefUseBasicValue, Boolean> seen = new IdentityHashMap<DefUseBasicValue, Boolean>();
+		for (int i = frames.length - 1; i >= 0; i--) {
+			Frame<BasicValue> f = frames[i];
+			if (f == null || f.getStackSize() == 0)
+				continue;
+			for (int s = 0; s < f.getStackSize(); s++) {
+				BasicValue value = f.getStack(s);
+				if (!(value instanceof DefUseBasicValue))
+					continue;
+				DefUseBasicValue val = (DefUseBasicValue) value;
+				if (!val.isNullsafeCall())
+					continue;
+				if (seen.put(val, Boolean.TRUE) == null)
+					nullsafeCalls.add(val);
+			}
+		}
+		return nullsafeCalls;
+	}
+
 	public static void premain(String agentArgs, Instrumentation instrumentation) {
-		boolean withTrace = agentArgs != null && agentArgs.contains("t");
-		instrumentation.addTransformer(new Agent(withTrace));
+		AgentOptions options = AgentOptions.parse(agentArgs);
+		/* The null-checks of the profile mode must count their hits in this agent from any class loader */
+		if ((options.profile || options.profileFile != null) && !BootHooks.install(instrumentation)) {
+			System.err.println("The nullsafe agent cannot profile, because its hooks are not on the bootstrap class"
+					+ " path");
+			options.profile = false;
+			options.profileFile = null;
+		}
+		Agent agent = new Agent(options);
+		if (options.lazy && !instrumentation.isRetransformClassesSupported()) {
+			System.err.println("The nullsafe agent cannot run in lazy mode, because the JVM does not support retransforming"
+					+ " classes");
+			agent.lazy = false;
+		}
+		/* The traps of the lazy mode must reach this agent from any class loader */
+		if (agent.lazy && !BootHooks.install(instrumentation)) {
+			System.err.println("The nullsafe agent cannot run in lazy mode, because its hooks are not on the bootstrap"
+					+ " class path");
+			agent.lazy = false;
+		}
+		if (agent.diagnostics != null)
+			agent.diagnostics.start();
+		if (options.profileFile != null)
+			NullProfile.startDumping(options.profileFile);
+		if (agent.lazy) {
+			new LazyTransformer(instrumentation, agent.stats).start();
+			instrumentation.addTransformer(agent, true);
+		} else {
+			instrumentation.addTransformer(agent);
+		}
+		if (options.jmx)
+			agent.stats.registerLater();
 	}
 
 }
@@ -0,0 +1,208 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Options of the {@link Agent}.
+ * <p>
+ * Options are given as the agent arguments in the form
+ * <code>-javaagent:nullsafe.jar=key1=value1,key2=value2,flag</code> and/or in a properties file referenced by the
+ * <code>config</code> option. Options which accept a list of values can be repeated in the agent arguments, or be given
+ * as a comma-separated list in the properties file. The supported options are:
+ * <ul>
+ * <li><code>include</code>: package prefix of classes to transform
+ * <li><code>exclude</code>: package prefix of classes not to transform (see {@link PackageFilter})
+ * <li><code>config</code>: path of a properties file with further options
+ * <li><code>trace</code> (or <code>t</code>): print all transformed classes to <code>System.out</code>
+ * <li><code>frames</code>: <code>preserve</code> (the default) to keep the existing stack map frames of transformed
+ * methods and only add frames where needed, or <code>compute</code> to always compute all frames of transformed classes
+ * <li><code>jmx</code>: whether to register the {@link AgentStatsMBean} from a background thread once the agent was
+ * added, which starts the platform MBean server (default: <code>false</code>)
+ * <li><code>lazy</code>: only insert a trap into each method with <code>__nullsafe(...)</code> calls when its class is
+ * loaded, and rewrite the class when one of them is called first (see {@link LazyTransformer}, default:
+ * <code>false</code>)
+ * <li><code>budget</code>: the size in bytes of the bytecode of a method above which its <code>__nullsafe(...)</code>
+ * calls are moved into helper methods, or <code>0</code> to never move them (default: HotSpot's HugeMethodLimit of
+ * {@value CodeSize#HUGE_METHOD_LIMIT}). Calls are never moved out of class files older than Java 7 (version 51),
+ * whose methods are rewritten in place regardless of their size.
+ * <li><code>cache</code>: directory in which to keep the transformed classes across restarts of the JVM (see
+ * {@link TransformCache}, default: none)
+ * <li><code>diagnostics</code>: file to which to write the instructions of each transformed method before and after
+ * its rewrite as a diff, in the background (see {@link Diagnostics}, default: none)
+ * <li><code>diagnose</code>: package prefix of classes whose methods are written to the <code>diagnostics</code> file
+ * (default: all transformed classes)
+ * <li><code>profile</code>: count how often each link of the <code>__nullsafe(...)</code> expressions is
+ * <code>null</code> (see {@link NullProfile}, default: <code>false</code>)
+ * <li><code>profileDump</code>: file to which to write the counts of the <code>profile</code> periodically and when
+ * the JVM exits, which implies <code>profile</code> (default: none)
+ * <li><code>implicitChecks</code>: package prefix of classes whose field and array dereferences in
+ * <code>__nullsafe(...)</code> expressions are guarded by the exception table instead of explicit null-checks, or
+ * <code>*</code> for all classes (see {@link ImplicitNullChecks}, default: none)
+ * <li><code>jarIndex</code>: whether to reject all classes of jars without any <code>__nullsafe(...)</code> calls
+ * once they were scanned in the background (see {@link JarIndex}, default: <code>true</code>)
+ * </ul>
+ */
+class AgentOptions {
+
+	/**
+	 * Classes which are guaranteed not to contain <code>__nullsafe(...)</code> calls. These are excluded by default to
+	 * speed up the transformation process, but can be included again explicitly.
+	 */
+	static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(Arrays.asList("java/", "javax/",
+			"com/sun/", "com/ibm/", "sun/", "jdk/", "org/hibernate/", "org/apache/"));
+
+	boolean trace;
+	boolean computeFrames;
+	boolean jmx;
+	boolean lazy;
+	boolean profile;
+	boolean jarIndex = true;
+	int budget = CodeSize.HUGE_METHOD_LIMIT;
+	File cacheDir;
+	File diagnosticsFile;
+	File profileFile;
+	final List<String> includes = new ArrayList<String>();
+	final List<String> excludes = new ArrayList<String>(DEFAULT_EXCLUDES);
+	final List<String> diagnosed = new ArrayList<String>();
+	final List<String> implicitChecks = new ArrayList<String>();
+
+	/**
+	 * Parse the given agent arguments, which may be <code>null</code>.
+	 *
+	 * @throws IllegalArgumentException if an option is unknown or has an invalid value
+	 */
+	static AgentOptions parse(String agentArgs) {
+		AgentOptions options = new AgentOptions();
+		if (agentArgs == null)
+			return options;
+		for (String arg : agentArgs.split(",")) {
+			arg = arg.trim();
+			if (arg.length() == 0)
+				continue;
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				options.set(arg, "true");
+			else
+				options.set(arg.substring(0, eq).trim(), arg.substring(eq + 1).trim());
+		}
+		return options;
+	}
+
+	private void load(String path) {
+		Properties properties = new Properties();
+		try {
+			InputStream is = new FileInputStream(path);
+			try {
+				properties.load(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not read options file '" + path + "': " + e.getMessage());
+		}
+		for (Map.Entry<Object, Object> e : properties.entrySet()) {
+			String key = ((String) e.getKey()).trim();
+			String value = ((String) e.getValue()).trim();
+			if ("include".equals(key) || "exclude".equals(key) || "diagnose".equals(key)
+					|| "implicitChecks".equals(key)) {
+				for (String v : value.split("[,\\s]+")) {
+					if (v.length() > 0)
+						set(key, v);
+				}
+			} else {
+				set(key, value);
+			}
+		}
+	}
+
+	private void set(String key, String value) {
+		if ("t".equals(key) || "trace".equals(key))
+			trace = parseBoolean(key, value);
+		else if ("include".equals(key))
+			includes.add(value);
+		else if ("exclude".equals(key))
+			excludes.add(value);
+		else if ("frames".equals(key))
+			computeFrames = parseFrames(value);
+		else if ("jmx".equals(key))
+			jmx = parseBoolean(key, value);
+		else if ("lazy".equals(key))
+			lazy = parseBoolean(key, value);
+		else if ("budget".equals(key))
+			budget = parseBudget(value);
+		else if ("cache".equals(key))
+			cacheDir = parseFile(key, value);
+		else if ("diagnostics".equals(key))
+			diagnosticsFile = parseFile(key, value);
+		else if ("diagnose".equals(key))
+			diagnosed.add(value);
+		else if ("profile".equals(key))
+			profile = parseBoolean(key, value);
+		else if ("profileDump".equals(key))
+			profileFile = parseFile(key, value);
+		else if ("implicitChecks".equals(key))
+			implicitChecks.add(value);
+		else if ("jarIndex".equals(key))
+			jarIndex = parseBoolean(key, value);
+		else if ("config".equals(key))
+			load(value);
+		else
+			throw new IllegalArgumentException("Unknown nullsafe agent option: " + key);
+	}
+
+	private static boolean parseBoolean(String key, String value) {
+		if ("true".equalsIgnoreCase(value))
+			return true;
+		if ("false".equalsIgnoreCase(value))
+			return false;
+		throw new IllegalArgumentException("Invalid value for nullsafe agent option '" + key + "': " + value);
+	}
+
+	private static int parseBudget(String value) {
+		try {
+			int budget = Integer.parseInt(value);
+			if (budget >= 0)
+				return budget;
+		} catch (NumberFormatException e) {
+			/* Report below */
+		}
+		throw new IllegalArgumentException("Invalid value for nullsafe agent option 'budget': " + value);
+	}
+
+	private static File parseFile(String key, String value) {
+		if (value.length() == 0)
+			throw new IllegalArgumentException("Invalid value for nullsafe agent option '" + key + "': " + value);
+		return new File(value);
+	}
+
+	private static boolean parseFrames(String value) {
+		if ("compute".equals(value))
+			return true;
+		if ("preserve".equals(value))
+			return false;
+		throw new IllegalArgumentException("Invalid value for nullsafe agent option 'frames': " + value);
+	}
+
+	/**
+	 * Build the {@link PackageFilter} of all classes to transform. If there are explicit includes, all other classes
+	 * are excluded by default.
+	 */
+	PackageFilter packageFilter() {
+		return new PackageFilter(includes, excludes, includes.isEmpty());
+	}
+
+	/**
+	 * Build the {@link PackageFilter} of the classes to diagnose. Without explicit prefixes, all classes are diagnosed.
+	 */
+	PackageFilter diagnosticsFilter() {
+		return new PackageFilter(diagnosed, Collections.<String> emptyList(), diagnosed.isEmpty());
+	}
+
+	/**
+	 * Build the {@link PackageFilter} of the classes whose dereferences are guarded by the exception table.
+	 */
+	PackageFilter implicitChecksFilter() {
+		return new PackageFilter(implicitChecks, Collections.<String> emptyList(), false);
+	}
+}
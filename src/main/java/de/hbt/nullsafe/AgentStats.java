@@ -0,0 +1,217 @@
+package de.hbt.nullsafe;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.*;
+
+/**
+ * Statistics about the classes transformed by an {@link Agent}, which are cheap enough to be always recorded.
+ * <p>
+ * All counters are {@link StripedCounter}s so that concurrent class loading does not contend on them. Only recording
+ * one of the slowest classes synchronizes, which happens rarely after the first few classes.
+ */
+class AgentStats implements AgentStatsMBean {
+
+	static final String OBJECT_NAME = "de.hbt.nullsafe:type=Agent";
+
+	private static final int SLOWEST_CLASSES = 10;
+
+	final StripedCounter classesSeen = new StripedCounter();
+	final StripedCounter classesRejectedByFilter = new StripedCounter();
+	final StripedCounter classesRejectedByJarIndex = new StripedCounter();
+	final StripedCounter jarsScanned = new StripedCounter();
+	final StripedCounter jarsWithoutNullsafe = new StripedCounter();
+	final StripedCounter classesWithoutNullsafe = new StripedCounter();
+	final StripedCounter classesTransformed = new StripedCounter();
+	final StripedCounter classesFromCache = new StripedCounter();
+	final StripedCounter classesWithComputedFrames = new StripedCounter();
+	final StripedCounter methodsTransformed = new StripedCounter();
+	final StripedCounter callSitesRewritten = new StripedCounter();
+	final StripedCounter methodsOutlined = new StripedCounter();
+	final StripedCounter methodsSliced = new StripedCounter();
+	final StripedCounter codeBytesAdded = new StripedCounter();
+	final StripedCounter classesDeferred = new StripedCounter();
+	final StripedCounter classesRetransformed = new StripedCounter();
+	final StripedCounter retransformBatches = new StripedCounter();
+	final StripedCounter diagnosticsDropped = new StripedCounter();
+	private final StripedCounter transformNanos = new StripedCounter();
+	private final StripedCounter maxTransformNanos = new StripedCounter();
+	private final StripedCounter analysisNanos = new StripedCounter();
+	private final StripedCounter maxAnalysisNanos = new StripedCounter();
+	private final StripedCounter toByteArrayNanos = new StripedCounter();
+	private final StripedCounter maxToByteArrayNanos = new StripedCounter();
+
+	/* The slowest classes, sorted by descending time */
+	private final String[] slowestNames = new String[SLOWEST_CLASSES];
+	private final long[] slowestNanos = new long[SLOWEST_CLASSES];
+	/* The time a class must exceed to be one of the slowest classes */
+	private volatile long slowestThreshold = -1L;
+
+	/**
+	 * Register the statistics with the platform MBean server.
+	 */
+	void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	/**
+	 * Register this MBean from a daemon thread, so that starting the platform MBean server, which loads hundreds of
+	 * classes and initializes <code>java.util.logging</code>, neither delays the start of the application nor happens
+	 * before the application configured its logging.
+	 */
+	void registerLater() {
+		Thread thread = new Thread("nullsafe-jmx") {
+			@Override
+			public void run() {
+				try {
+					register();
+				} catch (Exception e) {
+					System.err.println("Could not register nullsafe agent MBean: " + e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void transformed(String className, long nanos) {
+		transformNanos.add(nanos);
+		maxTransformNanos.max(nanos);
+		if (nanos > slowestThreshold)
+			addSlowest(className, nanos);
+	}
+
+	private synchronized void addSlowest(String className, long nanos) {
+		int i = SLOWEST_CLASSES - 1;
+		if (nanos <= slowestNanos[i] && slowestNames[i] != null)
+			return;
+		for (; i > 0 && (slowestNames[i - 1] == null || slowestNanos[i - 1] < nanos); i--) {
+			slowestNames[i] = slowestNames[i - 1];
+			slowestNanos[i] = slowestNanos[i - 1];
+		}
+		slowestNames[i] = className;
+		slowestNanos[i] = nanos;
+		if (slowestNames[SLOWEST_CLASSES - 1] != null)
+			slowestThreshold = slowestNanos[SLOWEST_CLASSES - 1];
+	}
+
+	void analyzed(long nanos) {
+		analysisNanos.add(nanos);
+		maxAnalysisNanos.max(nanos);
+	}
+
+	void written(long nanos) {
+		toByteArrayNanos.add(nanos);
+		maxToByteArrayNanos.max(nanos);
+	}
+
+	public long getClassesSeen() {
+		return classesSeen.sum();
+	}
+
+	public long getClassesRejectedByFilter() {
+		return classesRejectedByFilter.sum();
+	}
+
+	public long getClassesRejectedByJarIndex() {
+		return classesRejectedByJarIndex.sum();
+	}
+
+	public long getJarsScanned() {
+		return jarsScanned.sum();
+	}
+
+	public long getJarsWithoutNullsafe() {
+		return jarsWithoutNullsafe.sum();
+	}
+
+	public long getClassesWithoutNullsafe() {
+		return classesWithoutNullsafe.sum();
+	}
+
+	public long getClassesTransformed() {
+		return classesTransformed.sum();
+	}
+
+	public long getClassesFromCache() {
+		return classesFromCache.sum();
+	}
+
+	public long getClassesWithComputedFrames() {
+		return classesWithComputedFrames.sum();
+	}
+
+	public long getMethodsTransformed() {
+		return methodsTransformed.sum();
+	}
+
+	public long getCallSitesRewritten() {
+		return callSitesRewritten.sum();
+	}
+
+	public long getMethodsOutlined() {
+		return methodsOutlined.sum();
+	}
+
+	public long getMethodsSliced() {
+		return methodsSliced.sum();
+	}
+
+	public long getCodeBytesAdded() {
+		return codeBytesAdded.sum();
+	}
+
+	public long getClassesDeferred() {
+		return classesDeferred.sum();
+	}
+
+	public long getClassesRetransformed() {
+		return classesRetransformed.sum();
+	}
+
+	public long getRetransformBatches() {
+		return retransformBatches.sum();
+	}
+
+	public long getDiagnosticsDropped() {
+		return diagnosticsDropped.sum();
+	}
+
+	public long getTransformNanos() {
+		return transformNanos.sum();
+	}
+
+	public long getMaxTransformNanos() {
+		return maxTransformNanos.max();
+	}
+
+	public long getAnalysisNanos() {
+		return analysisNanos.sum();
+	}
+
+	public long getMaxAnalysisNanos() {
+		return maxAnalysisNanos.max();
+	}
+
+	public long getToByteArrayNanos() {
+		return toByteArrayNanos.sum();
+	}
+
+	public long getMaxToByteArrayNanos() {
+		return maxToByteArrayNanos.max();
+	}
+
+	public synchronized String[] getSlowestClasses() {
+		int n = 0;
+		while (n < SLOWEST_CLASSES && slowestNames[n] != null)
+			n++;
+		String[] result = new String[n];
+		for (int i = 0; i < n; i++)
+			result[i] = slowestNames[i].replace('/', '.') + ": " + slowestNanos[i];
+		return result;
+	}
+
+	public String[] getNullHits() {
+		return NullProfile.snapshot();
+	}
+}
@@ -0,0 +1,204 @@
+package de.hbt.nullsafe;
+
+/**
+ * Management interface of the statistics about the classes transformed by the agent, registered as
+ * <code>de.hbt.nullsafe:type=Agent</code> if the agent was started with the <code>jmx</code> option.
+ * <p>
+ * All times are in nanoseconds.
+ */
+public interface AgentStatsMBean {
+
+	/**
+	 * Return the number of classes passed to the agent.
+	 *
+	 * @return the number of classes seen
+	 */
+	long getClassesSeen();
+
+	/**
+	 * Return the number of classes which were not transformed because of the included and excluded packages.
+	 *
+	 * @return the number of classes rejected by package
+	 */
+	long getClassesRejectedByFilter();
+
+	/**
+	 * Return the number of classes which were not transformed because they were loaded from a jar which does not
+	 * contain any <code>__nullsafe(...)</code> calls.
+	 *
+	 * @return the number of classes rejected by their jar
+	 */
+	long getClassesRejectedByJarIndex();
+
+	/**
+	 * Return the number of scans of jars from which classes were loaded, including scans of jars which changed.
+	 *
+	 * @return the number of jar scans
+	 */
+	long getJarsScanned();
+
+	/**
+	 * Return the number of scanned jars which do not contain any <code>__nullsafe(...)</code> calls, or only classes
+	 * already transformed by the tool.
+	 *
+	 * @return the number of jars without calls
+	 */
+	long getJarsWithoutNullsafe();
+
+	/**
+	 * Return the number of classes which were scanned but do not contain any <code>__nullsafe(...)</code> calls.
+	 *
+	 * @return the number of classes without calls
+	 */
+	long getClassesWithoutNullsafe();
+
+	/**
+	 * Return the number of classes whose <code>__nullsafe(...)</code> calls were rewritten, including the deferred
+	 * classes which were retransformed, but not the classes read from the cache.
+	 *
+	 * @return the number of transformed classes
+	 */
+	long getClassesTransformed();
+
+	/**
+	 * Return the number of classes whose result was read from the cache directory instead of transforming them again.
+	 *
+	 * @return the number of classes read from the cache
+	 */
+	long getClassesFromCache();
+
+	/**
+	 * Return the number of transformed classes whose stack map frames had to be computed, because the existing frames
+	 * could not be preserved.
+	 *
+	 * @return the number of classes with computed frames
+	 */
+	long getClassesWithComputedFrames();
+
+	/**
+	 * Return the number of methods whose <code>__nullsafe(...)</code> calls were rewritten.
+	 *
+	 * @return the number of transformed methods
+	 */
+	long getMethodsTransformed();
+
+	/**
+	 * Return the number of rewritten <code>__nullsafe(...)</code> calls.
+	 *
+	 * @return the number of rewritten calls
+	 */
+	long getCallSitesRewritten();
+
+	/**
+	 * Return the number of methods which grew beyond the budget, so that their <code>__nullsafe(...)</code> calls were
+	 * moved into helper methods.
+	 *
+	 * @return the number of outlined methods
+	 */
+	long getMethodsOutlined();
+
+	/**
+	 * Return the number of transformed methods whose <code>__nullsafe(...)</code> calls were rewritten by only
+	 * interpreting the code of their arguments, without analyzing the whole method.
+	 *
+	 * @return the number of sliced methods
+	 */
+	long getMethodsSliced();
+
+	/**
+	 * Return the total number of bytes by which the rewrite grew the bytecode of the transformed methods, not counting
+	 * the helper methods.
+	 *
+	 * @return the number of added bytes
+	 */
+	long getCodeBytesAdded();
+
+	/**
+	 * Return the number of classes which only got traps at the start of their methods when they were loaded, because
+	 * the agent runs in lazy mode.
+	 *
+	 * @return the number of deferred classes
+	 */
+	long getClassesDeferred();
+
+	/**
+	 * Return the number of deferred classes which were retransformed when one of their methods was called.
+	 *
+	 * @return the number of retransformed classes
+	 */
+	long getClassesRetransformed();
+
+	/**
+	 * Return the number of calls of <code>Instrumentation.retransformClasses</code>, each of which may retransform many
+	 * deferred classes.
+	 *
+	 * @return the number of retransformation batches
+	 */
+	long getRetransformBatches();
+
+	/**
+	 * Return the number of transformed methods whose diff was not written by the diagnostics, because its queue was
+	 * full.
+	 *
+	 * @return the number of dropped diffs
+	 */
+	long getDiagnosticsDropped();
+
+	/**
+	 * Return the total time spent on classes which passed the package filter, including the time to reject classes
+	 * without <code>__nullsafe(...)</code> calls.
+	 *
+	 * @return the total transformation time
+	 */
+	long getTransformNanos();
+
+	/**
+	 * Return the longest time spent on a single class which passed the package filter.
+	 *
+	 * @return the maximum transformation time
+	 */
+	long getMaxTransformNanos();
+
+	/**
+	 * Return the total time spent on data flow analysis of the transformed methods.
+	 *
+	 * @return the total analysis time
+	 */
+	long getAnalysisNanos();
+
+	/**
+	 * Return the longest time spent on the data flow analysis of a single method.
+	 *
+	 * @return the maximum analysis time
+	 */
+	long getMaxAnalysisNanos();
+
+	/**
+	 * Return the total time spent on writing the transformed classes.
+	 *
+	 * @return the total time to write classes
+	 */
+	long getToByteArrayNanos();
+
+	/**
+	 * Return the longest time spent on writing a single transformed class.
+	 *
+	 * @return the maximum time to write a class
+	 */
+	long getMaxToByteArrayNanos();
+
+	/**
+	 * Return the slowest classes to transform as <code>"name: nanos"</code>, the slowest first.
+	 *
+	 * @return the names and times of the slowest classes
+	 */
+	String[] getSlowestClasses();
+
+	/**
+	 * Return how often each link of the <code>__nullsafe(...)</code> expressions was <code>null</code> in profile mode,
+	 * as <code>"hits class method line position link"</code> separated by tabs, the most frequent first.
+	 *
+	 * @return the null counts of the links
+	 */
+	String[] getNullHits();
+}
@@ -0,0 +1,407 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.*;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+/**
+ * Builds the definition-use chains of the arguments of the <code>__nullsafe(...)</code> calls of a method by walking
+ * backwards from each call, instead of analyzing the whole method with the {@link Agent.DefUseAnalyzer}, which
+ * allocates a frame for every instruction.
+ * <p>
+ * The code of an argument is found by counting the values which the instructions before the call push onto the
+ * stack, and is then interpreted with the {@link Agent.DefUseInterpreter} in a single frame. This only works for
+ * straight-line code: if the code of an argument contains a jump target, a jump or a stack manipulation other than
+ * <code>DUP</code>, the whole method must be analyzed.
+ * <p>
+ * Whether a loaded local variable is known to be not null depends on the code before the argument. A single pass over
+ * the method records whether the local variable at each <code>ALOAD</code> is a parameter, was tested to be not null
+ * or was stored by a known <code>ASTORE</code>, following jumps to targets with a single predecessor. Where control
+ * flow merges, its definition is unknown, which only requires the whole method to be analyzed if the nullness of the
+ * loaded value decides whether a null check is inserted.
+ */
+class ArgumentSlicer {
+
+	/* The definition of a local variable which was not stored in the method, such as a parameter */
+	private static final Object PARAMETER = new Object();
+	/* The definition of a local variable which was tested to be not null */
+	private static final Object TESTED_NON_NULL = new Object();
+	/* The definition of a local variable after control flow merged */
+	private static final Object UNKNOWN = new Object();
+	/* Stored values are only resolved up to this number of nested stores */
+	private static final int MAX_DEPTH = 64;
+
+	private static final BasicValue NON_NULL_VALUE = new Agent.DefUseBasicValue(null, BasicValue.REFERENCE_VALUE,
+			Collections.<BasicValue>emptyList(), false, false, true, -1);
+	private static final BasicValue UNKNOWN_VALUE = new BasicValue(Type.getObjectType("java/lang/Object"));
+	private static final BasicValue[] LOADED_VALUES = { BasicValue.INT_VALUE, BasicValue.LONG_VALUE,
+			BasicValue.FLOAT_VALUE, BasicValue.DOUBLE_VALUE };
+
+	private final MethodNode mn;
+	private final boolean instanceMethod;
+	private final SliceInterpreter interpreter;
+	/* The number of jumps, switches and exception handlers to each jump target */
+	private final Map<LabelNode, Integer> jumpTargets = new HashMap<LabelNode, Integer>();
+	/* The definition of the local variable of each ALOAD, except of this */
+	private final Map<AbstractInsnNode, Object> definitions = new IdentityHashMap<AbstractInsnNode, Object>();
+	/* The values stored by the ASTOREs which were resolved as definitions */
+	private final Map<AbstractInsnNode, BasicValue> storedValues = new IdentityHashMap<AbstractInsnNode, BasicValue>();
+	private final List<MethodInsnNode> calls = new ArrayList<MethodInsnNode>();
+
+	/**
+	 * Interpreter which additionally tracks the values whose nullness depends on an unknown definition.
+	 */
+	private static class SliceInterpreter extends Agent.DefUseInterpreter {
+		private final Map<BasicValue, Boolean> uncertain = new IdentityHashMap<BasicValue, Boolean>();
+
+		SliceInterpreter(boolean instanceMethod, String owner, ClassScan scan) {
+			super(instanceMethod, owner, scan);
+			uncertain.put(UNKNOWN_VALUE, Boolean.TRUE);
+		}
+
+		@Override
+		public BasicValue copyOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+			return propagate(value, super.copyOperation(insn, value));
+		}
+
+		@Override
+		public BasicValue unaryOperation(AbstractInsnNode insn, BasicValue value) throws AnalyzerException {
+			BasicValue result = super.unaryOperation(insn, value);
+			return insn.getOpcode() == CHECKCAST ? propagate(value, result) : result;
+		}
+
+		private BasicValue propagate(BasicValue value, BasicValue result) {
+			/* A value known to be not null, such as this, does not depend on the nullness of its source */
+			if (uncertain.containsKey(value) && !Agent.DefUseBasicValue.isNonNull(result))
+				uncertain.put(result, Boolean.TRUE);
+			return result;
+		}
+	}
+
+	ArgumentSlicer(String owner, MethodNode mn, ClassScan scan) {
+		this.mn = mn;
+		this.instanceMethod = (mn.access & ACC_STATIC) == 0;
+		this.interpreter = new SliceInterpreter(instanceMethod, owner, scan);
+	}
+
+	/**
+	 * Return the values of all __nullsafe(...) calls of the method in the order of the calls, with their default
+	 * values located, or <code>null</code> if the whole method must be analyzed.
+	 */
+	List<Agent.DefUseBasicValue> nullsafeCalls() {
+		if (!scan())
+			return null;
+		List<Agent.DefUseBasicValue> values = new ArrayList<Agent.DefUseBasicValue>(calls.size());
+		try {
+			for (MethodInsnNode call : calls) {
+				Agent.DefUseBasicValue value = slice(call);
+				if (value == null)
+					return null;
+				values.add(value);
+			}
+		} catch (AnalyzerException e) {
+			/* Let the analysis of the whole method report it */
+			return null;
+		}
+		return values;
+	}
+
+	/**
+	 * Return the first instruction of the arguments of each __nullsafe(...) call of the method whose arguments are
+	 * straight-line code, in the order of the calls, or <code>null</code> if the whole method must be analyzed. This
+	 * tells the {@link Outliner} which instructions to move, without analyzing the method.
+	 */
+	Map<MethodInsnNode, AbstractInsnNode> argumentStarts() {
+		if (!scan())
+			return null;
+		Map<MethodInsnNode, AbstractInsnNode> starts = new LinkedHashMap<MethodInsnNode, AbstractInsnNode>();
+		for (MethodInsnNode call : calls) {
+			AbstractInsnNode start = start(call, argumentCount(call.desc));
+			if (start != null)
+				starts.put(call, start);
+		}
+		return starts;
+	}
+
+	/**
+	 * Collect the jump targets, the __nullsafe(...) calls and the definitions of the loaded local variables. Return
+	 * <code>false</code> if the method uses subroutines or has __nullsafe(...) calls in unreachable code, which the
+	 * analysis of the whole method skips.
+	 */
+	private boolean scan() {
+		for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+			/* The handler merges the frames of all instructions in the range */
+			addJumpTarget(tcb.handler);
+			addJumpTarget(tcb.handler);
+		}
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof JumpInsnNode) {
+				if (insn.getOpcode() == JSR)
+					return false;
+				addJumpTarget(((JumpInsnNode) insn).label);
+			} else if (insn instanceof TableSwitchInsnNode) {
+				addJumpTarget(((TableSwitchInsnNode) insn).dflt);
+				for (LabelNode label : ((TableSwitchInsnNode) insn).labels)
+					addJumpTarget(label);
+			} else if (insn instanceof LookupSwitchInsnNode) {
+				addJumpTarget(((LookupSwitchInsnNode) insn).dflt);
+				for (LabelNode label : ((LookupSwitchInsnNode) insn).labels)
+					addJumpTarget(label);
+			}
+		}
+		Object[] locals = new Object[mn.maxLocals];
+		Arrays.fill(locals, PARAMETER);
+		/* The definitions at the jump targets with a single jump to them */
+		Map<LabelNode, Object[]> branches = new HashMap<LabelNode, Object[]>();
+		boolean reachable = true;
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof LabelNode) {
+				Integer jumps = jumpTargets.get(insn);
+				if (jumps == null)
+					continue;
+				Object[] branch = branches.remove(insn);
+				if (!reachable && jumps.intValue() == 1 && branch != null)
+					locals = branch;
+				else
+					Arrays.fill(locals, UNKNOWN);
+				reachable = true;
+				continue;
+			}
+			int opcode = insn.getOpcode();
+			if (opcode < 0)
+				continue;
+			if (!reachable) {
+				if (insn instanceof MethodInsnNode && isNullsafeCall((MethodInsnNode) insn))
+					return false;
+				continue;
+			}
+			switch (insn.getType()) {
+			case AbstractInsnNode.VAR_INSN:
+				int var = ((VarInsnNode) insn).var;
+				if (opcode == ALOAD && (var != 0 || !instanceMethod))
+					definitions.put(insn, locals[var]);
+				else if (opcode == ASTORE)
+					locals[var] = insn;
+				else if (opcode > ALOAD) {
+					locals[var] = UNKNOWN;
+					if (opcode == LSTORE || opcode == DSTORE)
+						locals[var + 1] = UNKNOWN;
+				} else if (opcode == RET)
+					return false;
+				break;
+			case AbstractInsnNode.JUMP_INSN:
+				JumpInsnNode jump = (JumpInsnNode) insn;
+				/* Like the Agent.DefUseFrame, only trust the local if it was loaded immediately before the test */
+				int tested = (opcode == IFNULL || opcode == IFNONNULL) && jump.getPrevious() != null
+						&& jump.getPrevious().getOpcode() == ALOAD ? ((VarInsnNode) jump.getPrevious()).var : -1;
+				if (jumpTargets.get(jump.label).intValue() == 1) {
+					Object[] branch = locals.clone();
+					if (tested >= 0 && opcode == IFNONNULL)
+						branch[tested] = TESTED_NON_NULL;
+					branches.put(jump.label, branch);
+				}
+				if (opcode == GOTO)
+					reachable = false;
+				else if (tested >= 0 && opcode == IFNULL)
+					locals[tested] = TESTED_NON_NULL;
+				break;
+			case AbstractInsnNode.TABLESWITCH_INSN:
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+				reachable = false;
+				break;
+			case AbstractInsnNode.METHOD_INSN:
+				if (isNullsafeCall((MethodInsnNode) insn))
+					calls.add((MethodInsnNode) insn);
+				break;
+			default:
+				if (opcode >= IRETURN && opcode <= RETURN || opcode == ATHROW)
+					reachable = false;
+			}
+		}
+		return true;
+	}
+
+	private void addJumpTarget(LabelNode label) {
+		Integer jumps = jumpTargets.get(label);
+		jumpTargets.put(label, Integer.valueOf(jumps == null ? 1 : jumps.intValue() + 1));
+	}
+
+	private static boolean isNullsafeCall(MethodInsnNode min) {
+		return min.getOpcode() == INVOKESTATIC && Agent.isNullsafeMethod(min.owner, min.name);
+	}
+
+	/**
+	 * Return the value of the given __nullsafe(...) call, or <code>null</code> if its arguments are not straight-line
+	 * code or whether they need null checks depends on an unknown definition.
+	 */
+	private Agent.DefUseBasicValue slice(MethodInsnNode call) throws AnalyzerException {
+		int arguments = argumentCount(call.desc);
+		AbstractInsnNode start = start(call, arguments);
+		if (start == null)
+			return null;
+		Agent.DefUseBasicValue value = (Agent.DefUseBasicValue) interpret(start, call, 0);
+		for (BasicValue v = value.firstValue(); v instanceof Agent.DefUseBasicValue; v = ((Agent.DefUseBasicValue) v)
+				.firstValue()) {
+			if (interpreter.uncertain.containsKey(v))
+				return null;
+		}
+		if (arguments == 2) {
+			/* Like DefUseBasicValue.locateDefault(), include the labels and line numbers before the default value */
+			AbstractInsnNode defaultStart = start(call, 1);
+			while (defaultStart.getPrevious().getOpcode() < 0)
+				defaultStart = defaultStart.getPrevious();
+			value.setDefaultStart(defaultStart);
+		}
+		return value;
+	}
+
+	/**
+	 * Return the first instruction of the straight-line code right before the given instruction which pushes the
+	 * given number of values onto the stack, or <code>null</code> if there is no such code.
+	 */
+	private AbstractInsnNode start(AbstractInsnNode end, int values) {
+		int needed = values;
+		for (AbstractInsnNode insn = end.getPrevious(); insn != null; insn = insn.getPrevious()) {
+			if (insn.getOpcode() < 0) {
+				if (insn instanceof FrameNode || jumpTargets.containsKey(insn))
+					return null;
+				continue;
+			}
+			int effect = stackEffect(insn);
+			int pushed = effect & 3;
+			/* The code must not push values below the ones it needs, such as a DUP of an earlier value */
+			if (effect < 0 || pushed > needed)
+				return null;
+			needed += (effect >> 2) - pushed;
+			if (needed == 0)
+				return insn;
+		}
+		return null;
+	}
+
+	/**
+	 * Interpret the code from <code>start</code> up to and including <code>end</code> in a new frame and return the
+	 * value on top of its stack.
+	 */
+	private BasicValue interpret(AbstractInsnNode start, AbstractInsnNode end, int depth) throws AnalyzerException {
+		Frame<BasicValue> frame = new Frame<BasicValue>(mn.maxLocals, mn.maxStack);
+		for (AbstractInsnNode insn = start;; insn = insn.getNext()) {
+			int opcode = insn.getOpcode();
+			if (opcode >= ILOAD && opcode <= ALOAD) {
+				/* Locals which were stored within the code keep their value */
+				int var = ((VarInsnNode) insn).var;
+				if (frame.getLocal(var) == null)
+					frame.setLocal(var, opcode == ALOAD ? resolve(definitions.get(insn), depth)
+							: LOADED_VALUES[opcode - ILOAD]);
+			}
+			if (opcode >= 0)
+				frame.execute(insn, interpreter);
+			if (insn == end)
+				return frame.getStack(frame.getStackSize() - 1);
+		}
+	}
+
+	/**
+	 * Return the value of a local variable with the given definition.
+	 */
+	private BasicValue resolve(Object definition, int depth) throws AnalyzerException {
+		if (definition == PARAMETER)
+			return BasicValue.REFERENCE_VALUE;
+		if (definition == TESTED_NON_NULL)
+			return NON_NULL_VALUE;
+		if (!(definition instanceof AbstractInsnNode))
+			return UNKNOWN_VALUE;
+		AbstractInsnNode store = (AbstractInsnNode) definition;
+		BasicValue value = storedValues.get(store);
+		if (value == null) {
+			AbstractInsnNode start = depth < MAX_DEPTH ? start(store, 1) : null;
+			value = start == null ? UNKNOWN_VALUE : interpret(start, store.getPrevious(), depth + 1);
+			storedValues.put(store, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Return the number of values the given instruction pops off the stack, shifted left by two, plus the number of
+	 * values it pushes, or -1 for jumps and stack manipulations which depend on the sizes of the values.
+	 */
+	private static int stackEffect(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		switch (insn.getType()) {
+		case AbstractInsnNode.INSN:
+			if (opcode == NOP)
+				return effect(0, 0);
+			if (opcode <= DCONST_1)
+				return effect(0, 1);
+			if (opcode >= IALOAD && opcode <= SALOAD)
+				return effect(2, 1);
+			if (opcode >= IASTORE && opcode <= SASTORE)
+				return effect(3, 0);
+			if (opcode == POP || opcode == MONITORENTER || opcode == MONITOREXIT)
+				return effect(1, 0);
+			if (opcode == DUP)
+				return effect(1, 2);
+			if (opcode >= IADD && opcode <= DREM || opcode >= ISHL && opcode <= LXOR
+					|| opcode >= LCMP && opcode <= DCMPG)
+				return effect(2, 1);
+			if (opcode >= INEG && opcode <= DNEG || opcode >= I2L && opcode <= I2S || opcode == ARRAYLENGTH)
+				return effect(1, 1);
+			/* POP2, DUP_X1 to SWAP, returns and ATHROW */
+			return -1;
+		case AbstractInsnNode.INT_INSN:
+			return opcode == NEWARRAY ? effect(1, 1) : effect(0, 1);
+		case AbstractInsnNode.VAR_INSN:
+			if (opcode == RET)
+				return -1;
+			return opcode <= ALOAD ? effect(0, 1) : effect(1, 0);
+		case AbstractInsnNode.TYPE_INSN:
+			return opcode == NEW ? effect(0, 1) : effect(1, 1);
+		case AbstractInsnNode.FIELD_INSN:
+			if (opcode == GETSTATIC)
+				return effect(0, 1);
+			if (opcode == PUTSTATIC)
+				return effect(1, 0);
+			return opcode == GETFIELD ? effect(1, 1) : effect(2, 0);
+		case AbstractInsnNode.METHOD_INSN:
+			String descriptor = ((MethodInsnNode) insn).desc;
+			return effect(argumentCount(descriptor) + (opcode == INVOKESTATIC ? 0 : 1), descriptor.endsWith(")V") ? 0
+					: 1);
+		case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+			descriptor = ((InvokeDynamicInsnNode) insn).desc;
+			return effect(argumentCount(descriptor), descriptor.endsWith(")V") ? 0 : 1);
+		case AbstractInsnNode.LDC_INSN:
+			return effect(0, 1);
+		case AbstractInsnNode.IINC_INSN:
+			return effect(0, 0);
+		case AbstractInsnNode.MULTIANEWARRAY_INSN:
+			return effect(((MultiANewArrayInsnNode) insn).dims, 1);
+		default:
+			/* Jumps and switches */
+			return -1;
+		}
+	}
+
+	private static int effect(int popped, int pushed) {
+		return popped << 2 | pushed;
+	}
+
+	/**
+	 * Return the number of arguments of the given method descriptor, counting long and double arguments once.
+	 */
+	private static int argumentCount(String descriptor) {
+		int count = 0;
+		int i = 1;
+		while (descriptor.charAt(i) != ')') {
+			while (descriptor.charAt(i) == '[')
+				i++;
+			if (descriptor.charAt(i++) == 'L')
+				i = descriptor.indexOf(';', i) + 1;
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,127 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.ConstantPoolScanner.*;
+
+import java.io.*;
+import java.lang.instrument.Instrumentation;
+import java.util.jar.*;
+
+/**
+ * Defines a copy of {@link Hooks} on the bootstrap class path, which the code inserted by the agent calls instead of
+ * {@link Hooks} itself.
+ * <p>
+ * The inserted code is resolved by the class loader of the transformed class. A class loader which does not delegate
+ * to its parent first, such as the one of a web application with its own copy of the nullsafe jar, would resolve its
+ * own copy of {@link Hooks}, which is not connected to the running agent. The copy on the bootstrap class path is
+ * renamed to {@link #NAME}, which no copy of the nullsafe jar contains, so that every class loader resolves it to the
+ * same class. The copy is renamed in its constant pool, so that defining it does not load ASM at startup.
+ * <p>
+ * Until the copy is defined, such as for agents created by the {@link Tool} or by tests, the inserted code calls
+ * {@link Hooks} itself.
+ */
+class BootHooks {
+
+	static final String NAME = "de/hbt/nullsafe/boot/Hooks";
+
+	/* The class called by the inserted code and its internal name */
+	private static volatile Class<?> hooks = Hooks.class;
+	private static volatile String name = Hooks.class.getName().replace('.', '/');
+
+	private BootHooks() {
+	}
+
+	/**
+	 * Return the internal name of the class which the inserted code calls.
+	 */
+	static String name() {
+		return name;
+	}
+
+	/**
+	 * Define the copy of {@link Hooks} on the bootstrap class path and let the inserted code call it from now on.
+	 *
+	 * @return whether the copy was defined
+	 */
+	static synchronized boolean install(Instrumentation instrumentation) {
+		if (hooks != Hooks.class)
+			return true;
+		try {
+			File jar = File.createTempFile("nullsafe-hooks", ".jar");
+			jar.deleteOnExit();
+			JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+			try {
+				out.putNextEntry(new JarEntry(NAME + ".class"));
+				out.write(rename(hooksClassFile(), Hooks.class.getName().replace('.', '/'), NAME));
+				out.closeEntry();
+			} finally {
+				out.close();
+			}
+			instrumentation.appendToBootstrapClassLoaderSearch(new JarFile(jar));
+			hooks = Class.forName(NAME.replace('/', '.'), true, null);
+			name = NAME;
+			return true;
+		} catch (Exception e) {
+			System.err.println("Could not add the nullsafe hooks to the bootstrap class path: " + e);
+			return false;
+		}
+	}
+
+	private static byte[] hooksClassFile() throws IOException {
+		InputStream is = BootHooks.class.getResourceAsStream("Hooks.class");
+		if (is == null)
+			throw new FileNotFoundException("Hooks.class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = is.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+			return out.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Return the given class file with each <code>Utf8</code> constant equal to <code>from</code> replaced by
+	 * <code>to</code>, which renames a class that refers to its own name only through its <code>Class</code> constant.
+	 */
+	static byte[] rename(byte[] b, String from, String to) {
+		byte[] fromBytes = ascii(from);
+		byte[] toBytes = ascii(to);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(b.length + toBytes.length);
+		int count = readUnsignedShort(b, 8);
+		int offset = FIRST_ENTRY_OFFSET;
+		int copied = 0;
+		for (int i = 1; i < count; i++) {
+			int tag = b[offset];
+			int next = next(b, offset);
+			if (tag == CONSTANT_Utf8 && utf8Equals(b, offset, fromBytes)) {
+				out.write(b, copied, offset - copied);
+				out.write(CONSTANT_Utf8);
+				out.write(toBytes.length >>> 8);
+				out.write(toBytes.length);
+				out.write(toBytes, 0, toBytes.length);
+				copied = next;
+			}
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double)
+				i++;
+			offset = next;
+		}
+		out.write(b, copied, b.length - copied);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Set the given public static field of the class called by the inserted code.
+	 */
+	static void set(String field, Object value) {
+		try {
+			hooks.getField(field).set(null, value);
+		} catch (NoSuchFieldException e) {
+			throw new AssertionError(e);
+		} catch (IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.ConstantPoolScanner.*;
+
+import java.util.*;
+
+/**
+ * The methods of a class which contain <code>__nullsafe(...)</code> calls and the methods whose return value is
+ * annotated as not null, found by scanning the class file directly.
+ * <p>
+ * Methods are identified by their index in the class file, which is also the order in which
+ * {@link org.objectweb.asm.ClassReader} visits them. That way, the {@link Agent} only needs a single pass of the
+ * <code>ClassReader</code>, in which it knows for each visited method whether to transform it or to let the
+ * <code>ClassWriter</code> copy it as is, without building a name and descriptor key for each method.
+ * <p>
+ * The scan only walks the constant pool, the attributes of the methods and the opcodes of their code, and only decodes
+ * the names of methods which are needed.
+ */
+class ClassScan {
+
+	private static final byte[] CODE = ascii("Code");
+	private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = ascii("RuntimeVisibleAnnotations");
+	private static final byte[] RUNTIME_INVISIBLE_ANNOTATIONS = ascii("RuntimeInvisibleAnnotations");
+	private static final byte[] RUNTIME_VISIBLE_TYPE_ANNOTATIONS = ascii("RuntimeVisibleTypeAnnotations");
+	private static final byte[] RUNTIME_INVISIBLE_TYPE_ANNOTATIONS = ascii("RuntimeInvisibleTypeAnnotations");
+
+	/* The target type of a type annotation of the return type of a method */
+	private static final int METHOD_RETURN = 0x14;
+
+	private static final int TABLESWITCH = 0xAA;
+	private static final int LOOKUPSWITCH = 0xAB;
+	private static final int INVOKESTATIC = 0xB8;
+	private static final int WIDE = 0xC4;
+	private static final int IINC = 0x84;
+
+	/* The length of each instruction by its opcode, or 0 for the switch instructions and WIDE */
+	private static final byte[] INSTRUCTION_LENGTHS = new byte[256];
+
+	static {
+		Arrays.fill(INSTRUCTION_LENGTHS, (byte) 1);
+		setLength(2, 0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3A, 0xA9, 0xBC);
+		setLength(3, 0x11, 0x13, 0x14, 0x84, 0xB2, 0xB3, 0xB4, 0xB5, 0xB6, 0xB7, 0xB8, 0xBB, 0xBD, 0xC0, 0xC1,
+				0xC6, 0xC7);
+		for (int opcode = 0x99; opcode <= 0xA8; opcode++)
+			INSTRUCTION_LENGTHS[opcode] = 3;
+		setLength(4, 0xC5);
+		setLength(5, 0xB9, 0xBA, 0xC8, 0xC9);
+		setLength(0, TABLESWITCH, LOOKUPSWITCH, WIDE);
+	}
+
+	private static void setLength(int length, int... opcodes) {
+		for (int opcode : opcodes)
+			INSTRUCTION_LENGTHS[opcode] = (byte) length;
+	}
+
+	private final byte[] b;
+	/* The offset of the constant pool entry of each index */
+	private final int[] entries;
+	/* The constant pool index of the name of each method */
+	private final int[] methodNames;
+	private final BitSet methodsToTransform = new BitSet();
+	private boolean initializerToTransform;
+	/* The descriptors of the methods with a return value annotated as not null, by their name */
+	private Map<String, Set<String>> nonNullMethods = Collections.emptyMap();
+
+	private ClassScan(byte[] b, int[] entries, int methodCount) {
+		this.b = b;
+		this.entries = entries;
+		this.methodNames = new int[methodCount];
+	}
+
+	/**
+	 * Scan the given class file, which must be well-formed.
+	 */
+	static ClassScan of(byte[] b) {
+		int count = readUnsignedShort(b, 8);
+		int[] entries = new int[count];
+		boolean[] nullsafeMethodrefs = new boolean[count];
+		int offset = FIRST_ENTRY_OFFSET;
+		for (int i = 1; i < count; i++) {
+			entries[i] = offset;
+			int tag = b[offset];
+			offset = next(b, offset);
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double)
+				i++;
+		}
+		for (int i = 1; i < count; i++) {
+			int entry = entries[i];
+			if (b[entry] != CONSTANT_Methodref)
+				continue;
+			int classEntry = entries[readUnsignedShort(b, entry + 1)];
+			int nameAndTypeEntry = entries[readUnsignedShort(b, entry + 3)];
+			nullsafeMethodrefs[i] = utf8StartsWith(b, entries[readUnsignedShort(b, nameAndTypeEntry + 1)],
+					NULLSAFE_METHOD) && utf8Equals(b, entries[readUnsignedShort(b, classEntry + 1)], NULLSAFE_CLASS);
+		}
+		/* Skip access flags, this class, super class and interfaces */
+		offset += 6;
+		offset += 2 + 2 * readUnsignedShort(b, offset);
+		int fieldCount = readUnsignedShort(b, offset);
+		offset += 2;
+		for (int i = 0; i < fieldCount; i++)
+			offset = skipAttributes(b, offset + 6);
+		int methodCount = readUnsignedShort(b, offset);
+		offset += 2;
+		ClassScan scan = new ClassScan(b, entries, methodCount);
+		for (int i = 0; i < methodCount; i++)
+			offset = scan.scanMethod(i, offset, nullsafeMethodrefs);
+		return scan;
+	}
+
+	/**
+	 * Scan the <code>method_info</code> at the given offset and return the offset after it.
+	 */
+	private int scanMethod(int index, int offset, boolean[] nullsafeMethodrefs) {
+		methodNames[index] = readUnsignedShort(b, offset + 2);
+		int descriptorIndex = readUnsignedShort(b, offset + 4);
+		int attributeCount = readUnsignedShort(b, offset + 6);
+		offset += 8;
+		for (int i = 0; i < attributeCount; i++) {
+			int name = entries[readUnsignedShort(b, offset)];
+			int length = readInt(b, offset + 2);
+			int start = offset + 6;
+			if (utf8Equals(b, name, CODE)) {
+				if (callsNullsafe(start + 8, readInt(b, start + 4), nullsafeMethodrefs)) {
+					methodsToTransform.set(index);
+					initializerToTransform |= b[entries[methodNames[index]] + 3] == '<';
+				}
+			} else if (utf8Equals(b, name, RUNTIME_VISIBLE_ANNOTATIONS)
+					|| utf8Equals(b, name, RUNTIME_INVISIBLE_ANNOTATIONS)) {
+				if (hasNonNullAnnotation(start))
+					addNonNullMethod(index, descriptorIndex);
+			} else if (utf8Equals(b, name, RUNTIME_VISIBLE_TYPE_ANNOTATIONS)
+					|| utf8Equals(b, name, RUNTIME_INVISIBLE_TYPE_ANNOTATIONS)) {
+				if (hasNonNullReturnTypeAnnotation(start))
+					addNonNullMethod(index, descriptorIndex);
+			}
+			offset = start + length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Determine whether the given code contains an <code>INVOKESTATIC</code> of one of the given methods.
+	 */
+	private boolean callsNullsafe(int code, int codeLength, boolean[] nullsafeMethodrefs) {
+		int end = code + codeLength;
+		int offset = code;
+		while (offset < end) {
+			int opcode = b[offset] & 0xFF;
+			if (opcode == INVOKESTATIC && nullsafeMethodrefs[readUnsignedShort(b, offset + 1)])
+				return true;
+			int length = INSTRUCTION_LENGTHS[opcode];
+			if (length == 0) {
+				if (opcode == WIDE) {
+					length = (b[offset + 1] & 0xFF) == IINC ? 6 : 4;
+				} else {
+					/* The operands of a switch are aligned to four bytes from the start of the code */
+					int operands = offset + 4 - ((offset - code) & 3);
+					if (opcode == TABLESWITCH)
+						length = operands - offset + 12
+								+ 4 * (readInt(b, operands + 8) - readInt(b, operands + 4) + 1);
+					else
+						length = operands - offset + 8 + 8 * readInt(b, operands + 4);
+				}
+			}
+			offset += length;
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether the <code>Runtime(In)VisibleAnnotations</code> at the given offset contain a non-null
+	 * annotation.
+	 */
+	private boolean hasNonNullAnnotation(int offset) {
+		int count = readUnsignedShort(b, offset);
+		offset += 2;
+		for (int i = 0; i < count; i++) {
+			if (Agent.isNonNullAnnotation(readUtf8(readUnsignedShort(b, offset))))
+				return true;
+			offset = skipAnnotation(offset);
+		}
+		return false;
+	}
+
+	/**
+	 * Determine whether the <code>Runtime(In)VisibleTypeAnnotations</code> at the given offset contain a non-null
+	 * annotation of the return type itself.
+	 */
+	private boolean hasNonNullReturnTypeAnnotation(int offset) {
+		int count = readUnsignedShort(b, offset);
+		offset += 2;
+		for (int i = 0; i < count; i++) {
+			int targetType = b[offset] & 0xFF;
+			/* Skip the target info, which is empty for the return type */
+			offset += 1 + targetInfoLength(targetType, offset + 1);
+			int pathLength = b[offset] & 0xFF;
+			offset += 1 + 2 * pathLength;
+			if (targetType == METHOD_RETURN && pathLength == 0
+					&& Agent.isNonNullAnnotation(readUtf8(readUnsignedShort(b, offset))))
+				return true;
+			offset = skipAnnotation(offset);
+		}
+		return false;
+	}
+
+	/**
+	 * Return the length of the <code>target_info</code> at the given offset of a type annotation with the given target
+	 * type.
+	 */
+	private int targetInfoLength(int targetType, int offset) {
+		switch (targetType) {
+		case 0x13:
+		case 0x14:
+		case 0x15:
+			return 0;
+		case 0x00:
+		case 0x01:
+		case 0x16:
+			return 1;
+		case 0x10:
+		case 0x11:
+		case 0x12:
+		case 0x17:
+		case 0x42:
+		case 0x43:
+		case 0x44:
+		case 0x45:
+		case 0x46:
+			return 2;
+		case 0x40:
+		case 0x41:
+			return 2 + 6 * readUnsignedShort(b, offset);
+		default:
+			return 3;
+		}
+	}
+
+	private int skipAnnotation(int offset) {
+		int pairs = readUnsignedShort(b, offset + 2);
+		offset += 4;
+		for (int i = 0; i < pairs; i++)
+			offset = skipElementValue(offset + 2);
+		return offset;
+	}
+
+	private int skipElementValue(int offset) {
+		switch (b[offset]) {
+		case 'e':
+			return offset + 5;
+		case '@':
+			return skipAnnotation(offset + 1);
+		case '[':
+			int values = readUnsignedShort(b, offset + 1);
+			offset += 3;
+			for (int i = 0; i < values; i++)
+				offset = skipElementValue(offset);
+			return offset;
+		default:
+			return offset + 3;
+		}
+	}
+
+	private void addNonNullMethod(int index, int descriptorIndex) {
+		if (nonNullMethods.isEmpty())
+			nonNullMethods = new HashMap<String, Set<String>>();
+		String name = readUtf8(methodNames[index]);
+		Set<String> descriptors = nonNullMethods.get(name);
+		if (descriptors == null) {
+			descriptors = new HashSet<String>();
+			nonNullMethods.put(name, descriptors);
+		}
+		descriptors.add(readUtf8(descriptorIndex));
+	}
+
+	/**
+	 * Decode the modified UTF-8 string of the <code>CONSTANT_Utf8</code> entry with the given index.
+	 */
+	private String readUtf8(int index) {
+		int offset = entries[index];
+		int end = offset + 3 + readUnsignedShort(b, offset + 1);
+		char[] chars = new char[end - offset - 3];
+		int length = 0;
+		for (offset += 3; offset < end; length++) {
+			int c = b[offset++] & 0xFF;
+			if (c < 0x80)
+				chars[length] = (char) c;
+			else if (c < 0xE0)
+				chars[length] = (char) (((c & 0x1F) << 6) | (b[offset++] & 0x3F));
+			else
+				chars[length] = (char) (((c & 0xF) << 12) | ((b[offset++] & 0x3F) << 6) | (b[offset++] & 0x3F));
+		}
+		return new String(chars, 0, length);
+	}
+
+	private static int skipAttributes(byte[] b, int offset) {
+		int count = readUnsignedShort(b, offset);
+		offset += 2;
+		for (int i = 0; i < count; i++)
+			offset += 6 + readInt(b, offset + 2);
+		return offset;
+	}
+
+	/**
+	 * Determine whether any method contains <code>__nullsafe(...)</code> calls.
+	 */
+	boolean isEmpty() {
+		return methodsToTransform.isEmpty();
+	}
+
+	/**
+	 * Return the number of methods containing <code>__nullsafe(...)</code> calls.
+	 */
+	int methodsToTransform() {
+		return methodsToTransform.cardinality();
+	}
+
+	/**
+	 * Determine whether the method with the given index contains <code>__nullsafe(...)</code> calls.
+	 */
+	boolean transforms(int methodIndex) {
+		return methodsToTransform.get(methodIndex);
+	}
+
+	/**
+	 * Determine whether a constructor or static initializer contains <code>__nullsafe(...)</code> calls.
+	 */
+	boolean transformsInitializer() {
+		return initializerToTransform;
+	}
+
+	/**
+	 * Determine whether the method with the given name and descriptor has a return value annotated as not null.
+	 */
+	boolean isNonNullMethod(String name, String descriptor) {
+		Set<String> descriptors = nonNullMethods.get(name);
+		return descriptors != null && descriptors.contains(descriptor);
+	}
+
+	/**
+	 * Return the names of all methods.
+	 */
+	Set<String> methodNames() {
+		Set<String> names = new HashSet<String>();
+		for (int name : methodNames)
+			names.add(readUtf8(name));
+		return names;
+	}
+}
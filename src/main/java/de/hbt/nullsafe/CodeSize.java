@@ -0,0 +1,96 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import org.objectweb.asm.tree.*;
+
+/**
+ * Estimates the size of the bytecode of a method from its instructions, to see how much a method grows by the rewrite
+ * of its <code>__nullsafe(...)</code> calls and which of the JIT compiler's size limits it crosses.
+ * <p>
+ * The size is exact except for constants loaded via <code>LDC</code>, which are assumed to have a constant pool index
+ * below 256, and for jumps which would need <code>GOTO_W</code> in methods larger than 32 KB.
+ */
+class CodeSize {
+
+	/* HotSpot's default -XX:MaxInlineSize: larger methods are only inlined if they are hot */
+	static final int MAX_INLINE_SIZE = 35;
+	/* HotSpot's default -XX:FreqInlineSize: larger methods are never inlined */
+	static final int FREQ_INLINE_SIZE = 325;
+	/* HotSpot's -XX:HugeMethodLimit: larger methods are never compiled unless -XX:-DontCompileHugeMethods */
+	static final int HUGE_METHOD_LIMIT = 8000;
+
+	private CodeSize() {
+	}
+
+	/**
+	 * Return the number of bytes of the given instructions.
+	 */
+	static int of(InsnList instructions) {
+		int size = 0;
+		for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext())
+			size += sizeAt(insn, size);
+		return size;
+	}
+
+	/**
+	 * Return the name of the largest JIT compiler size limit which a method exceeds with the given size after the
+	 * rewrite but not with the given size before, or <code>null</code> if it does not cross any limit.
+	 */
+	static String limitCrossed(int before, int after) {
+		if (before <= HUGE_METHOD_LIMIT && after > HUGE_METHOD_LIMIT)
+			return "HugeMethodLimit (" + HUGE_METHOD_LIMIT + ")";
+		if (before <= FREQ_INLINE_SIZE && after > FREQ_INLINE_SIZE)
+			return "FreqInlineSize (" + FREQ_INLINE_SIZE + ")";
+		if (before <= MAX_INLINE_SIZE && after > MAX_INLINE_SIZE)
+			return "MaxInlineSize (" + MAX_INLINE_SIZE + ")";
+		return null;
+	}
+
+	private static int sizeAt(AbstractInsnNode insn, int offset) {
+		switch (insn.getType()) {
+		case AbstractInsnNode.INSN:
+			return 1;
+		case AbstractInsnNode.INT_INSN:
+			return insn.getOpcode() == SIPUSH ? 3 : 2;
+		case AbstractInsnNode.VAR_INSN:
+			int var = ((VarInsnNode) insn).var;
+			if (var > 255)
+				return 4;
+			return var < 4 && insn.getOpcode() != RET ? 1 : 2;
+		case AbstractInsnNode.TYPE_INSN:
+		case AbstractInsnNode.FIELD_INSN:
+		case AbstractInsnNode.JUMP_INSN:
+			return 3;
+		case AbstractInsnNode.METHOD_INSN:
+			return insn.getOpcode() == INVOKEINTERFACE ? 5 : 3;
+		case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+			return 5;
+		case AbstractInsnNode.LDC_INSN:
+			Object cst = ((LdcInsnNode) insn).cst;
+			return cst instanceof Long || cst instanceof Double ? 3 : 2;
+		case AbstractInsnNode.IINC_INSN:
+			IincInsnNode iinc = (IincInsnNode) insn;
+			return iinc.var > 255 || iinc.incr > Byte.MAX_VALUE || iinc.incr < Byte.MIN_VALUE ? 6 : 3;
+		case AbstractInsnNode.TABLESWITCH_INSN:
+			TableSwitchInsnNode table = (TableSwitchInsnNode) insn;
+			return 1 + padding(offset) + 12 + 4 * table.labels.size();
+		case AbstractInsnNode.LOOKUPSWITCH_INSN:
+			LookupSwitchInsnNode lookup = (LookupSwitchInsnNode) insn;
+			return 1 + padding(offset) + 8 + 8 * lookup.keys.size();
+		case AbstractInsnNode.MULTIANEWARRAY_INSN:
+			return 4;
+		default:
+			/* Labels, line numbers and frames */
+			return 0;
+		}
+	}
+
+	/**
+	 * Return the number of padding bytes after a switch instruction at the given offset, which align its operands to
+	 * four bytes.
+	 */
+	private static int padding(int offset) {
+		return 3 - (offset & 3);
+	}
+}
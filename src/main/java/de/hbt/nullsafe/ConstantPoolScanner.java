@@ -0,0 +1,196 @@
+package de.hbt.nullsafe;
+
+/**
+ * Scans the constant pool of a class file in place to decide whether the class can contain calls to
+ * {@link Nullsafe#__nullsafe(Object)} at all.
+ * <p>
+ * A class can only call <code>__nullsafe(...)</code> or one of its variants if its constant pool contains a
+ * <code>Methodref</code> whose class is <code>de/hbt/nullsafe/Nullsafe</code> and whose name starts with
+ * <code>__nullsafe</code>. The scan works directly on the class file bytes and does not allocate, which makes rejecting
+ * the vast majority of classes without any such calls very cheap compared to building a
+ * {@link org.objectweb.asm.ClassReader} and visiting all methods.
+ */
+class ConstantPoolScanner {
+
+	static final int CONSTANT_Utf8 = 1;
+	static final int CONSTANT_Integer = 3;
+	static final int CONSTANT_Float = 4;
+	static final int CONSTANT_Long = 5;
+	static final int CONSTANT_Double = 6;
+	static final int CONSTANT_Class = 7;
+	static final int CONSTANT_String = 8;
+	static final int CONSTANT_Fieldref = 9;
+	static final int CONSTANT_Methodref = 10;
+	static final int CONSTANT_InterfaceMethodref = 11;
+	static final int CONSTANT_NameAndType = 12;
+	static final int CONSTANT_MethodHandle = 15;
+	static final int CONSTANT_MethodType = 16;
+	static final int CONSTANT_Dynamic = 17;
+	static final int CONSTANT_InvokeDynamic = 18;
+	static final int CONSTANT_Module = 19;
+	static final int CONSTANT_Package = 20;
+
+	/* Offset of the first constant pool entry in a class file */
+	static final int FIRST_ENTRY_OFFSET = 10;
+
+	static final byte[] NULLSAFE_CLASS = ascii(Agent.Nullsafe_name);
+	static final byte[] NULLSAFE_METHOD = ascii(Agent.__nullsafe);
+
+	private ConstantPoolScanner() {
+	}
+
+	static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) s.charAt(i);
+		return bytes;
+	}
+
+	/**
+	 * Determine whether the given class file contains a <code>Methodref</code> to
+	 * <code>de/hbt/nullsafe/Nullsafe.__nullsafe</code> or one of its variants.
+	 * <p>
+	 * If the class file cannot be parsed, this method conservatively returns <code>true</code>, so that the actual
+	 * class file parser can report the error.
+	 */
+	static boolean referencesNullsafe(byte[] b) {
+		try {
+			if (readInt(b, 0) != 0xCAFEBABE)
+				return true;
+			int count = readUnsignedShort(b, 8);
+			/* Pass 1: Find the Utf8 entry of the Nullsafe class name */
+			int classNameIndex = findUtf8(b, count, NULLSAFE_CLASS);
+			if (classNameIndex < 0)
+				return false;
+			/* Pass 2: Find the Class entry referencing that name */
+			int classIndex = findClass(b, count, classNameIndex);
+			if (classIndex < 0)
+				return false;
+			/* Pass 3: Find a Methodref of that class with a name starting with __nullsafe */
+			return findMethodref(b, count, classIndex, NULLSAFE_METHOD);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return true;
+		}
+	}
+
+	private static int findUtf8(byte[] b, int count, byte[] value) {
+		int offset = FIRST_ENTRY_OFFSET;
+		for (int i = 1; i < count; i++) {
+			int tag = b[offset];
+			if (tag == CONSTANT_Utf8 && utf8Equals(b, offset, value))
+				return i;
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double)
+				i++;
+			offset = next(b, offset);
+		}
+		return -1;
+	}
+
+	private static int findClass(byte[] b, int count, int nameIndex) {
+		int offset = FIRST_ENTRY_OFFSET;
+		for (int i = 1; i < count; i++) {
+			int tag = b[offset];
+			if (tag == CONSTANT_Class && readUnsignedShort(b, offset + 1) == nameIndex)
+				return i;
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double)
+				i++;
+			offset = next(b, offset);
+		}
+		return -1;
+	}
+
+	private static boolean findMethodref(byte[] b, int count, int classIndex, byte[] namePrefix) {
+		int offset = FIRST_ENTRY_OFFSET;
+		for (int i = 1; i < count; i++) {
+			int tag = b[offset];
+			if (tag == CONSTANT_Methodref && readUnsignedShort(b, offset + 1) == classIndex) {
+				int nameAndTypeOffset = offsetOf(b, readUnsignedShort(b, offset + 3));
+				int nameOffset = offsetOf(b, readUnsignedShort(b, nameAndTypeOffset + 1));
+				if (utf8StartsWith(b, nameOffset, namePrefix))
+					return true;
+			}
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double)
+				i++;
+			offset = next(b, offset);
+		}
+		return false;
+	}
+
+	/**
+	 * Return the offset of the constant pool entry with the given index.
+	 * <p>
+	 * This walks the constant pool from the start, but is only ever called for the very few <code>Methodref</code>s of
+	 * the Nullsafe class.
+	 */
+	private static int offsetOf(byte[] b, int index) {
+		int offset = FIRST_ENTRY_OFFSET;
+		for (int i = 1; i < index; i++) {
+			int tag = b[offset];
+			if (tag == CONSTANT_Long || tag == CONSTANT_Double)
+				i++;
+			offset = next(b, offset);
+		}
+		return offset;
+	}
+
+	static boolean utf8Equals(byte[] b, int offset, byte[] value) {
+		int length = readUnsignedShort(b, offset + 1);
+		if (length != value.length)
+			return false;
+		for (int i = 0, o = offset + 3; i < length; i++, o++) {
+			if (b[o] != value[i])
+				return false;
+		}
+		return true;
+	}
+
+	static boolean utf8StartsWith(byte[] b, int offset, byte[] prefix) {
+		int length = readUnsignedShort(b, offset + 1);
+		if (length < prefix.length)
+			return false;
+		for (int i = 0, o = offset + 3; i < prefix.length; i++, o++) {
+			if (b[o] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	static int next(byte[] b, int offset) {
+		switch (b[offset]) {
+		case CONSTANT_Utf8:
+			return offset + 3 + readUnsignedShort(b, offset + 1);
+		case CONSTANT_Integer:
+		case CONSTANT_Float:
+		case CONSTANT_Fieldref:
+		case CONSTANT_Methodref:
+		case CONSTANT_InterfaceMethodref:
+		case CONSTANT_NameAndType:
+		case CONSTANT_Dynamic:
+		case CONSTANT_InvokeDynamic:
+			return offset + 5;
+		case CONSTANT_Long:
+		case CONSTANT_Double:
+			return offset + 9;
+		case CONSTANT_Class:
+		case CONSTANT_String:
+		case CONSTANT_MethodType:
+		case CONSTANT_Module:
+		case CONSTANT_Package:
+			return offset + 3;
+		case CONSTANT_MethodHandle:
+			return offset + 4;
+		default:
+			/* Unknown constant pool tag. Let the real class file parser deal with it. */
+			throw new ArrayIndexOutOfBoundsException(offset);
+		}
+	}
+
+	static int readUnsignedShort(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+	}
+
+	static int readInt(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8)
+				| (b[offset + 3] & 0xFF);
+	}
+}
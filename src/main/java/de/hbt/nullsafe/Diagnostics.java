@@ -0,0 +1,299 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.util.*;
+
+/**
+ * Writes the rewrite of each transformed method of the diagnosed classes as a diff of its instructions before and
+ * after the rewrite to a file.
+ * <p>
+ * Class loading threads only render the instructions of the methods they transform and hand them to a bounded queue.
+ * A background thread computes the diffs and writes them. If the queue is full, the diffs of a class are dropped and
+ * counted in {@link AgentStats#diagnosticsDropped} instead of blocking class loading. When the file grows beyond
+ * {@link #MAX_FILE_SIZE}, it is renamed by appending <code>.1</code>, replacing the previous one, and a new file is
+ * started.
+ */
+class Diagnostics implements Runnable {
+
+	static final int QUEUE_CAPACITY = 1024;
+	static final long MAX_FILE_SIZE = 10L * 1024 * 1024;
+
+	/* The number of unchanged lines shown around each change */
+	private static final int CONTEXT = 3;
+	/* The maximum number of cells of the table of the longest common subsequence of the changed lines */
+	private static final int MAX_DIFF_CELLS = 1024 * 1024;
+
+	private final File file;
+	private final PackageFilter filter;
+	private final AgentStats stats;
+	private final BlockingQueue<List<MethodDiff>> queue;
+	private final long maxFileSize;
+	private Writer out;
+	private long fileSize;
+
+	/**
+	 * The instructions of a method as rendered by a {@link Textifier}.
+	 */
+	static class Listing {
+		/* The names of all labels, which the listing after the rewrite shares with the one before */
+		private final Map<Label, String> labelNames;
+		private final List<String> lines;
+
+		Listing(Map<Label, String> labelNames, List<String> lines) {
+			this.labelNames = labelNames;
+			this.lines = lines;
+		}
+	}
+
+	/**
+	 * The lines of the listings of a method before and after its rewrite.
+	 */
+	static class MethodDiff {
+		private final String className;
+		private final String method;
+		private final List<String> before;
+		private final List<String> after;
+
+		MethodDiff(String className, String method, List<String> before, List<String> after) {
+			this.className = className;
+			this.method = method;
+			this.before = before;
+			this.after = after;
+		}
+	}
+
+	/**
+	 * A {@link Textifier} which names labels with the given map, so that the labels of a method keep their names in
+	 * all of its listings.
+	 */
+	private static class LabelNamingTextifier extends Textifier {
+		LabelNamingTextifier(Map<Label, String> labelNames) {
+			super(ASM7);
+			this.labelNames = labelNames;
+		}
+	}
+
+	/**
+	 * Create the diagnostics of the classes matched by the given filter, which are written to the given file.
+	 */
+	Diagnostics(File file, PackageFilter filter, AgentStats stats) {
+		this(file, filter, stats, QUEUE_CAPACITY, MAX_FILE_SIZE);
+	}
+
+	Diagnostics(File file, PackageFilter filter, AgentStats stats, int capacity, long maxFileSize) {
+		this.file = file;
+		this.filter = filter;
+		this.stats = stats;
+		this.queue = new ArrayBlockingQueue<List<MethodDiff>>(capacity);
+		this.maxFileSize = maxFileSize;
+	}
+
+	/**
+	 * Start the background thread which writes the diffs.
+	 */
+	void start() {
+		Thread thread = new Thread(this, "nullsafe-diagnostics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Determine whether the class with the given internal name is diagnosed.
+	 */
+	boolean diagnoses(String className) {
+		return filter.matches(className);
+	}
+
+	/**
+	 * Render the instructions of the given method before its rewrite.
+	 */
+	static Listing before(MethodNode mn) {
+		return render(mn, new HashMap<Label, String>());
+	}
+
+	/**
+	 * Render the instructions of the given method after its rewrite, which was rendered as the given listing before.
+	 */
+	static MethodDiff after(String className, MethodNode mn, Listing before) {
+		return new MethodDiff(className, mn.name + mn.desc, before.lines, render(mn, before.labelNames).lines);
+	}
+
+	/*
+	 * Visit the instructions one by one instead of via MethodNode.accept(), which would replace the labels of the
+	 * method and thereby lose their names.
+	 */
+	private static Listing render(MethodNode mn, Map<Label, String> labelNames) {
+		Textifier textifier = new LabelNamingTextifier(labelNames);
+		TraceMethodVisitor tmv = new TraceMethodVisitor(textifier);
+		for (TryCatchBlockNode tcb : mn.tryCatchBlocks)
+			tcb.accept(tmv);
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext())
+			insn.accept(tmv);
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		textifier.print(pw);
+		pw.flush();
+		List<String> lines = new ArrayList<String>();
+		for (String line : sw.toString().split("\n"))
+			lines.add(line);
+		return new Listing(labelNames, lines);
+	}
+
+	/**
+	 * Queue the diffs of the methods of a transformed class, or drop them if the queue is full.
+	 */
+	void offer(List<MethodDiff> diffs) {
+		if (diffs.isEmpty())
+			return;
+		if (!queue.offer(diffs))
+			stats.diagnosticsDropped.add(diffs.size());
+	}
+
+	public void run() {
+		List<List<MethodDiff>> batch = new ArrayList<List<MethodDiff>>();
+		for (;;) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+			try {
+				for (List<MethodDiff> diffs : batch) {
+					for (MethodDiff diff : diffs)
+						write(diff);
+				}
+				out.flush();
+			} catch (IOException e) {
+				System.err.println("Could not write nullsafe diagnostics to '" + file + "', stopping: "
+						+ e.getMessage());
+				return;
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(MethodDiff diff) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--- ").append(diff.className.replace('/', '.')).append('.').append(diff.method).append('\n');
+		sb.append("+++ ").append(diff.className.replace('/', '.')).append('.').append(diff.method).append('\n');
+		diff(diff.before, diff.after, sb);
+		String text = sb.toString();
+		if (out == null || fileSize + text.length() > maxFileSize && fileSize > 0)
+			roll();
+		out.write(text);
+		fileSize += text.length();
+	}
+
+	/*
+	 * Open the file, or start a new one after renaming the full one.
+	 */
+	private void roll() throws IOException {
+		if (out != null) {
+			out.close();
+			File rolled = new File(file.getPath() + ".1");
+			if (rolled.exists() && !rolled.delete() || !file.renameTo(rolled))
+				throw new IOException("Could not rename '" + file + "' to '" + rolled + "'");
+		}
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		fileSize = 0L;
+	}
+
+	/**
+	 * Append the changes between the given lines as hunks of a unified diff, with the unchanged lines around them.
+	 */
+	static void diff(List<String> before, List<String> after, StringBuilder sb) {
+		/* Unchanged lines at the start and end are the common case, and need no table */
+		int prefix = 0;
+		int maxPrefix = Math.min(before.size(), after.size());
+		while (prefix < maxPrefix && before.get(prefix).equals(after.get(prefix)))
+			prefix++;
+		int suffix = 0;
+		while (suffix < maxPrefix - prefix
+				&& before.get(before.size() - 1 - suffix).equals(after.get(after.size() - 1 - suffix)))
+			suffix++;
+		List<String> a = before.subList(prefix, before.size() - suffix);
+		List<String> b = after.subList(prefix, after.size() - suffix);
+		/* The edits of all lines: ' ' unchanged, '-' removed from before, '+' added in after */
+		StringBuilder edits = new StringBuilder(before.size() + after.size());
+		for (int i = 0; i < prefix; i++)
+			edits.append(' ');
+		edits(a, b, edits);
+		for (int i = 0; i < suffix; i++)
+			edits.append(' ');
+		/* Print the hunks */
+		int n = edits.length();
+		int lastPrinted = -2;
+		for (int e = 0, i = 0, j = 0; e < n; e++) {
+			char edit = edits.charAt(e);
+			if (edit != ' ' || near(edits, e)) {
+				if (lastPrinted < e - 1)
+					sb.append("@@ -").append(i + 1).append(" +").append(j + 1).append(" @@\n");
+				lastPrinted = e;
+				sb.append(edit).append(edit == '+' ? after.get(j) : before.get(i)).append('\n');
+			}
+			if (edit != '+')
+				i++;
+			if (edit != '-')
+				j++;
+		}
+	}
+
+	/*
+	 * Determine whether the unchanged line of the given edit is within the context of a change.
+	 */
+	private static boolean near(StringBuilder edits, int e) {
+		for (int k = Math.max(0, e - CONTEXT), end = Math.min(edits.length(), e + CONTEXT + 1); k < end; k++) {
+			if (edits.charAt(k) != ' ')
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Append the edits from a to b of their longest common subsequence, or replace all of a if that is too large to
+	 * compute.
+	 */
+	private static void edits(List<String> a, List<String> b, StringBuilder edits) {
+		int m = a.size(), n = b.size();
+		if ((long) (m + 1) * (n + 1) > MAX_DIFF_CELLS) {
+			for (int i = 0; i < m; i++)
+				edits.append('-');
+			for (int j = 0; j < n; j++)
+				edits.append('+');
+			return;
+		}
+		/* The length of the longest common subsequence of a[i..] and b[j..] */
+		int[][] lcs = new int[m + 1][n + 1];
+		for (int i = m - 1; i >= 0; i--) {
+			for (int j = n - 1; j >= 0; j--)
+				lcs[i][j] = a.get(i).equals(b.get(j)) ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+		}
+		int i = 0, j = 0;
+		while (i < m && j < n) {
+			if (a.get(i).equals(b.get(j))) {
+				edits.append(' ');
+				i++;
+				j++;
+			} else if (lcs[i + 1][j] >= lcs[i][j + 1]) {
+				edits.append('-');
+				i++;
+			} else {
+				edits.append('+');
+				j++;
+			}
+		}
+		for (; i < m; i++)
+			edits.append('-');
+		for (; j < n; j++)
+			edits.append('+');
+	}
+}
@@ -0,0 +1,75 @@
+package de.hbt.nullsafe;
+
+import java.lang.reflect.*;
+
+/**
+ * The methods called by the code which the agent inserts into transformed classes, such as the traps of its lazy mode
+ * and the null-checks of its profile mode.
+ * None of them must be called by applications.
+ * <p>
+ * The inserted code calls a copy of this class on the bootstrap class path (see {@link BootHooks}), which is connected
+ * to the running agent by its public static fields. Therefore, this class must only depend on the JDK.
+ */
+public final class Hooks {
+
+	/* The number of sites in each stripe of the hits, see NullProfile */
+	static final int MAX_SITES = 16384;
+
+	/**
+	 * The method of the running agent which retransforms the class of a trapped method and waits until that is done,
+	 * or <code>null</code> if the agent does not run in lazy mode.
+	 */
+	public static volatile Method firstCall;
+
+	/**
+	 * The hits of the null-checks of the agent's profile mode, with a stripe of <code>MAX_SITES</code> sites per thread,
+	 * or <code>null</code> until the first site is registered.
+	 */
+	public static volatile long[] hits;
+
+	private Hooks() {
+	}
+
+	/**
+	 * Called by the agent's lazy mode at the start of methods whose <code>__nullsafe(...)</code> calls were not
+	 * rewritten yet.
+	 *
+	 * @param c the class of the method
+	 * @return <code>true</code> once the class was rewritten, so that the method must be called again
+	 * @throws AssertionError if the class could not be rewritten, or the agent does not run in lazy mode
+	 */
+	public static boolean __firstCall(Class<?> c) {
+		Method firstCall = Hooks.firstCall;
+		if (firstCall == null)
+			throw new AssertionError("The __nullsafe(...) calls of class '" + c.getName()
+					+ "' were deferred by the lazy mode of the nullsafe agent, which is not running");
+		try {
+			return ((Boolean) firstCall.invoke(null, c)).booleanValue();
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+				throw (Error) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new AssertionError(cause);
+		} catch (IllegalAccessException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Called by the null-checks which the agent's profile mode inserts into the expressions of
+	 * <code>__nullsafe(...)</code> calls.
+	 *
+	 * @param value the value to check
+	 * @param site  the index of the null-check in the {@link NullProfile}
+	 * @return whether the value is <code>null</code>, which is then counted as a hit of the site
+	 */
+	public static boolean __isNull(Object value, int site) {
+		if (value != null)
+			return false;
+		long[] hits = Hooks.hits;
+		hits[((int) Thread.currentThread().getId() & (hits.length / MAX_SITES - 1)) * MAX_SITES + site]++;
+		return true;
+	}
+}
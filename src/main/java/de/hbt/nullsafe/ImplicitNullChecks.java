@@ -0,0 +1,135 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.*;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+/**
+ * Lowers the null-checks of the field and array dereferences of <code>__nullsafe(...)</code> argument expressions to
+ * entries of the exception table, instead of a <code>DUP</code> and <code>IFNULL</code> before each dereference.
+ * <p>
+ * Each guarded <code>GETFIELD</code> or array load is the only instruction of a range of the exception table, whose
+ * handler for {@link NullPointerException} replaces the exception by <code>null</code> and jumps to where the
+ * expression would have been short-circuited:
+ *
+ * <pre>
+ * ALOAD a
+ * start: GETFIELD A.b
+ * end:   ...
+ * label:
+ * ...
+ * handler: POP
+ * ACONST_NULL
+ * GOTO label
+ * </pre>
+ *
+ * The expression itself is not changed at all, and HotSpot compiles the dereferences with its implicit null checks,
+ * so that the path without <code>null</code> costs nothing. These instructions only throw a
+ * {@link NullPointerException} if the dereferenced value is <code>null</code>. Calls, however, also throw one thrown
+ * by the called method, which must propagate, and a handler cannot tell these apart, because HotSpot omits the stack
+ * traces of frequent implicit exceptions. So the receivers of calls are still checked explicitly.
+ * <p>
+ * A handler starts with an empty operand stack, so only expressions which are evaluated on an otherwise empty operand
+ * stack can be guarded, such as the argument of <code>return __nullsafe(...)</code>.
+ */
+class ImplicitNullChecks {
+
+	static final String NullPointerException_name = "java/lang/NullPointerException";
+
+	/* The __nullsafe(...) calls whose argument is evaluated on an otherwise empty operand stack */
+	private final Set<AbstractInsnNode> guardableCalls = new HashSet<AbstractInsnNode>();
+	/* The handler of each label the guarded dereferences of a call short-circuit to */
+	private final Map<LabelNode, LabelNode> handlers = new LinkedHashMap<LabelNode, LabelNode>();
+	/* The label each handler jumps to */
+	private final Map<LabelNode, LabelNode> targets = new HashMap<LabelNode, LabelNode>();
+	/* The handler of each range of a guarded dereference by the label starting the range */
+	private final Map<LabelNode, LabelNode> ranges = new HashMap<LabelNode, LabelNode>();
+	private final List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+
+	/**
+	 * Determine which <code>__nullsafe(...)</code> calls of the given method can be guarded, before its instructions
+	 * are modified.
+	 */
+	ImplicitNullChecks(String owner, MethodNode mn) {
+		Frame<BasicValue>[] frames;
+		try {
+			frames = new Analyzer<BasicValue>(new BasicInterpreter()).analyze(owner, mn);
+		} catch (AnalyzerException e) {
+			return;
+		}
+		int i = 0;
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext(), i++) {
+			if (!(insn instanceof MethodInsnNode) || frames[i] == null)
+				continue;
+			MethodInsnNode call = (MethodInsnNode) insn;
+			if (Agent.isNullsafeMethod(call.owner, call.name)
+					&& frames[i].getStackSize() == Type.getArgumentTypes(call.desc).length)
+				guardableCalls.add(call);
+		}
+	}
+
+	/**
+	 * Determine whether the dereferences in the argument of the given <code>__nullsafe(...)</code> call can be
+	 * guarded.
+	 */
+	boolean canGuard(AbstractInsnNode call) {
+		return guardableCalls.contains(call);
+	}
+
+	/**
+	 * Guard the given dereference, which short-circuits the expression to the given label, if it is a field or array
+	 * dereference.
+	 *
+	 * @return whether the dereference was guarded, so that it needs no explicit null-check
+	 */
+	boolean guard(MethodNode mn, AbstractInsnNode dereference, LabelNode label) {
+		int opcode = dereference.getOpcode();
+		if (opcode != GETFIELD && (opcode < IALOAD || opcode > SALOAD))
+			return false;
+		LabelNode handler = handlers.get(label);
+		if (handler == null) {
+			handler = new LabelNode();
+			handlers.put(label, handler);
+			targets.put(handler, label);
+		}
+		LabelNode start = new LabelNode();
+		LabelNode end = new LabelNode();
+		mn.instructions.insertBefore(dereference, start);
+		mn.instructions.insert(dereference, end);
+		tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, NullPointerException_name));
+		ranges.put(start, handler);
+		return true;
+	}
+
+	/**
+	 * Append the handlers after all other instructions of the given method, and add the ranges of the guarded
+	 * dereferences before all existing ones, so that they take precedence over any handler of the method itself.
+	 */
+	void finish(MethodNode mn) {
+		for (Map.Entry<LabelNode, LabelNode> e : handlers.entrySet()) {
+			mn.instructions.add(e.getValue());
+			mn.instructions.add(new InsnNode(POP));
+			mn.instructions.add(new InsnNode(ACONST_NULL));
+			mn.instructions.add(new JumpInsnNode(GOTO, e.getKey()));
+		}
+		mn.tryCatchBlocks.addAll(0, tryCatchBlocks);
+	}
+
+	/**
+	 * Return the handler of the range started by the given label, or <code>null</code>.
+	 */
+	LabelNode handlerOfRange(LabelNode start) {
+		return ranges.get(start);
+	}
+
+	/**
+	 * Return the label the given handler jumps to, or <code>null</code> if the given label is not a handler.
+	 */
+	LabelNode target(LabelNode handler) {
+		return targets.get(handler);
+	}
+}
@@ -0,0 +1,196 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.net.URL;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Remembers which jars do not contain any class calling <code>__nullsafe(...)</code>, so that the classes loaded from
+ * them are rejected by a single lookup of the location of their {@link CodeSource}, instead of scanning the constant
+ * pool of each of them.
+ * <p>
+ * The first class loaded from a jar queues the jar for a background thread, which scans the constant pools of all of
+ * its class files with the {@link ConstantPoolScanner}. Until the scan has finished, and for jars containing any class
+ * which calls <code>__nullsafe(...)</code>, the classes are scanned one by one as before. Only <code>file:</code>
+ * locations of jar files are indexed, since directories of classes may change at any time. A jar is scanned again when
+ * its size or modification time changed, which is checked at most once per {@link #CHECK_INTERVAL_NANOS}.
+ * <p>
+ * The class files of jars written by the {@link Tool} are not scanned, if they are listed in its
+ * {@link Tool#INDEX_NAME} entry with the same CRC-32 as in the central directory of the jar. They were already
+ * rewritten, even if their constant pools still refer to <code>__nullsafe(...)</code>.
+ * <p>
+ * This relies on the classes of a code source being defined from the class files of its jar. Classes generated at
+ * runtime in the protection domain of a jar, such as proxies, are rejected as well, which only matters if they copy
+ * <code>__nullsafe(...)</code> calls from elsewhere. Use the <code>jarIndex=false</code> option of the agent then.
+ */
+class JarIndex implements Runnable {
+
+	static final long CHECK_INTERVAL_NANOS = 1000000000L;
+
+	/**
+	 * A jar file, or any other location which is not indexed if <code>file</code> is <code>null</code>.
+	 */
+	private static class Jar {
+		private final String location;
+		private final File file;
+		private final long length;
+		private final long lastModified;
+		/* Set by the background thread once the scan proved that no class calls __nullsafe(...) */
+		private volatile boolean withoutNullsafe;
+		private volatile long checkedAt;
+
+		Jar(String location, File file) {
+			this.location = location;
+			this.file = file;
+			this.length = file == null ? 0L : file.length();
+			this.lastModified = file == null ? 0L : file.lastModified();
+			this.checkedAt = System.nanoTime();
+		}
+
+		boolean isUnchanged() {
+			return file.length() == length && file.lastModified() == lastModified;
+		}
+	}
+
+	/* By the string of their location, since URL.equals() and hashCode() may resolve host names */
+	private final ConcurrentHashMap<String, Jar> jars = new ConcurrentHashMap<String, Jar>();
+	private final BlockingQueue<Jar> queue = new LinkedBlockingQueue<Jar>();
+	private final AgentStats stats;
+	private final long checkIntervalNanos;
+	private Thread thread;
+
+	JarIndex(AgentStats stats) {
+		this(stats, CHECK_INTERVAL_NANOS);
+	}
+
+	JarIndex(AgentStats stats, long checkIntervalNanos) {
+		this.stats = stats;
+		this.checkIntervalNanos = checkIntervalNanos;
+	}
+
+	/**
+	 * Determine whether the classes of the given protection domain come from a jar which was proven not to contain
+	 * any class calling <code>__nullsafe(...)</code>.
+	 */
+	boolean withoutNullsafe(ProtectionDomain protectionDomain) {
+		CodeSource codeSource = protectionDomain == null ? null : protectionDomain.getCodeSource();
+		URL location = codeSource == null ? null : codeSource.getLocation();
+		if (location == null)
+			return false;
+		String key = location.toString();
+		Jar jar = jars.get(key);
+		if (jar == null) {
+			index(key, location);
+			return false;
+		}
+		if (!jar.withoutNullsafe)
+			return false;
+		long now = System.nanoTime();
+		if (now - jar.checkedAt < checkIntervalNanos)
+			return true;
+		if (jar.isUnchanged()) {
+			jar.checkedAt = now;
+			return true;
+		}
+		/* Scan the changed jar again */
+		if (jars.remove(key, jar))
+			index(key, location);
+		return false;
+	}
+
+	private void index(String key, URL location) {
+		File file = null;
+		if ("file".equals(location.getProtocol()) && location.getPath().endsWith(".jar")) {
+			try {
+				file = new File(location.toURI());
+			} catch (Exception e) {
+				/* Not a valid file location, which is not indexed */
+			}
+			if (file != null && !file.isFile())
+				file = null;
+		}
+		Jar jar = new Jar(key, file);
+		if (jars.putIfAbsent(key, jar) == null && file != null) {
+			queue.add(jar);
+			start();
+		}
+	}
+
+	private synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "nullsafe-jar-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run() {
+		for (;;) {
+			Jar jar;
+			try {
+				jar = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			/* Skip jars which changed again before they were scanned */
+			if (jars.get(jar.location) != jar)
+				continue;
+			if (scan(jar.file)) {
+				stats.jarsWithoutNullsafe.increment();
+				jar.withoutNullsafe = true;
+			}
+			stats.jarsScanned.increment();
+		}
+	}
+
+	/**
+	 * Scan the class files of the given jar and determine whether none of them calls <code>__nullsafe(...)</code>,
+	 * except the ones already transformed by the {@link Tool}. Jars which cannot be read are assumed to contain such
+	 * calls.
+	 */
+	static boolean scan(File file) {
+		try {
+			ZipReader zip = new ZipReader(file);
+			try {
+				Map<String, Integer> transformed = transformedClasses(zip);
+				for (ZipReader.Entry entry : zip.getEntries()) {
+					if (!entry.name.endsWith(".class"))
+						continue;
+					Integer crc = transformed.get(entry.name);
+					if ((crc == null || crc.intValue() != entry.crc)
+							&& ConstantPoolScanner.referencesNullsafe(zip.getData(entry)))
+						return false;
+				}
+				return true;
+			} finally {
+				zip.close();
+			}
+		} catch (IOException e) {
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the CRC-32 of the class files listed in the {@link Tool#INDEX_NAME} entry of the given jar by their
+	 * entry names.
+	 */
+	private static Map<String, Integer> transformedClasses(ZipReader zip) throws IOException {
+		Map<String, Integer> transformed = new HashMap<String, Integer>();
+		for (ZipReader.Entry entry : zip.getEntries()) {
+			if (!entry.name.equals(Tool.INDEX_NAME))
+				continue;
+			for (String line : new String(zip.getData(entry), "UTF-8").split("\n")) {
+				int space = line.indexOf(' ');
+				if (line.startsWith("#") || space < 0)
+					continue;
+				int crc = (int) Long.parseLong(line.substring(0, space), 16);
+				transformed.put(line.substring(space + 1), Integer.valueOf(crc));
+			}
+		}
+		return transformed;
+	}
+}
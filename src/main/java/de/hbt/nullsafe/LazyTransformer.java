@@ -0,0 +1,359 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.instrument.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.objectweb.asm.*;
+
+/**
+ * Defers the analysis and rewrite of the <code>__nullsafe(...)</code> calls of a class until one of its methods is
+ * called for the first time.
+ * <p>
+ * When a class is loaded, each method with <code>__nullsafe(...)</code> calls only gets a trap at its start, which
+ * calls {@link Hooks#__firstCall(Class)} on the bootstrap class path (see {@link BootHooks}). That hands the class to a background thread, which retransforms all
+ * classes whose traps fired in the meantime with a single call of {@link Instrumentation#retransformClasses(Class...)}.
+ * The {@link Agent} then rewrites the original class file as usual. Once the class is retransformed, the trap calls
+ * the method again, which now runs the rewritten code, and returns its result. The trapped code itself is never run
+ * beyond the trap.
+ * <p>
+ * Constructors and static initializers cannot be called again, so classes which contain <code>__nullsafe(...)</code>
+ * calls in those are transformed when they are loaded.
+ * <p>
+ * If a trapped class cannot be retransformed, because it is not modifiable or the JVM rejects the rewritten class, the
+ * trap throws an {@link AssertionError} naming the class, instead of running its <code>__nullsafe(...)</code> calls
+ * unrewritten.
+ */
+class LazyTransformer implements Runnable {
+
+	static final String FIRST_CALL = "__firstCall";
+	static final String FIRST_CALL_DESC = "(Ljava/lang/Class;)Z";
+
+	private static volatile LazyTransformer instance;
+
+	private final Instrumentation instrumentation;
+	private final AgentStats stats;
+	private final BlockingQueue<Class<?>> pending = new LinkedBlockingQueue<Class<?>>();
+	private final ConcurrentMap<Class<?>, Request> requests = new ConcurrentHashMap<Class<?>, Request>();
+
+	/**
+	 * A pending retransformation of a class, which all threads calling a trapped method of that class wait for.
+	 */
+	private static class Request {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean retransformed;
+
+		void complete(boolean retransformed) {
+			this.retransformed = retransformed;
+			done.countDown();
+		}
+
+		boolean await() {
+			boolean interrupted = false;
+			try {
+				for (;;) {
+					try {
+						done.await();
+						return retransformed;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			} finally {
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	LazyTransformer(Instrumentation instrumentation, AgentStats stats) {
+		this.instrumentation = instrumentation;
+		this.stats = stats;
+	}
+
+	/**
+	 * Start the background thread and accept calls of trapped methods.
+	 */
+	void start() {
+		Thread thread = new Thread(this, "nullsafe-lazy-transformer");
+		thread.setDaemon(true);
+		thread.start();
+		instance = this;
+		try {
+			Method firstCall = LazyTransformer.class.getDeclaredMethod("firstCall", Class.class);
+			firstCall.setAccessible(true);
+			BootHooks.set("firstCall", firstCall);
+		} catch (NoSuchMethodException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Called by the trap of a method of the given class, see {@link Hooks#__firstCall(Class)}.
+	 */
+	static boolean firstCall(Class<?> c) {
+		LazyTransformer transformer = instance;
+		if (transformer == null)
+			throw new AssertionError("The __nullsafe(...) calls of class '" + c.getName()
+					+ "' were deferred by the lazy mode of the nullsafe agent, which is not running");
+		transformer.retransform(c);
+		return true;
+	}
+
+	/**
+	 * Retransform the given class in the background and wait until that is done.
+	 *
+	 * @throws AssertionError if the class could not be retransformed
+	 */
+	void retransform(Class<?> c) {
+		Request request = requests.get(c);
+		if (request == null) {
+			Request newRequest = new Request();
+			request = requests.putIfAbsent(c, newRequest);
+			if (request == null) {
+				request = newRequest;
+				pending.add(c);
+			}
+		}
+		if (!request.await())
+			throw new AssertionError("Could not retransform class '" + c.getName()
+					+ "' to rewrite its __nullsafe(...) calls, run the nullsafe agent without the lazy option");
+	}
+
+	public void run() {
+		List<Class<?>> batch = new ArrayList<Class<?>>();
+		for (;;) {
+			try {
+				batch.add(pending.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			pending.drainTo(batch);
+			for (Iterator<Class<?>> it = batch.iterator(); it.hasNext();) {
+				Class<?> c = it.next();
+				if (!instrumentation.isModifiableClass(c)) {
+					System.err.println("Could not retransform class '" + c.getName() + "', because it is not modifiable");
+					complete(c, false);
+					it.remove();
+				}
+			}
+			if (!batch.isEmpty())
+				retransform(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Retransform the given classes at once, or one after the other if that fails, so that a single class which cannot
+	 * be retransformed does not affect the others.
+	 */
+	private void retransform(List<Class<?>> batch) {
+		stats.retransformBatches.increment();
+		try {
+			instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+			for (Class<?> c : batch)
+				complete(c, true);
+			return;
+		} catch (Throwable t) {
+			if (batch.size() == 1) {
+				System.err.println("Could not retransform class '" + batch.get(0).getName() + "': " + t);
+				complete(batch.get(0), false);
+				return;
+			}
+		}
+		for (Class<?> c : batch)
+			retransform(Collections.<Class<?>>singletonList(c));
+	}
+
+	private void complete(Class<?> c, boolean retransformed) {
+		if (retransformed)
+			stats.classesRetransformed.increment();
+		requests.remove(c).complete(retransformed);
+	}
+
+	/**
+	 * Determine whether the given methods of a class can all be trapped, instead of transforming the class right away.
+	 */
+	static boolean canTrap(ClassReader cr, ClassScan scan) {
+		/* Class literals need Java 5 class files */
+		return cr.readByte(7) >= 49 && !scan.transformsInitializer();
+	}
+
+	/**
+	 * Insert a trap at the start of each of the given methods of the given class.
+	 */
+	static byte[] insertTraps(final String className, ClassReader cr, final ClassScan scan) {
+		final boolean isInterface = (cr.getAccess() & ACC_INTERFACE) != 0;
+		final boolean needsFrames = cr.readByte(7) >= 50;
+		ClassWriter cw = new ClassWriter(cr, 0);
+		cr.accept(new ClassVisitor(ASM7, cw) {
+			/* The index of the next visited method in the class file */
+			private int methodIndex;
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+					String[] exceptions) {
+				MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+				if (!scan.transforms(methodIndex++))
+					return mv;
+				return new TrapInserter(mv, className, isInterface, access, name, descriptor, needsFrames);
+			}
+		}, 0);
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Inserts the following trap at the start of a method:
+	 *
+	 * <pre>
+	 * if (Hooks.__firstCall(Owner.class))
+	 *     return method(args...);
+	 * </pre>
+	 *
+	 * Instance methods call themselves via <code>INVOKESPECIAL</code>, so that the rewritten method of the same class
+	 * is called instead of an override.
+	 */
+	private static class TrapInserter extends MethodVisitor {
+		private final String owner;
+		private final boolean isInterface;
+		private final int access;
+		private final String name;
+		private final String descriptor;
+		/* Whether a frame must still be added after the trap, unless the method starts with its own frame */
+		private boolean frameNeeded;
+
+		TrapInserter(MethodVisitor mv, String owner, boolean isInterface, int access, String name, String descriptor,
+				boolean needsFrames) {
+			super(ASM7, mv);
+			this.owner = owner;
+			this.isInterface = isInterface;
+			this.access = access;
+			this.name = name;
+			this.descriptor = descriptor;
+			this.frameNeeded = needsFrames;
+		}
+
+		@Override
+		public void visitCode() {
+			super.visitCode();
+			Label body = new Label();
+			super.visitLdcInsn(Type.getObjectType(owner));
+			super.visitMethodInsn(INVOKESTATIC, BootHooks.name(), FIRST_CALL, FIRST_CALL_DESC, false);
+			super.visitJumpInsn(IFEQ, body);
+			int var = 0;
+			boolean isStatic = (access & ACC_STATIC) != 0;
+			if (!isStatic)
+				super.visitVarInsn(ALOAD, var++);
+			for (Type arg : Type.getArgumentTypes(descriptor)) {
+				super.visitVarInsn(arg.getOpcode(ILOAD), var);
+				var += arg.getSize();
+			}
+			super.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKESPECIAL, owner, name, descriptor, isInterface);
+			super.visitInsn(Type.getReturnType(descriptor).getOpcode(IRETURN));
+			super.visitLabel(body);
+		}
+
+		@Override
+		public void visitMaxs(int maxStack, int maxLocals) {
+			/* The trap needs the class and then all arguments on the stack, or the result of the call */
+			int trapStack = Math.max(Type.getArgumentsAndReturnSizes(descriptor) >> 2, 2);
+			super.visitMaxs(Math.max(maxStack, trapStack), maxLocals);
+		}
+
+		@Override
+		public void visitFrame(int type, int numLocal, Object[] local, int numStack, Object[] stack) {
+			/* The first frame of the method is at the same offset as the jump target of the trap */
+			frameNeeded = false;
+			super.visitFrame(type, numLocal, local, numStack, stack);
+		}
+
+		private void addFrame() {
+			if (frameNeeded) {
+				frameNeeded = false;
+				super.visitFrame(F_SAME, 0, null, 0, null);
+			}
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			addFrame();
+			super.visitInsn(opcode);
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			addFrame();
+			super.visitIntInsn(opcode, operand);
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			addFrame();
+			super.visitVarInsn(opcode, var);
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			addFrame();
+			super.visitTypeInsn(opcode, type);
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+			addFrame();
+			super.visitFieldInsn(opcode, owner, name, descriptor);
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+			addFrame();
+			super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+				Object... bootstrapMethodArguments) {
+			addFrame();
+			super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			addFrame();
+			super.visitJumpInsn(opcode, label);
+		}
+
+		@Override
+		public void visitLdcInsn(Object value) {
+			addFrame();
+			super.visitLdcInsn(value);
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			addFrame();
+			super.visitIincInsn(var, increment);
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			addFrame();
+			super.visitTableSwitchInsn(min, max, dflt, labels);
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			addFrame();
+			super.visitLookupSwitchInsn(dflt, keys, labels);
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+			addFrame();
+			super.visitMultiANewArrayInsn(descriptor, numDimensions);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Counts how often each link of the argument expressions of <code>__nullsafe(...)</code> calls produced
+ * <code>null</code>, so that the expression was short-circuited there.
+ * <p>
+ * In profile mode, the {@link Agent} registers each null-check it inserts as a site, given by the class, method and
+ * line of the call and the position of the link in the expression, where <code>0</code> is its first value. Instead
+ * of <code>IFNULL</code>, the null-check then calls {@link Hooks#__isNull(Object, int)} with the index of its site,
+ * which only counts the hit when the value is <code>null</code>. The hits are kept in a table which is allocated once
+ * for {@link #MAX_SITES} sites, with a stripe per thread like {@link StripedCounter}, so that counting never allocates
+ * nor contends. The table is handed to the hooks which the inserted code calls, which are on the bootstrap class path
+ * when the agent runs (see {@link BootHooks}), so that the hits of classes whose class loader has its own copy of the
+ * nullsafe jar are counted as well. Sites beyond that are not profiled. The hits are counted without atomic updates, which would cost more
+ * than the rest of the check, so that threads hitting the same site in the same stripe at the same time may lose some
+ * hits.
+ * <p>
+ * Sites are registered once per JVM, so that transforming a class again, such as to outline its calls, reuses them.
+ */
+class NullProfile implements Runnable {
+
+	static final int MAX_SITES = Hooks.MAX_SITES;
+	static final long DUMP_INTERVAL_MILLIS = 60000L;
+
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	/* The descriptions of the registered sites, by index */
+	private static final String[] sites = new String[MAX_SITES];
+	private static final Map<String, Integer> siteIndexes = new HashMap<String, Integer>();
+	private static volatile int siteCount;
+
+	private final File file;
+
+	/**
+	 * Holds the hits of each site and stripe, which are allocated with the first site and shared with the hooks.
+	 */
+	private static class Table {
+		static final long[] hits = new long[STRIPES * MAX_SITES];
+	}
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors && stripes < 8)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	private NullProfile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Return the index of the null-check of the given link of a <code>__nullsafe(...)</code> call, or <code>-1</code>
+	 * if there are too many sites to profile it.
+	 *
+	 * @param line the line of the call, or <code>-1</code> if unknown
+	 * @param link a description of the value which is checked, such as the called method
+	 */
+	static synchronized int site(String className, String method, int line, int position, String link) {
+		String site = className.replace('/', '.') + "\t" + method + "\t" + line + "\t" + position + "\t" + link;
+		Integer index = siteIndexes.get(site);
+		if (index != null)
+			return index.intValue();
+		if (siteCount == MAX_SITES)
+			return -1;
+		if (siteCount == 0)
+			BootHooks.set("hits", Table.hits);
+		sites[siteCount] = site;
+		siteIndexes.put(site, Integer.valueOf(siteCount));
+		return siteCount++;
+	}
+
+	/**
+	 * Return the sites which were hit as <code>"hits class method line position link"</code>, separated by tabs,
+	 * with the most hits first.
+	 */
+	static String[] snapshot() {
+		int count = siteCount;
+		List<Object[]> hitSites = new ArrayList<Object[]>();
+		for (int site = 0; site < count; site++) {
+			long sum = 0L;
+			for (int stripe = 0; stripe < STRIPES; stripe++)
+				sum += Table.hits[stripe * MAX_SITES + site];
+			if (sum > 0L)
+				hitSites.add(new Object[] { Long.valueOf(sum), sites[site] });
+		}
+		Collections.sort(hitSites, new Comparator<Object[]>() {
+			public int compare(Object[] a, Object[] b) {
+				return ((Long) b[0]).compareTo((Long) a[0]);
+			}
+		});
+		String[] snapshot = new String[hitSites.size()];
+		for (int i = 0; i < snapshot.length; i++)
+			snapshot[i] = hitSites.get(i)[0] + "\t" + hitSites.get(i)[1];
+		return snapshot;
+	}
+
+	/**
+	 * Write a snapshot to the given file every {@link #DUMP_INTERVAL_MILLIS} and when the JVM exits.
+	 */
+	static void startDumping(final File file) {
+		NullProfile dumper = new NullProfile(file);
+		Thread thread = new Thread(dumper, "nullsafe-profile");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				dump(file);
+			}
+		}, "nullsafe-profile-dump"));
+	}
+
+	public void run() {
+		for (;;) {
+			try {
+				Thread.sleep(DUMP_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			dump(file);
+		}
+	}
+
+	/**
+	 * Write a snapshot to the given file, replacing it at once so that readers never see a partial snapshot.
+	 */
+	static void dump(File file) {
+		try {
+			File parent = file.getAbsoluteFile().getParentFile();
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+			try {
+				Writer out = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8");
+				try {
+					out.write("hits\tclass\tmethod\tline\tposition\tlink\n");
+					for (String site : snapshot())
+						out.write(site + "\n");
+				} finally {
+					out.close();
+				}
+				if (!tmpFile.renameTo(file) && !(file.delete() && tmpFile.renameTo(file)))
+					throw new IOException("Could not rename '" + tmpFile + "' to '" + file + "'");
+			} finally {
+				tmpFile.delete();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not write the nullsafe profile to '" + file + "': " + e.getMessage());
+		}
+	}
+}
@@ -4,6 +4,18 @@ public class Nullsafe {
 	private Nullsafe() {
 	}
 
+	/**
+	 * Computes the fallback value of {@link Nullsafe#__nullsafeOrElseGet(Object, Fallback)}.
+	 *
+	 * @param <T> the type of the fallback value
+	 */
+	public interface Fallback<T> {
+		/**
+		 * @return the fallback value
+		 */
+		T get();
+	}
+
 	/**
 	 * Expressions used as argument to a call of this method will not throw a {@link NullPointerException} but only ever
 	 * produce <code>null</code> as the result of the whole expression if any intermediate sub-expression produces
@@ -16,4 +28,124 @@ public class Nullsafe {
 	public static <T> T __nullsafe(T v) {
 		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
 	}
+
+	/**
+	 * Like {@link #__nullsafe(Object)}, but produces the given fallback value instead of <code>null</code>, including
+	 * when the whole expression produces <code>null</code> itself.
+	 * <p>
+	 * The fallback value is only evaluated if the expression produces <code>null</code>, so that the non-null path
+	 * needs no additional checks.
+	 * 
+	 * @param v        an argument expression
+	 * @param fallback the result if the expression produces <code>null</code>
+	 * @param <T>      the type of the expression
+	 * @return the expression's value (if not <code>null</code>) or <code>fallback</code>
+	 */
+	public static <T> T __nullsafe(T v, T fallback) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafe(Object, Object)}, but the fallback value is computed by the given {@link Fallback}, which
+	 * is only created and called if the expression produces <code>null</code>.
+	 * 
+	 * @param v        an argument expression
+	 * @param fallback computes the result if the expression produces <code>null</code>
+	 * @param <T>      the type of the expression
+	 * @return the expression's value (if not <code>null</code>) or the value computed by <code>fallback</code>
+	 */
+	public static <T> T __nullsafeOrElseGet(T v, Fallback<? extends T> fallback) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafe(Object)} for expressions producing an <code>int</code>, but without boxing. If any
+	 * intermediate sub-expression produces <code>null</code>, the result is the given default value instead.
+	 * <p>
+	 * The default value is only evaluated if the expression produces <code>null</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static int __nullsafeInt(int v, int defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>long</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static long __nullsafeLong(long v, long defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>float</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static float __nullsafeFloat(float v, float defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>double</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static double __nullsafeDouble(double v, double defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>boolean</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static boolean __nullsafeBoolean(boolean v, boolean defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>char</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static char __nullsafeChar(char v, char defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>byte</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static byte __nullsafeByte(byte v, byte defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
+
+	/**
+	 * Like {@link #__nullsafeInt(int, int)} for expressions producing a <code>short</code>.
+	 * 
+	 * @param v            an argument expression
+	 * @param defaultValue the result if the expression produces <code>null</code>
+	 * @return the expression's value or <code>defaultValue</code>
+	 */
+	public static short __nullsafeShort(short v, short defaultValue) {
+		throw new AssertionError("JVM was not started with '-javaagent:nullsafe-1.0.0-SNAPSHOT.jar'");
+	}
 }
@@ -0,0 +1,377 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.*;
+
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.*;
+
+/**
+ * Moves <code>__nullsafe(...)</code> calls including their argument expressions out of a method which grew too large
+ * by the rewrite, into private static synthetic helper methods of the same class, which are then rewritten instead.
+ * <p>
+ * A call is replaced by loading the local variables its expression reads and invoking the helper, which takes them as
+ * parameters. This only works for straight-line expressions which do not store into local variables, so that the
+ * helper does not need any stack map frames besides the ones the rewrite adds. The types of the parameters are taken
+ * from the existing (expanded) frames of the method via an {@link AnalyzerAdapter}, so this requires Java 7+ class
+ * files.
+ */
+class Outliner {
+
+	private final String owner;
+	/* The names of all methods of the class, to find unused helper names */
+	private final Set<String> methodNames;
+	private final List<MethodNode> helpers = new ArrayList<MethodNode>();
+
+	/**
+	 * The instructions of a <code>__nullsafe(...)</code> call and its arguments, from the first instruction of its
+	 * argument expression to the call itself.
+	 */
+	private static class Range {
+		private final AbstractInsnNode first;
+		private final MethodInsnNode call;
+		/* The index of the first instruction */
+		private final int start;
+		private final int length;
+		/* The locals when entering the range, in the format of AnalyzerAdapter */
+		private List<Object> locals;
+
+		Range(AbstractInsnNode first, MethodInsnNode call, int start, int length) {
+			this.first = first;
+			this.call = call;
+			this.start = start;
+			this.length = length;
+		}
+	}
+
+	Outliner(String owner, Set<String> methodNames) {
+		this.owner = owner;
+		this.methodNames = methodNames;
+	}
+
+	/**
+	 * Return the helper methods created so far, which still contain the <code>__nullsafe(...)</code> calls.
+	 */
+	List<MethodNode> getHelpers() {
+		return helpers;
+	}
+
+	/**
+	 * Move as many of the given <code>__nullsafe(...)</code> calls of the given method as possible into helper methods.
+	 *
+	 * @param frames the frames of the method as computed by an {@link Analyzer}
+	 * @return the number of calls which were moved
+	 */
+	int outline(MethodNode mn, Frame<BasicValue>[] frames, Collection<MethodInsnNode> calls) {
+		Set<LabelNode> referenced = referencedLabels(mn);
+		List<Range> ranges = new ArrayList<Range>();
+		for (MethodInsnNode call : calls) {
+			Range range = range(mn, frames, call, referenced);
+			if (range != null)
+				ranges.add(range);
+		}
+		return outline(mn, ranges);
+	}
+
+	/**
+	 * Move as many of the given <code>__nullsafe(...)</code> calls of the given method as possible into helper
+	 * methods, without the frames of the whole method.
+	 *
+	 * @param starts the first instruction of the arguments of each call, as determined by the {@link ArgumentSlicer}
+	 * @return the number of calls which were moved
+	 */
+	int outline(MethodNode mn, Map<MethodInsnNode, AbstractInsnNode> starts) {
+		Set<LabelNode> referenced = referencedLabels(mn);
+		List<Range> ranges = new ArrayList<Range>();
+		for (Map.Entry<MethodInsnNode, AbstractInsnNode> e : starts.entrySet()) {
+			Range range = range(mn, e.getValue(), e.getKey(), referenced);
+			if (range != null)
+				ranges.add(range);
+		}
+		return outline(mn, ranges);
+	}
+
+	private int outline(MethodNode mn, List<Range> ranges) {
+		if (ranges.isEmpty())
+			return 0;
+		recordLocals(mn, ranges);
+		/*
+		 * Outline the outermost calls first, which moves any nested calls along, and calls of the same length in the
+		 * order of the method, so that the helpers are numbered the same regardless of the order of the given calls
+		 */
+		Collections.sort(ranges, new Comparator<Range>() {
+			public int compare(Range r1, Range r2) {
+				return r1.length != r2.length ? r2.length - r1.length : r1.start - r2.start;
+			}
+		});
+		Set<AbstractInsnNode> moved = new HashSet<AbstractInsnNode>();
+		int outlined = 0;
+		for (Range range : ranges) {
+			if (moved.contains(range.call) || range.locals == null)
+				continue;
+			if (outline(mn, range, moved))
+				outlined++;
+		}
+		return outlined;
+	}
+
+	/**
+	 * Determine the instructions of the given call and its argument expression, or return <code>null</code> if they
+	 * cannot be moved into a helper method.
+	 */
+	private Range range(MethodNode mn, Frame<BasicValue>[] frames, MethodInsnNode call, Set<LabelNode> referenced) {
+		int end = mn.instructions.indexOf(call);
+		if (frames[end] == null)
+			return null;
+		/* The height of the stack below the arguments of the call */
+		int base = frames[end].getStackSize() - Type.getArgumentTypes(call.desc).length;
+		int start = end - 1;
+		while (start >= 0 && frames[start] != null && frames[start].getStackSize() > base)
+			start--;
+		if (start < 0 || frames[start] == null || mn.instructions.get(start).getOpcode() < 0)
+			return null;
+		return range(mn, mn.instructions.get(start), call, referenced);
+	}
+
+	/**
+	 * Return the instructions from the given first instruction of the argument expression to the given call, or
+	 * <code>null</code> if they cannot be moved into a helper method.
+	 */
+	private Range range(MethodNode mn, AbstractInsnNode first, MethodInsnNode call, Set<LabelNode> referenced) {
+		for (AbstractInsnNode insn = first; insn != call; insn = insn.getNext()) {
+			if (!canMove(insn, referenced))
+				return null;
+		}
+		int start = mn.instructions.indexOf(first);
+		return new Range(first, call, start, mn.instructions.indexOf(call) - start + 1);
+	}
+
+	/**
+	 * Determine whether the given instruction within an argument expression can be moved into a helper method: It must
+	 * not jump, must not store into a local variable and must not access the stack below the expression.
+	 */
+	private boolean canMove(AbstractInsnNode insn, Set<LabelNode> referenced) {
+		switch (insn.getType()) {
+		case AbstractInsnNode.LABEL:
+			return !referenced.contains(insn);
+		case AbstractInsnNode.LINE:
+			return true;
+		case AbstractInsnNode.FRAME:
+		case AbstractInsnNode.JUMP_INSN:
+		case AbstractInsnNode.TABLESWITCH_INSN:
+		case AbstractInsnNode.LOOKUPSWITCH_INSN:
+		case AbstractInsnNode.IINC_INSN:
+			return false;
+		case AbstractInsnNode.VAR_INSN:
+			return insn.getOpcode() >= ILOAD && insn.getOpcode() <= ALOAD;
+		case AbstractInsnNode.METHOD_INSN:
+			MethodInsnNode min = (MethodInsnNode) insn;
+			/* Super calls must stay in an instance method */
+			return min.getOpcode() != INVOKESPECIAL || "<init>".equals(min.name) || owner.equals(min.owner);
+		default:
+			switch (insn.getOpcode()) {
+			case POP:
+			case POP2:
+			case DUP_X1:
+			case DUP_X2:
+			case DUP2:
+			case DUP2_X1:
+			case DUP2_X2:
+			case SWAP:
+			case IRETURN:
+			case LRETURN:
+			case FRETURN:
+			case DRETURN:
+			case ARETURN:
+			case RETURN:
+			case ATHROW:
+			case MONITORENTER:
+			case MONITOREXIT:
+				return false;
+			default:
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Return all labels which are referenced by anything but line numbers, and therefore must not be moved.
+	 */
+	private static Set<LabelNode> referencedLabels(MethodNode mn) {
+		Set<LabelNode> labels = new HashSet<LabelNode>();
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof JumpInsnNode) {
+				labels.add(((JumpInsnNode) insn).label);
+			} else if (insn instanceof TableSwitchInsnNode) {
+				labels.add(((TableSwitchInsnNode) insn).dflt);
+				labels.addAll(((TableSwitchInsnNode) insn).labels);
+			} else if (insn instanceof LookupSwitchInsnNode) {
+				labels.add(((LookupSwitchInsnNode) insn).dflt);
+				labels.addAll(((LookupSwitchInsnNode) insn).labels);
+			}
+		}
+		for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+			labels.add(tcb.start);
+			labels.add(tcb.end);
+			labels.add(tcb.handler);
+		}
+		if (mn.localVariables != null) {
+			for (LocalVariableNode lv : mn.localVariables) {
+				labels.add(lv.start);
+				labels.add(lv.end);
+			}
+		}
+		addAll(labels, mn.visibleLocalVariableAnnotations);
+		addAll(labels, mn.invisibleLocalVariableAnnotations);
+		return labels;
+	}
+
+	private static void addAll(Set<LabelNode> labels, List<LocalVariableAnnotationNode> annotations) {
+		if (annotations == null)
+			return;
+		for (LocalVariableAnnotationNode annotation : annotations) {
+			labels.addAll(annotation.start);
+			labels.addAll(annotation.end);
+		}
+	}
+
+	/**
+	 * Record the types of the locals at the start of each range from the frames of the method.
+	 */
+	private void recordLocals(MethodNode mn, List<Range> ranges) {
+		Map<AbstractInsnNode, List<Range>> starts = new HashMap<AbstractInsnNode, List<Range>>();
+		for (Range range : ranges) {
+			List<Range> list = starts.get(range.first);
+			if (list == null) {
+				list = new ArrayList<Range>();
+				starts.put(range.first, list);
+			}
+			list.add(range);
+		}
+		AnalyzerAdapter adapter = new AnalyzerAdapter(owner, mn.access, mn.name, mn.desc, null);
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			List<Range> list = starts.get(insn);
+			if (list != null && adapter.locals != null) {
+				for (Range range : list)
+					range.locals = new ArrayList<Object>(adapter.locals);
+			}
+			insn.accept(adapter);
+		}
+	}
+
+	/**
+	 * Move the given range into a new helper method and replace it by a call of the helper.
+	 */
+	private boolean outline(MethodNode mn, Range range, Set<AbstractInsnNode> moved) {
+		/* The parameters of the helper are the locals read by the expression, in the order of their indexes */
+		SortedMap<Integer, Type> params = new TreeMap<Integer, Type>();
+		for (AbstractInsnNode insn = range.first; insn != range.call; insn = insn.getNext()) {
+			if (!(insn instanceof VarInsnNode))
+				continue;
+			int var = ((VarInsnNode) insn).var;
+			Type type = var < range.locals.size() ? type(range.locals.get(var)) : null;
+			if (type == null)
+				return false;
+			params.put(Integer.valueOf(var), type);
+		}
+		Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+		int slot = 0;
+		for (Map.Entry<Integer, Type> param : params.entrySet()) {
+			slots.put(param.getKey(), Integer.valueOf(slot));
+			slot += param.getValue().getSize();
+		}
+		Type returnType = Type.getReturnType(range.call.desc);
+		String desc = Type.getMethodDescriptor(returnType, params.values().toArray(new Type[params.size()]));
+		MethodNode helper = new MethodNode(ASM7, ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, helperName(mn.name), desc,
+				null, null);
+
+		/* Copy the expression into the helper */
+		Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+		for (AbstractInsnNode insn = range.first; insn != range.call; insn = insn.getNext()) {
+			if (insn instanceof LabelNode)
+				labels.put((LabelNode) insn, new LabelNode());
+		}
+		LineNumberNode line = lineNumberBefore(range.first);
+		if (line != null) {
+			LabelNode start = new LabelNode();
+			helper.instructions.add(start);
+			helper.instructions.add(new LineNumberNode(line.line, start));
+		}
+		for (AbstractInsnNode insn = range.first; insn != range.call.getNext(); insn = insn.getNext()) {
+			if (insn instanceof LineNumberNode && !labels.containsKey(((LineNumberNode) insn).start))
+				continue;
+			AbstractInsnNode copy = insn.clone(labels);
+			if (copy instanceof VarInsnNode)
+				((VarInsnNode) copy).var = slots.get(Integer.valueOf(((VarInsnNode) copy).var)).intValue();
+			helper.instructions.add(copy);
+		}
+		helper.instructions.add(new InsnNode(returnType.getOpcode(IRETURN)));
+		/* Upper bounds for the analysis, the ClassWriter computes the actual maximums */
+		helper.maxLocals = slot;
+		helper.maxStack = mn.maxStack;
+		mn.maxStack += slot;
+		helpers.add(helper);
+
+		/* Replace the expression by a call of the helper */
+		InsnList invocation = new InsnList();
+		for (Map.Entry<Integer, Type> param : params.entrySet())
+			invocation.add(new VarInsnNode(param.getValue().getOpcode(ILOAD), param.getKey().intValue()));
+		invocation.add(new MethodInsnNode(INVOKESTATIC, owner, helper.name, helper.desc, false));
+		mn.instructions.insertBefore(range.first, invocation);
+		AbstractInsnNode end = range.call.getNext();
+		AbstractInsnNode insn = range.first;
+		while (insn != end) {
+			AbstractInsnNode next = insn.getNext();
+			moved.add(insn);
+			mn.instructions.remove(insn);
+			insn = next;
+		}
+		return true;
+	}
+
+	/**
+	 * Convert the given local type in the format of {@link AnalyzerAdapter} to the type of a parameter, or return
+	 * <code>null</code> if the local cannot be passed to a helper, such as uninitialized objects.
+	 */
+	private static Type type(Object local) {
+		if (local == INTEGER)
+			return Type.INT_TYPE;
+		if (local == FLOAT)
+			return Type.FLOAT_TYPE;
+		if (local == LONG)
+			return Type.LONG_TYPE;
+		if (local == DOUBLE)
+			return Type.DOUBLE_TYPE;
+		if (local instanceof String) {
+			String type = (String) local;
+			return type.charAt(0) == '[' ? Type.getType(type) : Type.getObjectType(type);
+		}
+		return null;
+	}
+
+	private static LineNumberNode lineNumberBefore(AbstractInsnNode insn) {
+		for (; insn != null; insn = insn.getPrevious()) {
+			if (insn instanceof LineNumberNode)
+				return (LineNumberNode) insn;
+		}
+		return null;
+	}
+
+	/**
+	 * Return an unused name for a helper of the given method, like javac names the methods of lambdas.
+	 */
+	private String helperName(String methodName) {
+		if ("<init>".equals(methodName))
+			methodName = "new";
+		else if ("<clinit>".equals(methodName))
+			methodName = "static";
+		for (int i = 0;; i++) {
+			String name = "nullsafe$" + methodName + "$" + i;
+			if (methodNames.add(name))
+				return name;
+		}
+	}
+}
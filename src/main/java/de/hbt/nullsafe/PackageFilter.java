@@ -0,0 +1,131 @@
+package de.hbt.nullsafe;
+
+import java.util.*;
+
+/**
+ * Decides whether a class (given by its internal name) is included, based on lists of included and excluded package
+ * prefixes.
+ * <p>
+ * All prefixes are compiled once into a trie, which is then matched in a single pass over the characters of the class
+ * name. The longest matching prefix decides whether a class is included or excluded, so that an include of
+ * <code>org/apache/mine/</code> overrides an exclude of <code>org/apache/</code>. If no prefix matches, the default
+ * decision given at construction applies.
+ * <p>
+ * Prefixes can be given in binary (<code>org.apache</code>) or internal (<code>org/apache</code>) form and denote
+ * packages, so that <code>org.apache</code> matches <code>org/apache/Foo</code> and <code>org/apache/bar/Foo</code>
+ * but not <code>org/apachex/Foo</code>. A trailing <code>*</code> denotes a plain name prefix instead, such as
+ * <code>com.acme.Generated*</code>.
+ */
+class PackageFilter {
+
+	private static final byte NONE = 0;
+	private static final byte INCLUDE = 1;
+	private static final byte EXCLUDE = 2;
+
+	/* The sorted child characters of each node */
+	private final char[][] labels;
+	/* The child nodes of each node corresponding to labels */
+	private final int[][] children;
+	/* The decision of each node, if the class name has the prefix leading to that node */
+	private final byte[] decisions;
+	private final boolean includeByDefault;
+
+	/**
+	 * Builder node, which is only used while constructing the trie.
+	 */
+	private static class Node {
+		private final TreeMap<Character, Node> children = new TreeMap<Character, Node>();
+		private byte decision = NONE;
+		private int index;
+	}
+
+	PackageFilter(Collection<String> includes, Collection<String> excludes, boolean includeByDefault) {
+		this.includeByDefault = includeByDefault;
+		Node root = new Node();
+		/* Excludes first, so that an equal include wins */
+		for (String exclude : excludes)
+			add(root, normalize(exclude), EXCLUDE);
+		for (String include : includes)
+			add(root, normalize(include), INCLUDE);
+		List<Node> nodes = new ArrayList<Node>();
+		number(root, nodes);
+		labels = new char[nodes.size()][];
+		children = new int[nodes.size()][];
+		decisions = new byte[nodes.size()];
+		for (Node node : nodes) {
+			char[] nodeLabels = new char[node.children.size()];
+			int[] nodeChildren = new int[node.children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+				nodeLabels[i] = e.getKey().charValue();
+				nodeChildren[i] = e.getValue().index;
+				i++;
+			}
+			labels[node.index] = nodeLabels;
+			children[node.index] = nodeChildren;
+			decisions[node.index] = node.decision;
+		}
+	}
+
+	static String normalize(String prefix) {
+		String p = prefix.trim().replace('.', '/');
+		if (p.endsWith("*"))
+			return p.substring(0, p.length() - 1);
+		if (p.length() > 0 && !p.endsWith("/"))
+			return p + "/";
+		return p;
+	}
+
+	private static void add(Node root, String prefix, byte decision) {
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++) {
+			Character c = Character.valueOf(prefix.charAt(i));
+			Node child = node.children.get(c);
+			if (child == null) {
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		node.decision = decision;
+	}
+
+	private static void number(Node node, List<Node> nodes) {
+		node.index = nodes.size();
+		nodes.add(node);
+		for (Node child : node.children.values())
+			number(child, nodes);
+	}
+
+	/**
+	 * Determine whether the class with the given internal name is included.
+	 */
+	boolean matches(String internalName) {
+		int node = 0;
+		byte decision = decisions[0];
+		for (int i = 0, len = internalName.length(); i < len; i++) {
+			node = child(node, internalName.charAt(i));
+			if (node < 0)
+				break;
+			if (decisions[node] != NONE)
+				decision = decisions[node];
+		}
+		return decision == NONE ? includeByDefault : decision == INCLUDE;
+	}
+
+	private int child(int node, char c) {
+		char[] nodeLabels = labels[node];
+		int low = 0, high = nodeLabels.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char label = nodeLabels[mid];
+			if (label < c)
+				low = mid + 1;
+			else if (label > c)
+				high = mid - 1;
+			else
+				return children[node][mid];
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,247 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.util.*;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.commons.AnalyzerAdapter;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Inserts stack map frames at the labels which the rewrite of <code>__nullsafe(...)</code> calls introduced as new
+ * jump targets, while keeping all existing frames of a method.
+ * <p>
+ * The frame at such a label is derived from the types along the instructions of the method as determined by an
+ * {@link AnalyzerAdapter} from the existing (expanded) frames, so that no classes need to be loaded to compute common
+ * super classes as with {@link org.objectweb.asm.ClassWriter#COMPUTE_FRAMES}. This only works if all jumps to the new
+ * label agree with the state at the label, which is the case for the straight-line code of a typical
+ * <code>__nullsafe(...)</code> argument expression. Otherwise, all frames of the class need to be computed.
+ */
+class StackMapFrames {
+
+	/**
+	 * The state of the locals and the operand stack at a jump to one of the new labels.
+	 */
+	private static class State {
+		private final List<Object> locals;
+		private final List<Object> stack;
+
+		State(List<Object> locals, List<Object> stack) {
+			this.locals = locals;
+			this.stack = stack;
+		}
+	}
+
+	private StackMapFrames() {
+	}
+
+	/**
+	 * Insert frames at the given labels of the given method.
+	 * <p>
+	 * Each label is mapped to the type of the value on top of the operand stack at that label, in the format of
+	 * {@link org.objectweb.asm.MethodVisitor#visitFrame(int, int, Object[], int, Object[])}. All other stack and local
+	 * types are taken from the state when falling through to the label or, if the label cannot be reached by falling
+	 * through, from the state of the first jump to the label.
+	 * <p>
+	 * The handlers of dereferences guarded by {@link ImplicitNullChecks} get a frame with the locals at their ranges,
+	 * and their ranges count as jumps with <code>null</code> to the labels the handlers jump to.
+	 *
+	 * @param implicit the guarded dereferences, or <code>null</code>
+	 * @return <code>true</code> if all frames could be inserted, or <code>false</code> if the frames of the method must
+	 *         be computed instead
+	 */
+	static boolean insert(String owner, MethodNode mn, Map<LabelNode, Object> labels, ImplicitNullChecks implicit) {
+		AnalyzerAdapter adapter = new AnalyzerAdapter(owner, mn.access, mn.name, mn.desc, null);
+		Map<LabelNode, List<State>> jumps = new HashMap<LabelNode, List<State>>();
+		/* The locals at the ranges of each handler of the guarded dereferences */
+		Map<LabelNode, List<Object>> handlerLocals = new HashMap<LabelNode, List<Object>>();
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (implicit != null && insn instanceof LabelNode) {
+				LabelNode label = (LabelNode) insn;
+				LabelNode handler = implicit.handlerOfRange(label);
+				if (handler != null && adapter.locals != null) {
+					List<Object> locals = compact(adapter.locals);
+					List<Object> existing = handlerLocals.put(handler, locals);
+					if (existing != null && !existing.equals(locals))
+						return false;
+					/* The handler replaces the exception by null, on an otherwise empty stack */
+					record(jumps, implicit.target(handler),
+							new State(locals, Collections.<Object> singletonList(NULL)));
+				} else if (implicit.target(label) != null) {
+					List<Object> locals = handlerLocals.get(label);
+					if (locals == null || frameAtSameOffset(label) != null)
+						return false;
+					insn.accept(adapter);
+					FrameNode frame = new FrameNode(F_NEW, locals.size(), labelNodes(mn, locals), 1,
+							new Object[] { ImplicitNullChecks.NullPointerException_name });
+					mn.instructions.insert(label, frame);
+					frame.accept(adapter);
+					insn = frame;
+					continue;
+				}
+			}
+			if (insn instanceof JumpInsnNode && labels.containsKey(((JumpInsnNode) insn).label)) {
+				JumpInsnNode jump = (JumpInsnNode) insn;
+				if (insn.getOpcode() == GOTO && adapter.locals != null)
+					record(jumps, jump.label, adapter);
+				insn.accept(adapter);
+				if (insn.getOpcode() != GOTO && adapter.locals != null)
+					record(jumps, jump.label, adapter);
+				continue;
+			}
+			if (insn instanceof LabelNode && jumps.containsKey(insn)) {
+				LabelNode label = (LabelNode) insn;
+				insn.accept(adapter);
+				FrameNode existing = frameAtSameOffset(label);
+				if (existing != null) {
+					/* The existing frame is visited later and must agree with all jumps */
+					if (!isAssignable(jumps.get(label), labels(existing.local), labels(existing.stack)))
+						return false;
+					continue;
+				}
+				FrameNode frame = frameAt(mn, label, labels.get(label), adapter, jumps.get(label));
+				if (frame == null)
+					return false;
+				mn.instructions.insert(label, frame);
+				frame.accept(adapter);
+				insn = frame;
+				continue;
+			}
+			insn.accept(adapter);
+		}
+		return true;
+	}
+
+	private static void record(Map<LabelNode, List<State>> jumps, LabelNode label, AnalyzerAdapter adapter) {
+		record(jumps, label, new State(compact(adapter.locals), compact(adapter.stack)));
+	}
+
+	private static void record(Map<LabelNode, List<State>> jumps, LabelNode label, State state) {
+		List<State> states = jumps.get(label);
+		if (states == null) {
+			states = new ArrayList<State>();
+			jumps.put(label, states);
+		}
+		states.add(state);
+	}
+
+	private static FrameNode frameAt(MethodNode mn, LabelNode label, Object top, AnalyzerAdapter adapter,
+			List<State> jumps) {
+		List<Object> locals;
+		List<Object> stack;
+		if (adapter.locals != null) {
+			locals = compact(adapter.locals);
+			stack = compact(adapter.stack);
+		} else {
+			locals = jumps.get(0).locals;
+			stack = new ArrayList<Object>(jumps.get(0).stack);
+		}
+		if (stack.isEmpty())
+			return null;
+		stack.set(stack.size() - 1, top);
+		if (!isAssignable(jumps, locals, stack))
+			return null;
+		return new FrameNode(F_NEW, locals.size(), labelNodes(mn, locals), stack.size(), labelNodes(mn, stack));
+	}
+
+	/**
+	 * Return the existing frame at the same bytecode offset as the given label, if any. Another frame cannot be
+	 * inserted there.
+	 */
+	private static FrameNode frameAtSameOffset(LabelNode label) {
+		for (AbstractInsnNode insn = label.getPrevious(); insn != null && insn.getOpcode() < 0; insn = insn
+				.getPrevious()) {
+			if (insn instanceof FrameNode)
+				return (FrameNode) insn;
+		}
+		for (AbstractInsnNode insn = label.getNext(); insn != null && insn.getOpcode() < 0; insn = insn.getNext()) {
+			if (insn instanceof FrameNode)
+				return (FrameNode) insn;
+		}
+		return null;
+	}
+
+	private static boolean isAssignable(List<State> jumps, List<Object> locals, List<Object> stack) {
+		if (stack.isEmpty())
+			return false;
+		for (State jump : jumps) {
+			if (!isAssignable(jump, locals, stack))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Determine whether the state at the given jump can be assigned to the given frame types. Besides equal types,
+	 * only the value on top of the stack may be <code>null</code> or any reference if the frame expects an object.
+	 */
+	private static boolean isAssignable(State jump, List<Object> locals, List<Object> stack) {
+		if (jump.stack.size() != stack.size())
+			return false;
+		for (int i = 0; i < stack.size() - 1; i++) {
+			if (!stack.get(i).equals(jump.stack.get(i)))
+				return false;
+		}
+		Object top = stack.get(stack.size() - 1);
+		Object jumpTop = jump.stack.get(stack.size() - 1);
+		if (!top.equals(jumpTop) && !(top instanceof String && jumpTop == NULL)
+				&& !("java/lang/Object".equals(top) && jumpTop instanceof String))
+			return false;
+		for (int i = 0; i < locals.size(); i++) {
+			Object local = locals.get(i);
+			if (local != TOP && (i >= jump.locals.size() || !local.equals(jump.locals.get(i))))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Convert the given list of types in the format of {@link AnalyzerAdapter}, where long and double values take two
+	 * elements, to the format of frames, where they only take one element. Trailing unused locals are dropped.
+	 */
+	private static List<Object> compact(List<Object> types) {
+		List<Object> result = new ArrayList<Object>(types.size());
+		for (int i = 0; i < types.size(); i++) {
+			Object type = types.get(i);
+			result.add(type);
+			if (type == LONG || type == DOUBLE)
+				i++;
+		}
+		while (!result.isEmpty() && result.get(result.size() - 1) == TOP)
+			result.remove(result.size() - 1);
+		return result;
+	}
+
+	/**
+	 * Replace the {@link LabelNode}s of a {@link FrameNode} denoting uninitialized types by their {@link Label}s, as
+	 * used by {@link AnalyzerAdapter}.
+	 */
+	private static List<Object> labels(List<Object> types) {
+		List<Object> result = new ArrayList<Object>(types.size());
+		for (Object type : types)
+			result.add(type instanceof LabelNode ? ((LabelNode) type).getLabel() : type);
+		return result;
+	}
+
+	/**
+	 * Replace the {@link Label}s denoting uninitialized types by their {@link LabelNode}s, as expected by
+	 * {@link FrameNode}.
+	 */
+	private static Object[] labelNodes(MethodNode mn, List<Object> types) {
+		Object[] result = types.toArray();
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] instanceof Label)
+				result[i] = labelNode(mn, (Label) result[i]);
+		}
+		return result;
+	}
+
+	private static LabelNode labelNode(MethodNode mn, Label label) {
+		for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof LabelNode && ((LabelNode) insn).getLabel() == label)
+				return (LabelNode) insn;
+		}
+		throw new IllegalStateException("Unknown label " + label);
+	}
+}
@@ -0,0 +1,63 @@
+package de.hbt.nullsafe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which is updated concurrently by many class loading threads.
+ * <p>
+ * Each thread updates one of several stripes, chosen by its thread id, and the stripes are kept on different cache
+ * lines, so that threads loading classes in parallel do not contend on a single value. Reading the counter combines all
+ * stripes. A counter is used either as a sum via {@link #add(long)} or as a maximum via {@link #max(long)}, but not
+ * both.
+ */
+class StripedCounter {
+
+	/* Number of longs per stripe to keep stripes on separate cache lines */
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors * 2)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	private static int index() {
+		return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+	}
+
+	void increment() {
+		add(1L);
+	}
+
+	void add(long x) {
+		cells.getAndAdd(index(), x);
+	}
+
+	/**
+	 * Raise the maximum to the given value, if it is greater.
+	 */
+	void max(long x) {
+		int i = index();
+		long current;
+		while (x > (current = cells.get(i)) && !cells.compareAndSet(i, current, x))
+			;
+	}
+
+	long sum() {
+		long sum = 0L;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+	long max() {
+		long max = 0L;
+		for (int i = 0; i < STRIPES; i++)
+			max = Math.max(max, cells.get(i * PADDING));
+		return max;
+	}
+}
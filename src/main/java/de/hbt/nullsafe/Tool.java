@@ -1,67 +1,321 @@
 package de.hbt.nullsafe;
 
 import java.io.*;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
 
 class Tool {
 
-	public static void main(String[] args) throws Exception {
-		if (args == null || args.length != 2) {
-			System.out.println("Usage: java -jar nullsafe-1.0.0-SNAPSHOT.jar input.jar output.jar");
-			System.exit(1);
-			return;
+	private static final String USAGE = "Usage: java -jar nullsafe-1.0.0-SNAPSHOT.jar [-threads n] [-level n] "
+			+ "[-budget n] (input.jar output.jar | inputDir outputDir)... | -batch file";
+
+	/**
+	 * The entry listing the class files written by the tool, one per line as the hexadecimal CRC-32 of the class file
+	 * followed by a space and the name of its entry. Lines starting with <code>#</code> are comments.
+	 */
+	static final String INDEX_NAME = "META-INF/nullsafe.idx";
+
+	private final Agent agent;
+	private final int threads;
+	private final int level;
+
+	Tool(Agent agent, int threads, int level) {
+		this.agent = agent;
+		this.threads = threads;
+		this.level = level;
+	}
+
+	/**
+	 * The result of reading and (possibly) transforming a single entry of the input jar.
+	 */
+	private static class TransformedEntry {
+		private final ZipReader.Entry entry;
+		/* The compressed transformed class or null if the original entry should be copied */
+		private final ZipWriter.Deflated deflated;
+		/* Whether the entry is a class which passed the package filter, so that it is listed in the index */
+		private final boolean indexed;
+
+		TransformedEntry(ZipReader.Entry entry, ZipWriter.Deflated deflated, boolean indexed) {
+			this.entry = entry;
+			this.deflated = deflated;
+			this.indexed = indexed;
+		}
+	}
+
+	/**
+	 * Transform all classes of the given input jar and write them to the given output jar.
+	 * <p>
+	 * The input is read via the zip central directory, so that entries can be read and transformed concurrently by
+	 * <code>threads</code> worker threads. The output is always written in the entry order of the input's central
+	 * directory, regardless of the number of threads, so that the output is reproducible.
+	 * <p>
+	 * All entries which are not transformed (resources and classes without any <code>__nullsafe(...)</code> calls)
+	 * are copied with their original compressed data, compression method, checksum and sizes. Only transformed classes
+	 * are compressed again at the configured compression level.
+	 * <p>
+	 * The class files which passed the package filter of the agent, and thus were either transformed or found to contain
+	 * no <code>__nullsafe(...)</code> calls, are listed in the {@link #INDEX_NAME} entry, which replaces the one of the
+	 * input, so that the agent can skip them in the output jar (see {@link JarIndex}). Classes rejected by the filter
+	 * are not listed, because an agent including more packages still has to scan them.
+	 */
+	void transform(File inFile, File outFile) throws IOException {
+		ExecutorService executor = threads <= 1 ? null : Executors.newFixedThreadPool(threads);
+		try {
+			transform(inFile, outFile, executor);
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Transform each of the given input jars into the output jar at the same index, like
+	 * {@link #transform(File, File)}, and print how many classes of each jar were transformed in how much time.
+	 * <p>
+	 * The jars are transformed one after the other by the same worker threads, so that at most the entries in flight
+	 * of one jar are held in memory, and all but the first jar are transformed with warmed-up code.
+	 */
+	void transform(List<File> inFiles, List<File> outFiles, PrintStream out) throws IOException {
+		ExecutorService executor = threads <= 1 ? null : Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < inFiles.size(); i++) {
+				long classesSeen = agent.getStats().getClassesSeen();
+				long classesTransformed = agent.getStats().getClassesTransformed();
+				long start = System.nanoTime();
+				transform(inFiles.get(i), outFiles.get(i), executor);
+				out.println(inFiles.get(i) + " -> " + outFiles.get(i) + ": transformed "
+						+ (agent.getStats().getClassesTransformed() - classesTransformed) + " of "
+						+ (agent.getStats().getClassesSeen() - classesSeen) + " classes in "
+						+ (System.nanoTime() - start) / 1000000L + " ms");
+			}
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
 		}
-		File inFile = new File(args[0]);
-		File outFile = new File(args[1]);
-		Agent agent = new Agent(false);
-		FileInputStream fis = new FileInputStream(inFile);
-		JarInputStream jarIn = new JarInputStream(fis);
-		FileOutputStream fos = new FileOutputStream(outFile);
-		JarOutputStream jarOut = new JarOutputStream(fos, jarIn.getManifest());
-		jarOut.setLevel(9);
-		ZipEntry entry = jarIn.getNextEntry();
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		while (entry != null) {
-			ZipEntry outEntry = new ZipEntry(entry.getName());
-			outEntry.setTime(entry.getTime());
-			long size = entry.getSize();
-			if (size >= 0L) {
-				outEntry.setSize(entry.getSize());
+	}
+
+	private void transform(File inFile, File outFile, ExecutorService executor) throws IOException {
+		ZipReader zipIn = new ZipReader(inFile);
+		try {
+			FileOutputStream fos = new FileOutputStream(outFile);
+			try {
+				ZipWriter zipOut = new ZipWriter(new BufferedOutputStream(fos, 65536));
+				StringBuilder index = new StringBuilder("# Classes transformed by nullsafe\n");
+				if (executor == null)
+					transformSequentially(zipIn, zipOut, index);
+				else
+					transformConcurrently(zipIn, zipOut, index, executor);
+				zipOut.write(INDEX_NAME, ZipWriter.deflate(index.toString().getBytes("UTF-8"), level));
+				zipOut.finish(zipIn.getComment());
+			} finally {
+				fos.close();
 			}
-			jarOut.putNextEntry(outEntry);
-			if (!entry.isDirectory()) {
-				if (entry.getName().endsWith(".class")) {
-					baos.reset();
-					int read = 0;
-					byte[] arr = new byte[1024];
-					while ((read = jarIn.read(arr, 0, 1024)) != -1) {
-						baos.write(arr, 0, read);
-					}
-					byte[] classfileBytes = baos.toByteArray();
-					byte[] transformed = agent.transform((ClassLoader) null,
-							entry.getName().substring(0, entry.getName().length() - 6), null, null, classfileBytes);
-					if (transformed != null) {
-						jarOut.write(transformed, 0, transformed.length);
-					} else {
-						jarOut.write(classfileBytes, 0, classfileBytes.length);
-					}
-				} else {
-					int read = 0;
-					byte[] arr = new byte[1024];
-					while ((read = jarIn.read(arr, 0, 1024)) != -1) {
-						jarOut.write(arr, 0, read);
-					}
+		} finally {
+			zipIn.close();
+		}
+	}
+
+	private void transformSequentially(ZipReader zipIn, ZipWriter zipOut, StringBuilder index) throws IOException {
+		for (ZipReader.Entry entry : zipIn.getEntries()) {
+			if (!entry.name.equals(INDEX_NAME))
+				write(zipIn, zipOut, transformEntry(zipIn, entry), index);
+		}
+	}
+
+	private void transformConcurrently(final ZipReader zipIn, ZipWriter zipOut, StringBuilder index,
+			ExecutorService executor) throws IOException {
+		/*
+		 * Keep a bounded window of in-flight entries, so that we do not hold the whole (transformed) jar in memory, and
+		 * always write the oldest entry first to retain the entry order of the input.
+		 */
+		int window = threads * 4;
+		LinkedList<Future<TransformedEntry>> pending = new LinkedList<Future<TransformedEntry>>();
+		for (final ZipReader.Entry entry : zipIn.getEntries()) {
+			if (entry.name.equals(INDEX_NAME))
+				continue;
+			pending.add(executor.submit(new Callable<TransformedEntry>() {
+				public TransformedEntry call() throws Exception {
+					return transformEntry(zipIn, entry);
 				}
+			}));
+			if (pending.size() >= window)
+				write(zipIn, zipOut, await(pending.removeFirst()), index);
+		}
+		while (!pending.isEmpty())
+			write(zipIn, zipOut, await(pending.removeFirst()), index);
+	}
+
+	private static TransformedEntry await(Future<TransformedEntry> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while transforming jar entries");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Failed to transform jar entry: " + cause);
+		}
+	}
+
+	private TransformedEntry transformEntry(ZipReader zipIn, ZipReader.Entry entry) throws IOException {
+		if (entry.isDirectory() || !entry.name.endsWith(".class"))
+			return new TransformedEntry(entry, null, false);
+		String className = entry.name.substring(0, entry.name.length() - 6);
+		byte[] transformed;
+		try {
+			transformed = agent.transform((ClassLoader) null, className, null, null, zipIn.getData(entry));
+		} catch (IllegalClassFormatException e) {
+			throw new IOException("Failed to transform class '" + entry.name + "': " + e.getMessage());
+		}
+		if (transformed == null)
+			return new TransformedEntry(entry, null, agent.includes(className));
+		return new TransformedEntry(entry, ZipWriter.deflate(transformed, level), true);
+	}
+
+	/**
+	 * Collects the methods which grew beyond one of the size limits of the JIT compiler by the rewrite, and therefore
+	 * may no longer be inlined or compiled at all.
+	 */
+	static class GrowthReport implements Agent.MethodSizeListener {
+		private final SortedMap<String, String> methods = new TreeMap<String, String>();
+		private int methodsGrown;
+		private long bytesAdded;
+
+		public synchronized void methodTransformed(String className, String method, int sizeBefore, int sizeAfter) {
+			if (sizeAfter > sizeBefore) {
+				methodsGrown++;
+				bytesAdded += sizeAfter - sizeBefore;
 			}
-			jarOut.closeEntry();
-			entry = jarIn.getNextEntry();
-		}
-		jarOut.finish();
-		jarOut.close();
-		fos.close();
-		jarIn.close();
-		fis.close();
+			String limit = CodeSize.limitCrossed(sizeBefore, sizeAfter);
+			if (limit != null) {
+				String name = className.replace('/', '.') + "." + method;
+				methods.put(name, name + ": " + sizeBefore + " -> " + sizeAfter + " bytes, exceeds " + limit);
+			}
+		}
+
+		synchronized void print(PrintStream out) {
+			out.println("Grew " + methodsGrown + " methods by " + bytesAdded + " bytes, of which " + methods.size()
+					+ " crossed a JIT compiler size limit" + (methods.isEmpty() ? "" : ":"));
+			for (String line : methods.values())
+				out.println("  " + line);
+		}
+	}
+
+	private static void write(ZipReader zipIn, ZipWriter zipOut, TransformedEntry transformed, StringBuilder index)
+			throws IOException {
+		ZipReader.Entry entry = transformed.entry;
+		if (transformed.deflated == null)
+			zipOut.copy(zipIn, entry);
+		else
+			zipOut.write(zipIn, entry, transformed.deflated);
+		if (transformed.indexed) {
+			int crc = transformed.deflated == null ? entry.crc : transformed.deflated.crc;
+			index.append(Integer.toHexString(crc)).append(' ').append(entry.name).append('\n');
+		}
+	}
+
+	/**
+	 * Add the input and output jars listed in the given batch file, one pair per line separated by whitespace. Blank
+	 * lines and lines starting with <code>#</code> are ignored, and relative paths are resolved against the working
+	 * directory.
+	 */
+	static void readBatch(File file, List<File> inFiles, List<File> outFiles) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] files = line.split("\\s+");
+				if (files.length != 2)
+					throw new IOException("Invalid line in batch file '" + file + "': " + line);
+				add(new File(files[0]), new File(files[1]), inFiles, outFiles);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Add the given input and output jar, or all jars of the given input directory together with the same names in
+	 * the given output directory, which is created if needed.
+	 */
+	static void add(File in, File out, List<File> inFiles, List<File> outFiles) throws IOException {
+		if (!in.isDirectory()) {
+			inFiles.add(in);
+			outFiles.add(out);
+			return;
+		}
+		File[] jars = in.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".jar");
+			}
+		});
+		if (jars == null)
+			throw new IOException("Could not list directory '" + in + "'");
+		if (!out.isDirectory() && !out.mkdirs())
+			throw new IOException("Could not create directory '" + out + "'");
+		Arrays.sort(jars);
+		for (File jar : jars) {
+			inFiles.add(jar);
+			outFiles.add(new File(out, jar.getName()));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int level = Deflater.BEST_COMPRESSION;
+		int budget = CodeSize.HUGE_METHOD_LIMIT;
+		File batchFile = null;
+		int arg = 0;
+		try {
+			while (args != null && args.length > arg && args[arg].startsWith("-")) {
+				if ("-threads".equals(args[arg]))
+					threads = Integer.parseInt(args[arg + 1]);
+				else if ("-level".equals(args[arg]))
+					level = Integer.parseInt(args[arg + 1]);
+				else if ("-budget".equals(args[arg]))
+					budget = Integer.parseInt(args[arg + 1]);
+				else if ("-batch".equals(args[arg]))
+					batchFile = new File(args[arg + 1]);
+				else
+					args = null;
+				arg += 2;
+			}
+		} catch (RuntimeException e) {
+			args = null;
+		}
+		if (args == null || (batchFile == null ? args.length == arg || (args.length - arg) % 2 != 0
+				: args.length != arg) || threads < 1 || level < 0 || level > 9 || budget < 0) {
+			System.out.println(USAGE);
+			System.exit(1);
+			return;
+		}
+		List<File> inFiles = new ArrayList<File>();
+		List<File> outFiles = new ArrayList<File>();
+		if (batchFile != null)
+			readBatch(batchFile, inFiles, outFiles);
+		for (; arg < args.length; arg += 2)
+			add(new File(args[arg]), new File(args[arg + 1]), inFiles, outFiles);
+		AgentOptions options = new AgentOptions();
+		options.budget = budget;
+		Agent agent = new Agent(options);
+		GrowthReport growth = new GrowthReport();
+		agent.setSizeListener(growth);
+		long start = System.nanoTime();
+		new Tool(agent, threads, level).transform(inFiles, outFiles, System.out);
+		System.out.println("Transformed " + inFiles.size() + " jars in " + (System.nanoTime() - start) / 1000000L
+				+ " ms");
+		System.out.println("Transformed " + agent.getStats().getClassesTransformed() + " classes, of which "
+				+ agent.getStats().getClassesWithComputedFrames() + " needed their stack map frames to be computed");
+		if (agent.getStats().getMethodsOutlined() > 0)
+			System.out.println("Moved the __nullsafe(...) calls of " + agent.getStats().getMethodsOutlined()
+					+ " methods larger than " + budget + " bytes into helper methods");
+		growth.print(System.out);
 	}
 }
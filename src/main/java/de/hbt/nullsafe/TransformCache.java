@@ -0,0 +1,175 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent cache of the results of the {@link Agent} in a directory, so that a restarted JVM does not parse and
+ * analyze the same class files again.
+ * <p>
+ * A class file is looked up by a 64-bit hash, the CRC-32 and the length of its original bytes, which it can be hashed
+ * with much faster than parsed. The cache stores the transformed class file, or an empty file if the class file does
+ * not contain any <code>__nullsafe(...)</code> calls after all. Entries live in a subdirectory per version and options
+ * of the agent, so that neither a new agent nor other options ever read the entries of another one.
+ * <p>
+ * Each entry is written to a temporary file which is then renamed, so that threads which load the same class in
+ * several class loaders concurrently, and JVMs sharing the directory, only ever see complete entries. Entries are
+ * never modified, so concurrent writers of the same entry write the same bytes. If writing fails, for example because
+ * the directory is read-only, the cache only serves the existing entries.
+ */
+class TransformCache {
+
+	/* The bytes of an entry of a class file without __nullsafe(...) calls */
+	static final byte[] WITHOUT_NULLSAFE = new byte[0];
+
+	private static final long MURMUR_MULTIPLIER = 0xc6a4a7935bd1e995L;
+
+	private final File dir;
+	private volatile boolean writable = true;
+
+	/**
+	 * Create a cache in the given directory for an agent with the given options, which are only part of the key.
+	 */
+	TransformCache(File dir, String options) {
+		this.dir = new File(dir, hex(hash(ConstantPoolScanner.ascii(agentVersion() + " " + options), 0L), 16));
+	}
+
+	/**
+	 * Return the key of the given class file. The mode distinguishes results which depend on how the class is
+	 * transformed, such as only inserting traps in lazy mode.
+	 */
+	String key(byte[] classfile, char mode) {
+		String hash = hex(hash(classfile, classfile.length), 16);
+		CRC32 crc = new CRC32();
+		crc.update(classfile, 0, classfile.length);
+		return hash.substring(0, 2) + "/" + hash + hex(crc.getValue(), 8) + "-"
+				+ Integer.toHexString(classfile.length) + mode;
+	}
+
+	/**
+	 * Return the cached result of the class file with the given key, {@link #WITHOUT_NULLSAFE} if it does not contain
+	 * any <code>__nullsafe(...)</code> calls, or <code>null</code> if it is not cached.
+	 */
+	byte[] get(String key) {
+		RandomAccessFile in;
+		try {
+			in = new RandomAccessFile(new File(dir, key), "r");
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			try {
+				/* Entries are never modified, only replaced by the same bytes */
+				byte[] bytes = new byte[(int) in.length()];
+				in.readFully(bytes);
+				if (bytes.length == 0)
+					return WITHOUT_NULLSAFE;
+				/* Ignore anything but a class file, and let it be replaced */
+				return bytes.length >= 4 && ConstantPoolScanner.readInt(bytes, 0) == 0xCAFEBABE ? bytes : null;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Store the result of the class file with the given key, which is <code>null</code> if it does not contain any
+	 * <code>__nullsafe(...)</code> calls.
+	 */
+	void put(String key, byte[] transformed) {
+		if (!writable)
+			return;
+		File file = new File(dir, key);
+		File parent = file.getParentFile();
+		try {
+			if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+				throw new IOException("Could not create directory '" + parent + "'");
+			File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+			try {
+				OutputStream out = new FileOutputStream(tmpFile);
+				try {
+					if (transformed != null)
+						out.write(transformed);
+				} finally {
+					out.close();
+				}
+				/* Another thread or JVM may have stored the same entry in the meantime */
+				if (!tmpFile.renameTo(file) && !file.isFile())
+					throw new IOException("Could not rename '" + tmpFile + "' to '" + file + "'");
+			} finally {
+				tmpFile.delete();
+			}
+		} catch (IOException e) {
+			writable = false;
+			System.err.println("Could not write to the nullsafe cache directory '" + dir
+					+ "', only reading it from now on: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Return a string which changes with every build of the agent: its version and the size and modification time of
+	 * the jar file it was loaded from, or of its newest class file when loaded from a directory.
+	 */
+	static String agentVersion() {
+		Package p = Agent.class.getPackage();
+		String version = p == null ? null : p.getImplementationVersion();
+		CodeSource source = Agent.class.getProtectionDomain().getCodeSource();
+		if (source == null || !"file".equals(source.getLocation().getProtocol()))
+			return version;
+		File location;
+		try {
+			location = new File(source.getLocation().toURI());
+		} catch (URISyntaxException e) {
+			return version;
+		}
+		if (location.isFile())
+			return version + " " + location.length() + " " + location.lastModified();
+		long lastModified = 0L;
+		File[] classFiles = new File(location, Agent.Nullsafe_name).getParentFile().listFiles();
+		if (classFiles != null) {
+			for (File classFile : classFiles)
+				lastModified = Math.max(lastModified, classFile.lastModified());
+		}
+		return version + " " + lastModified;
+	}
+
+	/**
+	 * Return the 64-bit MurmurHash64A of the given bytes.
+	 */
+	static long hash(byte[] b, long seed) {
+		int length = b.length;
+		long h = seed ^ length * MURMUR_MULTIPLIER;
+		int end = length & ~7;
+		for (int i = 0; i < end; i += 8) {
+			long k = (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+					| (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48
+					| (b[i + 7] & 0xFFL) << 56;
+			k *= MURMUR_MULTIPLIER;
+			k ^= k >>> 47;
+			k *= MURMUR_MULTIPLIER;
+			h ^= k;
+			h *= MURMUR_MULTIPLIER;
+		}
+		if (end < length) {
+			for (int i = length - 1; i >= end; i--)
+				h ^= (b[i] & 0xFFL) << 8 * (i - end);
+			h *= MURMUR_MULTIPLIER;
+		}
+		h ^= h >>> 47;
+		h *= MURMUR_MULTIPLIER;
+		h ^= h >>> 47;
+		return h;
+	}
+
+	private static String hex(long value, int digits) {
+		String hex = Long.toHexString(value);
+		StringBuilder sb = new StringBuilder(digits);
+		for (int i = hex.length(); i < digits; i++)
+			sb.append('0');
+		return sb.append(hex).toString();
+	}
+}
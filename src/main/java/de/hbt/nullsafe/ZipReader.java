@@ -0,0 +1,332 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Minimal zip archive reader giving access to the raw (still compressed) data of each entry.
+ * <p>
+ * The central directory of the archive is read and parsed once. Afterwards, the data of all entries can be accessed
+ * concurrently from multiple threads, which read it with positional reads of the {@link FileChannel} of the reader.
+ * The archive stays open until the reader is closed. Encrypted archives are not supported.
+ * <p>
+ * ZIP64 archives, such as ones with more than 65535 entries, are supported up to 2 GB. Since all sizes and offsets
+ * then fit into 32 bits, the ZIP64 extended information is removed from the extra fields of the entries, so that the
+ * {@link ZipWriter} writes them as regular entries.
+ */
+class ZipReader implements Closeable {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_EXTRA_ID = 1;
+	/* The value of a size or offset which is given in the ZIP64 extended information instead */
+	private static final int ZIP64_MAGIC = 0xFFFFFFFF;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_END_SIZE = 56;
+	private static final int ZIP64_END_LOCATOR_SIZE = 20;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	static final int STORED = ZipEntry.STORED;
+	static final int DEFLATED = ZipEntry.DEFLATED;
+
+	/**
+	 * A single entry of the central directory.
+	 */
+	static class Entry {
+		final String name;
+		final byte[] nameBytes;
+		final int versionMadeBy;
+		final int versionNeeded;
+		final int flags;
+		final int method;
+		final int dosTime;
+		final int crc;
+		final int compressedSize;
+		final int size;
+		final byte[] extra;
+		final byte[] comment;
+		final int internalAttributes;
+		final int externalAttributes;
+		final int localHeaderOffset;
+
+		Entry(String name, byte[] nameBytes, int versionMadeBy, int versionNeeded, int flags, int method, int dosTime,
+				int crc, int compressedSize, int size, byte[] extra, byte[] comment, int internalAttributes,
+				int externalAttributes, int localHeaderOffset) {
+			this.name = name;
+			this.nameBytes = nameBytes;
+			this.versionMadeBy = versionMadeBy;
+			this.versionNeeded = versionNeeded;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.extra = extra;
+			this.comment = comment;
+			this.internalAttributes = internalAttributes;
+			this.externalAttributes = externalAttributes;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		boolean isDirectory() {
+			return name.endsWith("/");
+		}
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final List<Entry> entries;
+	private final byte[] comment;
+
+	ZipReader(File file) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new ZipException("Archive too large: " + file);
+			int tailOffset = (int) Math.max(0L, size - END_SIZE - 0xFFFF);
+			ByteBuffer tail = read(tailOffset, (int) size - tailOffset);
+			int end = findEnd(tail);
+			long count = tail.getShort(end + 10) & 0xFFFF;
+			long centralDirectoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+			int locator = end - ZIP64_END_LOCATOR_SIZE;
+			if (locator >= 0 && tail.getInt(locator) == ZIP64_END_LOCATOR_SIGNATURE) {
+				long zip64End = tail.getLong(locator + 8);
+				if (zip64End < 0L || zip64End > tailOffset + locator - ZIP64_END_SIZE)
+					throw new ZipException("Invalid ZIP64 end of central directory record in " + file);
+				ByteBuffer record = read((int) zip64End, ZIP64_END_SIZE);
+				if (record.getInt(0) != ZIP64_END_SIGNATURE)
+					throw new ZipException("Invalid ZIP64 end of central directory record in " + file);
+				count = record.getLong(32);
+				centralDirectoryOffset = record.getLong(48);
+			}
+			if (count < 0L || count > Integer.MAX_VALUE || centralDirectoryOffset < 0L
+					|| centralDirectoryOffset > tailOffset + end)
+				throw new ZipException("Invalid end of central directory record in " + file);
+			comment = bytes(tail, end + END_SIZE, tail.getShort(end + 20) & 0xFFFF);
+			entries = readCentralDirectory(file,
+					read((int) centralDirectoryOffset, tailOffset + end - (int) centralDirectoryOffset), (int) count);
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private static List<Entry> readCentralDirectory(File file, ByteBuffer directory, int count) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>(count);
+		int offset = 0;
+		for (int i = 0; i < count; i++) {
+			if (directory.getInt(offset) != CENTRAL_HEADER_SIGNATURE)
+				throw new ZipException("Invalid central directory header in " + file);
+			int flags = directory.getShort(offset + 8) & 0xFFFF;
+			if ((flags & 1) != 0)
+				throw new ZipException("Encrypted entries are not supported: " + file);
+			int nameLength = directory.getShort(offset + 28) & 0xFFFF;
+			int extraLength = directory.getShort(offset + 30) & 0xFFFF;
+			int commentLength = directory.getShort(offset + 32) & 0xFFFF;
+			byte[] nameBytes = bytes(directory, offset + CENTRAL_HEADER_SIZE, nameLength);
+			String name = new String(nameBytes, "UTF-8");
+			byte[] extra = bytes(directory, offset + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+			/* The ZIP64 extended information contains the values in this order, if they do not fit into 32 bits */
+			ByteBuffer zip64 = findZip64(extra);
+			int size = zip64Value(directory.getInt(offset + 24), zip64, name);
+			int compressedSize = zip64Value(directory.getInt(offset + 20), zip64, name);
+			int localHeaderOffset = zip64Value(directory.getInt(offset + 42), zip64, name);
+			entries.add(new Entry(name, nameBytes, directory.getShort(offset + 4) & 0xFFFF,
+					directory.getShort(offset + 6) & 0xFFFF, flags, directory.getShort(offset + 10) & 0xFFFF,
+					directory.getInt(offset + 12), directory.getInt(offset + 16), compressedSize, size,
+					withoutZip64(extra),
+					bytes(directory, offset + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength),
+					directory.getShort(offset + 36) & 0xFFFF, directory.getInt(offset + 38), localHeaderOffset));
+			offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	/**
+	 * Read the given range of the archive into a new buffer. This does not change the position of the channel, so that
+	 * multiple threads can read at the same time.
+	 */
+	private ByteBuffer read(int offset, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (b.hasRemaining()) {
+			if (channel.read(b, offset + b.position()) < 0)
+				throw new EOFException("Unexpected end of archive");
+		}
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Close the archive, after which the data of its entries can no longer be read.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private static int findEnd(ByteBuffer buffer) throws ZipException {
+		int minOffset = Math.max(0, buffer.limit() - END_SIZE - 0xFFFF);
+		for (int offset = buffer.limit() - END_SIZE; offset >= minOffset; offset--) {
+			if (buffer.getInt(offset) == END_SIGNATURE)
+				return offset;
+		}
+		throw new ZipException("Not a zip archive");
+	}
+
+	/**
+	 * Return the data of the ZIP64 extended information in the given extra field, or <code>null</code> if there is
+	 * none.
+	 */
+	private static ByteBuffer findZip64(byte[] extra) {
+		ByteBuffer b = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+		while (b.remaining() >= 4) {
+			int id = b.getShort() & 0xFFFF;
+			int length = b.getShort() & 0xFFFF;
+			if (length > b.remaining())
+				return null;
+			if (id == ZIP64_EXTRA_ID) {
+				ByteBuffer data = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+				data.limit(length);
+				return data;
+			}
+			b.position(b.position() + length);
+		}
+		return null;
+	}
+
+	/**
+	 * Return the given size or offset of an entry, or the next value of its ZIP64 extended information if it does not
+	 * fit into 32 bits.
+	 */
+	private static int zip64Value(int value, ByteBuffer zip64, String name) throws ZipException {
+		if (value != ZIP64_MAGIC)
+			return value;
+		if (zip64 == null || zip64.remaining() < 8)
+			throw new ZipException("Missing ZIP64 extended information of entry " + name);
+		long v = zip64.getLong();
+		if (v < 0L || v > Integer.MAX_VALUE)
+			throw new ZipException("Entry too large: " + name);
+		return (int) v;
+	}
+
+	/**
+	 * Return the given extra field without the ZIP64 extended information, whose values fit into 32 bits in archives
+	 * which can be mapped.
+	 */
+	private static byte[] withoutZip64(byte[] extra) {
+		ByteBuffer b = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+		ByteArrayOutputStream out = null;
+		while (b.remaining() >= 4) {
+			int start = b.position();
+			int id = b.getShort() & 0xFFFF;
+			int length = b.getShort() & 0xFFFF;
+			if (length > b.remaining()) {
+				b.position(start);
+				break;
+			}
+			b.position(b.position() + length);
+			if (id == ZIP64_EXTRA_ID) {
+				if (out == null) {
+					out = new ByteArrayOutputStream(extra.length);
+					out.write(extra, 0, start);
+				}
+			} else if (out != null) {
+				out.write(extra, start, 4 + length);
+			}
+		}
+		if (out == null)
+			return extra;
+		out.write(extra, b.position(), b.remaining());
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+		b.get(bytes);
+		return bytes;
+	}
+
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	byte[] getComment() {
+		return comment;
+	}
+
+	/**
+	 * Return the local header extra field of the given entry.
+	 */
+	byte[] getLocalExtra(Entry entry) throws IOException {
+		ByteBuffer header = readLocalHeader(entry);
+		int nameLength = header.getShort(26) & 0xFFFF;
+		int extraLength = header.getShort(28) & 0xFFFF;
+		ByteBuffer extra = read(entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength, extraLength);
+		return withoutZip64(extra.array());
+	}
+
+	/**
+	 * Return a new buffer with the raw (possibly compressed) data of the given entry.
+	 */
+	ByteBuffer getRawData(Entry entry) throws IOException {
+		ByteBuffer header = readLocalHeader(entry);
+		int nameLength = header.getShort(26) & 0xFFFF;
+		int extraLength = header.getShort(28) & 0xFFFF;
+		return read(entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength, entry.compressedSize);
+	}
+
+	private ByteBuffer readLocalHeader(Entry entry) throws IOException {
+		ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+			throw new ZipException("Invalid local header for entry " + entry.name);
+		return header;
+	}
+
+	/**
+	 * Return the uncompressed data of the given entry.
+	 */
+	byte[] getData(Entry entry) throws IOException {
+		ByteBuffer raw = getRawData(entry);
+		if (entry.method == STORED) {
+			byte[] bytes = new byte[entry.size];
+			raw.get(bytes);
+			return bytes;
+		} else if (entry.method != DEFLATED) {
+			throw new ZipException("Unsupported compression method " + entry.method + " of entry " + entry.name);
+		}
+		/* The nowrap Inflater might need an extra dummy byte after the compressed data */
+		byte[] compressed = new byte[entry.compressedSize + 1];
+		raw.get(compressed, 0, entry.compressedSize);
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed);
+			byte[] bytes = new byte[entry.size];
+			int offset = 0;
+			while (offset < bytes.length) {
+				int read = inflater.inflate(bytes, offset, bytes.length - offset);
+				if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new ZipException("Truncated data of entry " + entry.name);
+				offset += read;
+			}
+			return bytes;
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed data of entry " + entry.name + ": " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
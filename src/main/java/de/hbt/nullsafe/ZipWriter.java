@@ -0,0 +1,215 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Minimal zip archive writer which writes entries from already compressed data.
+ * <p>
+ * This allows to copy the entries of a {@link ZipReader} without inflating and deflating them again. All sizes and
+ * checksums are known up front and written into the local headers, so no data descriptors are written.
+ * <p>
+ * Archives with more than 65535 entries get a ZIP64 end of central directory record. All sizes and offsets must fit
+ * into 32 bits, though.
+ */
+class ZipWriter {
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+	/* The size of the ZIP64 end of central directory record without its signature and this size field */
+	private static final long ZIP64_END_RECORD_SIZE = 44L;
+	private static final int ZIP64_VERSION = 45;
+	private static final int DATA_DESCRIPTOR_FLAG = 8;
+	private static final int COMPRESSION_OPTION_FLAGS = 6;
+	/* 1980-01-01 00:00:00, the earliest MS-DOS date, so that new entries do not depend on the current time */
+	private static final int DOS_EPOCH = 0x00210000;
+
+	private final OutputStream out;
+	private final List<ZipReader.Entry> written = new ArrayList<ZipReader.Entry>();
+	private final byte[] copyBuffer = new byte[65536];
+	private long offset;
+
+	ZipWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Copy the given entry of the given reader with its original compressed data.
+	 */
+	void copy(ZipReader reader, ZipReader.Entry entry) throws IOException {
+		write(entry, entry.versionNeeded, entry.flags & ~DATA_DESCRIPTOR_FLAG, entry.method, entry.crc,
+				entry.compressedSize, entry.size, reader.getLocalExtra(entry), reader.getRawData(entry));
+	}
+
+	/**
+	 * Data compressed with {@link ZipWriter#deflate(byte[], int)} together with its checksum and uncompressed size.
+	 */
+	static class Deflated {
+		private final byte[] data;
+		final int crc;
+		private final int size;
+
+		Deflated(byte[] data, int crc, int size) {
+			this.data = data;
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Deflate the given data at the given compression level.
+	 * <p>
+	 * This is independent of any writer, so that compression can happen on other threads than the writing thread.
+	 */
+	static Deflated deflate(byte[] data, int level) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		Deflater deflater = new Deflater(level, true);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buf);
+				compressed.write(buf, 0, len);
+			}
+		} finally {
+			deflater.end();
+		}
+		return new Deflated(compressed.toByteArray(), (int) crc.getValue(), data.length);
+	}
+
+	/**
+	 * Write the given entry of the given reader with new <code>deflated</code> data.
+	 */
+	void write(ZipReader reader, ZipReader.Entry entry, Deflated deflated) throws IOException {
+		int flags = entry.flags & ~(DATA_DESCRIPTOR_FLAG | COMPRESSION_OPTION_FLAGS);
+		write(entry, Math.max(20, entry.versionNeeded), flags, ZipReader.DEFLATED, deflated.crc,
+				deflated.data.length, deflated.size, reader.getLocalExtra(entry), ByteBuffer.wrap(deflated.data));
+	}
+
+	/**
+	 * Write a new entry with the given name and <code>deflated</code> data.
+	 */
+	void write(String name, Deflated deflated) throws IOException {
+		byte[] nameBytes = name.getBytes("UTF-8");
+		ZipReader.Entry entry = new ZipReader.Entry(name, nameBytes, 20, 20, 0, ZipReader.DEFLATED, DOS_EPOCH,
+				deflated.crc, deflated.data.length, deflated.size, new byte[0], new byte[0], 0, 0, 0);
+		write(entry, 20, 0, ZipReader.DEFLATED, deflated.crc, deflated.data.length, deflated.size, new byte[0],
+				ByteBuffer.wrap(deflated.data));
+	}
+
+	private void write(ZipReader.Entry entry, int versionNeeded, int flags, int method, int crc, int compressedSize,
+			int size, byte[] localExtra, ByteBuffer data) throws IOException {
+		ZipReader.Entry header = new ZipReader.Entry(entry.name, entry.nameBytes, entry.versionMadeBy, versionNeeded,
+				flags, method, entry.dosTime, crc, compressedSize, size, entry.extra, entry.comment,
+				entry.internalAttributes, entry.externalAttributes, (int) offset);
+		writeInt(LOCAL_HEADER_SIGNATURE);
+		writeShort(versionNeeded);
+		writeShort(flags);
+		writeShort(method);
+		writeInt(entry.dosTime);
+		writeInt(crc);
+		writeInt(compressedSize);
+		writeInt(size);
+		writeShort(entry.nameBytes.length);
+		writeShort(localExtra.length);
+		writeBytes(entry.nameBytes);
+		writeBytes(localExtra);
+		while (data.hasRemaining()) {
+			int len = Math.min(data.remaining(), copyBuffer.length);
+			data.get(copyBuffer, 0, len);
+			writeBytes(copyBuffer, len);
+		}
+		written.add(header);
+	}
+
+	/**
+	 * Write the central directory and the end of central directory record.
+	 */
+	void finish(byte[] comment) throws IOException {
+		if (offset > 0xFFFFFFFFL)
+			throw new ZipException("Archive too large, only ZIP64 archives with 32 bit offsets are supported");
+		long centralDirectoryOffset = offset;
+		for (ZipReader.Entry e : written) {
+			writeInt(CENTRAL_HEADER_SIGNATURE);
+			writeShort(e.versionMadeBy);
+			writeShort(e.versionNeeded);
+			writeShort(e.flags);
+			writeShort(e.method);
+			writeInt(e.dosTime);
+			writeInt(e.crc);
+			writeInt(e.compressedSize);
+			writeInt(e.size);
+			writeShort(e.nameBytes.length);
+			writeShort(e.extra.length);
+			writeShort(e.comment.length);
+			writeShort(0);
+			writeShort(e.internalAttributes);
+			writeInt(e.externalAttributes);
+			writeInt(e.localHeaderOffset);
+			writeBytes(e.nameBytes);
+			writeBytes(e.extra);
+			writeBytes(e.comment);
+		}
+		long centralDirectorySize = offset - centralDirectoryOffset;
+		if (written.size() >= 0xFFFF) {
+			long zip64EndOffset = offset;
+			writeInt(ZIP64_END_SIGNATURE);
+			writeLong(ZIP64_END_RECORD_SIZE);
+			writeShort(ZIP64_VERSION);
+			writeShort(ZIP64_VERSION);
+			writeInt(0);
+			writeInt(0);
+			writeLong(written.size());
+			writeLong(written.size());
+			writeLong(centralDirectorySize);
+			writeLong(centralDirectoryOffset);
+			writeInt(ZIP64_END_LOCATOR_SIGNATURE);
+			writeInt(0);
+			writeLong(zip64EndOffset);
+			writeInt(1);
+		}
+		writeInt(END_SIGNATURE);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(written.size(), 0xFFFF));
+		writeShort(Math.min(written.size(), 0xFFFF));
+		writeInt((int) centralDirectorySize);
+		writeInt((int) centralDirectoryOffset);
+		writeShort(comment.length);
+		writeBytes(comment);
+		out.flush();
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >>> 8) & 0xFF);
+		offset += 2;
+	}
+
+	private void writeInt(int v) throws IOException {
+		writeShort(v);
+		writeShort(v >>> 16);
+	}
+
+	private void writeLong(long v) throws IOException {
+		writeInt((int) v);
+		writeInt((int) (v >>> 32));
+	}
+
+	private void writeBytes(byte[] b) throws IOException {
+		writeBytes(b, b.length);
+	}
+
+	private void writeBytes(byte[] b, int len) throws IOException {
+		out.write(b, 0, len);
+		offset += len;
+	}
+}
@@ -0,0 +1,171 @@
+package de.hbt.nullsafe;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+public class AgentOptionsIT {
+
+	@Test
+	public void testDefaultExcludes() {
+		PackageFilter filter = AgentOptions.parse(null).packageFilter();
+		assertFalse(filter.matches("java/lang/String"));
+		assertFalse(filter.matches("org/apache/commons/Foo"));
+		assertTrue(filter.matches("org/apachex/Foo"));
+		assertTrue(filter.matches("com/acme/Foo"));
+		assertTrue(filter.matches("Foo"));
+	}
+
+	@Test
+	public void testExcludes() {
+		PackageFilter filter = AgentOptions.parse("exclude=org.springframework,exclude=io/netty/").packageFilter();
+		assertFalse(filter.matches("org/springframework/Foo"));
+		assertFalse(filter.matches("org/springframework/beans/Foo"));
+		assertTrue(filter.matches("org/springframeworkx/Foo"));
+		assertFalse(filter.matches("io/netty/Foo"));
+		assertFalse(filter.matches("java/lang/String"));
+		assertTrue(filter.matches("com/acme/Foo"));
+	}
+
+	@Test
+	public void testLongestPrefixWins() {
+		PackageFilter filter = AgentOptions.parse("include=com.acme,exclude=com.acme.generated,include=org.apache.acme")
+				.packageFilter();
+		assertTrue(filter.matches("com/acme/Foo"));
+		assertFalse(filter.matches("com/acme/generated/Foo"));
+		assertTrue(filter.matches("org/apache/acme/Foo"));
+		assertFalse(filter.matches("org/apache/Foo"));
+		assertFalse(filter.matches("com/other/Foo"));
+	}
+
+	@Test
+	public void testNamePrefix() {
+		PackageFilter filter = AgentOptions.parse("exclude=com.acme.Generated*").packageFilter();
+		assertFalse(filter.matches("com/acme/GeneratedFoo"));
+		assertTrue(filter.matches("com/acme/Foo"));
+	}
+
+	@Test
+	public void testTrace() {
+		assertTrue(AgentOptions.parse("t").trace);
+		assertTrue(AgentOptions.parse("trace").trace);
+		assertFalse(AgentOptions.parse("trace=false").trace);
+		assertFalse(AgentOptions.parse("").trace);
+	}
+
+	@Test
+	public void testFrames() {
+		assertFalse(AgentOptions.parse("").computeFrames);
+		assertFalse(AgentOptions.parse("frames=preserve").computeFrames);
+		assertTrue(AgentOptions.parse("frames=compute").computeFrames);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidFrames() {
+		AgentOptions.parse("frames=never");
+	}
+
+	@Test
+	public void testLazy() {
+		assertFalse(AgentOptions.parse("").lazy);
+		assertTrue(AgentOptions.parse("lazy").lazy);
+		assertFalse(AgentOptions.parse("lazy=false").lazy);
+	}
+
+	@Test
+	public void testBudget() {
+		assertEquals(CodeSize.HUGE_METHOD_LIMIT, AgentOptions.parse("").budget);
+		assertEquals(325, AgentOptions.parse("budget=325").budget);
+		assertEquals(0, AgentOptions.parse("budget=0").budget);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBudget() {
+		AgentOptions.parse("budget=-1");
+	}
+
+	@Test
+	public void testCache() {
+		assertNull(AgentOptions.parse("").cacheDir);
+		assertEquals(new File("target/nullsafe-cache"), AgentOptions.parse("cache=target/nullsafe-cache").cacheDir);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCache() {
+		AgentOptions.parse("cache=");
+	}
+
+	@Test
+	public void testDiagnostics() {
+		AgentOptions options = AgentOptions
+				.parse("diagnostics=target/nullsafe.diff,diagnose=com.acme,diagnose=org.Foo*");
+		assertEquals(new File("target/nullsafe.diff"), options.diagnosticsFile);
+		PackageFilter filter = options.diagnosticsFilter();
+		assertTrue(filter.matches("com/acme/Bar"));
+		assertTrue(filter.matches("org/FooBar"));
+		assertFalse(filter.matches("org/Bar"));
+		assertTrue(AgentOptions.parse("diagnostics=nullsafe.diff").diagnosticsFilter().matches("org/Bar"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDiagnostics() {
+		AgentOptions.parse("diagnostics=");
+	}
+
+	@Test
+	public void testJarIndex() {
+		assertTrue(AgentOptions.parse("").jarIndex);
+		assertFalse(AgentOptions.parse("jarIndex=false").jarIndex);
+	}
+
+	@Test
+	public void testProfile() {
+		assertFalse(AgentOptions.parse("").profile);
+		assertTrue(AgentOptions.parse("profile").profile);
+		assertNull(AgentOptions.parse("profile").profileFile);
+		assertEquals(new File("nullsafe.tsv"), AgentOptions.parse("profileDump=nullsafe.tsv").profileFile);
+	}
+
+	@Test
+	public void testImplicitChecks() {
+		assertTrue(AgentOptions.parse("").implicitChecks.isEmpty());
+		PackageFilter filter = AgentOptions.parse("implicitChecks=com.acme,implicitChecks=org.Foo*")
+				.implicitChecksFilter();
+		assertTrue(filter.matches("com/acme/Bar"));
+		assertTrue(filter.matches("org/FooBar"));
+		assertFalse(filter.matches("org/Bar"));
+		assertTrue(AgentOptions.parse("implicitChecks=*").implicitChecksFilter().matches("org/Bar"));
+	}
+
+	@Test
+	public void testConfigFile() throws IOException {
+		File file = File.createTempFile("nullsafe", ".properties");
+		try {
+			Properties properties = new Properties();
+			properties.setProperty("exclude", "org.springframework, io.netty");
+			properties.setProperty("trace", "true");
+			OutputStream os = new FileOutputStream(file);
+			try {
+				properties.store(os, null);
+			} finally {
+				os.close();
+			}
+			AgentOptions options = AgentOptions.parse("config=" + file.getAbsolutePath());
+			assertTrue(options.trace);
+			PackageFilter filter = options.packageFilter();
+			assertFalse(filter.matches("org/springframework/Foo"));
+			assertFalse(filter.matches("io/netty/Foo"));
+			assertTrue(filter.matches("com/acme/Foo"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownOption() {
+		AgentOptions.parse("unknown=true");
+	}
+}
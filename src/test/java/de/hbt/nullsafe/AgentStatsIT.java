@@ -0,0 +1,55 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.*;
+
+import org.junit.*;
+
+public class AgentStatsIT {
+
+	static class WithNullsafe {
+		static String name(Thread thread) {
+			return __nullsafe(thread.getThreadGroup().getName());
+		}
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+		assertNull(WithNullsafe.name(null));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AgentStats.OBJECT_NAME);
+		/* The agent registers its MBean from a background thread */
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (!server.isRegistered(name)) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The MBean was not registered");
+			Thread.sleep(10L);
+		}
+		assertTrue(((Long) server.getAttribute(name, "ClassesSeen")).longValue() > 0L);
+		assertTrue(((Long) server.getAttribute(name, "ClassesTransformed")).longValue() > 0L);
+		assertTrue(((Long) server.getAttribute(name, "MethodsTransformed")).longValue() > 0L);
+		assertTrue(((Long) server.getAttribute(name, "CallSitesRewritten")).longValue() > 0L);
+		assertTrue(((Long) server.getAttribute(name, "TransformNanos")).longValue() > 0L);
+		assertTrue(((Long) server.getAttribute(name, "AnalysisNanos")).longValue() > 0L);
+		String[] slowest = (String[]) server.getAttribute(name, "SlowestClasses");
+		assertTrue(slowest.length > 0);
+	}
+
+	@Test
+	public void testSlowestClasses() {
+		AgentStats stats = new AgentStats();
+		for (int i = 1; i <= 20; i++)
+			stats.transformed("a/C" + i, i);
+		stats.transformed("a/Slow", 5);
+		String[] slowest = stats.getSlowestClasses();
+		assertEquals(10, slowest.length);
+		assertEquals("a.C20: 20", slowest[0]);
+		assertEquals("a.C11: 11", slowest[9]);
+		assertEquals(20L, stats.getMaxTransformNanos());
+		assertEquals(215L, stats.getTransformNanos());
+	}
+}
@@ -0,0 +1,69 @@
+package de.hbt.nullsafe;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Fails the build if the non-null path of a <code>__nullsafe(...)</code> expression allocates more than the plain
+ * expression, by running a short {@link MatrixBench} with the GC profiler in this JVM, which runs with the agent.
+ */
+public class AllocationIT {
+
+	/* Allowed measurement noise in bytes per operation */
+	private static final double TOLERANCE = 1.0;
+
+	@Test
+	public void testNullsafeDoesNotAllocateMoreThanPlain() throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(MatrixBench.class.getName() + "\\.(plain|nullsafe)$")
+				.param("depth", "10")
+				.param("receivers", "1")
+				.addProfiler(GCProfiler.class)
+				.forks(0)
+				.warmupIterations(1)
+				.warmupTime(TimeValue.milliseconds(300))
+				.measurementIterations(2)
+				.measurementTime(TimeValue.milliseconds(200))
+				.timeUnit(TimeUnit.NANOSECONDS)
+				.shouldFailOnError(true)
+				.verbosity(VerboseMode.SILENT)
+				.build();
+		Map<String, Double> plain = new HashMap<String, Double>();
+		Map<String, Double> nullsafe = new HashMap<String, Double>();
+		for (RunResult result : new Runner(opt).run()) {
+			String method = result.getParams().getBenchmark();
+			Map<String, String> params = new TreeMap<String, String>();
+			for (String key : result.getParams().getParamsKeys())
+				params.put(key, result.getParams().getParam(key));
+			double bytesPerOp = allocationPerOp(result);
+			if (method.endsWith(".plain"))
+				plain.put(params.toString(), Double.valueOf(bytesPerOp));
+			else
+				nullsafe.put(params.toString(), Double.valueOf(bytesPerOp));
+		}
+		assertEquals(plain.keySet(), nullsafe.keySet());
+		assertFalse(plain.isEmpty());
+		for (Map.Entry<String, Double> e : plain.entrySet()) {
+			double plainBytes = e.getValue().doubleValue();
+			double nullsafeBytes = nullsafe.get(e.getKey()).doubleValue();
+			assertTrue("__nullsafe allocates " + nullsafeBytes + " bytes/op but plain only " + plainBytes
+					+ " bytes/op for " + e.getKey(), nullsafeBytes <= plainBytes + TOLERANCE);
+		}
+	}
+
+	private static double allocationPerOp(RunResult result) {
+		for (Map.Entry<String, Result> e : result.getSecondaryResults().entrySet()) {
+			if (e.getKey().endsWith("gc.alloc.rate.norm"))
+				return e.getValue().getScore();
+		}
+		throw new AssertionError("No allocation measured for " + result.getParams());
+	}
+}
@@ -0,0 +1,160 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.instrument.IllegalClassFormatException;
+
+import org.junit.*;
+
+/**
+ * Checks that slicing the arguments of <code>__nullsafe(...)</code> calls rewrites classes exactly like analyzing
+ * their whole methods, and that it is used for straight-line code.
+ */
+public class ArgumentSlicerIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+
+	static class Node {
+		final Node next;
+		final String name;
+
+		Node(Node next, String name) {
+			this.next = next;
+			this.name = name;
+		}
+
+		Node getNext() {
+			return next;
+		}
+	}
+
+	static class Sample {
+		String straight(Node node) {
+			return __nullsafe(node.getNext().name);
+		}
+
+		String withDefault(Node node) {
+			return __nullsafe(node.getNext().name, "default");
+		}
+
+		int primitiveDefault(Node node) {
+			return __nullsafeInt(node.getNext().name.length(), -1);
+		}
+
+		String stored(Node node) {
+			Node first = new Node(node, "first");
+			return __nullsafe(first.getNext().name);
+		}
+
+		String tested(Node node) {
+			if (node == null)
+				return null;
+			return __nullsafe(node.getNext().name);
+		}
+
+		String afterLoop(Node node, int n) {
+			for (int i = 0; i < n; i++)
+				node = __nullsafe(node.getNext());
+			return __nullsafe(node.name);
+		}
+
+		String conditional(Node node, boolean first) {
+			return __nullsafe((first ? node : node.getNext()).name);
+		}
+	}
+
+	@Test
+	public void testStraightLineMethodsAreSliced() throws IOException, IllegalClassFormatException {
+		Agent agent = new Agent(new AgentOptions());
+		assertNotNull(agent.transform(null, SAMPLE, null, null, readClass(SAMPLE)));
+		assertEquals(7L, agent.getStats().getMethodsTransformed());
+		/* Not the loop and the conditional expression */
+		assertEquals(5L, agent.getStats().getMethodsSliced());
+	}
+
+	@Test
+	public void testSameRewriteAsFullAnalysis() throws Exception {
+		File testClasses = new File(ArgumentSlicerIT.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		Agent sliced = new Agent(new AgentOptions());
+		Agent analyzed = new Agent(new AgentOptions());
+		analyzed.setSliceArguments(false);
+		int classes = compareRewrites(testClasses, "", sliced, analyzed, false);
+		assertTrue(classes > 5);
+		assertTrue(sliced.getStats().getMethodsSliced() > 0L);
+		assertEquals(0L, analyzed.getStats().getMethodsSliced());
+	}
+
+	@Test
+	public void testSameOutliningAsFullAnalysis() throws Exception {
+		File testClasses = new File(ArgumentSlicerIT.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		Agent sliced = new Agent(AgentOptions.parse("budget=1"));
+		Agent analyzed = new Agent(AgentOptions.parse("budget=1"));
+		analyzed.setSliceArguments(false);
+		/* Only Java 7 class files are outlined */
+		compareRewrites(testClasses, "", sliced, analyzed, true);
+		assertTrue(sliced.getStats().getMethodsOutlined() > 0L);
+		assertEquals(analyzed.getStats().getMethodsOutlined(), sliced.getStats().getMethodsOutlined());
+	}
+
+	@Test
+	public void testHugeMethodIsOutlinedWithoutAnalysis() throws Exception {
+		Agent agent = new Agent(new AgentOptions());
+		int sites = 2000;
+		assertNotNull(agent.transform(null, "de/hbt/nullsafe/HugeMethod", null, null,
+				TransformerBench.syntheticClass("de/hbt/nullsafe/HugeMethod", 1, sites)));
+		assertEquals(1L, agent.getStats().getMethodsOutlined());
+		/* Both passes over the huge method and all helpers */
+		assertEquals(2L + sites, agent.getStats().getMethodsSliced());
+	}
+
+	private static int compareRewrites(File dir, String prefix, Agent sliced, Agent analyzed, boolean java7)
+			throws IOException, IllegalClassFormatException {
+		int classes = 0;
+		for (File file : dir.listFiles()) {
+			String name = prefix + file.getName();
+			if (file.isDirectory()) {
+				classes += compareRewrites(file, name + "/", sliced, analyzed, java7);
+			} else if (name.endsWith(".class")) {
+				String className = name.substring(0, name.length() - 6);
+				byte[] original = java7 ? ClassCorpus.java7(readClass(className)) : readClass(className);
+				byte[] expected = analyzed.transform(null, className, null, null, original);
+				assertArrayEquals(className, expected, sliced.transform(null, className, null, null, original));
+				if (expected != null)
+					classes++;
+			}
+		}
+		return classes;
+	}
+
+	@Test
+	public void testTransformedSampleStillWorks() {
+		Sample sample = new Sample();
+		Node node = new Node(new Node(null, "b"), "a");
+		assertEquals("b", sample.straight(node));
+		assertNull(sample.straight(null));
+		assertEquals("default", sample.withDefault(null));
+		assertEquals(1, sample.primitiveDefault(node));
+		assertEquals(-1, sample.primitiveDefault(null));
+		assertEquals("a", sample.stored(node));
+		assertNull(sample.stored(null));
+		assertNull(sample.tested(new Node(null, "a")));
+		assertNull(sample.afterLoop(node, 3));
+		assertEquals("b", sample.conditional(node, false));
+		assertEquals("a", sample.conditional(node, true));
+	}
+
+	private static byte[] readClass(String className) throws IOException {
+		InputStream is = ArgumentSlicerIT.class.getClassLoader().getResourceAsStream(className + ".class");
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] arr = new byte[8192];
+			int read;
+			while ((read = is.read(arr)) != -1)
+				baos.write(arr, 0, read);
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -18,10 +18,12 @@ public class Bench {
 	static class A {
 		private volatile B b;
 		private volatile boolean isNull;
+		private B fieldB;
 
 		A(boolean isNull) {
 			this.isNull = isNull;
 			this.b = new B(isNull);
+			this.fieldB = new B(isNull);
 		}
 
 		B getB() {
@@ -31,10 +33,12 @@ public class Bench {
 
 	static class B {
 		private volatile C c = new C();
+		private D d;
 		private volatile boolean isNull;
 
 		B(boolean isNull) {
 			this.isNull = isNull;
+			this.d = isNull ? null : new D();
 		}
 
 		C getC() {
@@ -46,6 +50,18 @@ public class Bench {
 		String getString() {
 			return "";
 		}
+
+		int getLength() {
+			return 1000;
+		}
+	}
+
+	static class D {
+		private E e = new E();
+	}
+
+	static class E {
+		private String string = "";
 	}
 
 	private volatile A nullA = new A(System.currentTimeMillis() > 1000);
@@ -66,6 +82,59 @@ public class Bench {
 		return __nullsafe(nullA.getB().getC().getString());
 	}
 
+	@Benchmark
+	public int normalIntNonNull() {
+		return a.getB().getC().getLength();
+	}
+
+	@Benchmark
+	public Integer nullsafeBoxedNonNull() {
+		return __nullsafe(a.getB().getC().getLength());
+	}
+
+	@Benchmark
+	public int nullsafeIntNonNull() {
+		return __nullsafeInt(a.getB().getC().getLength(), -1);
+	}
+
+	@Benchmark
+	public int nullsafeIntNull() {
+		return __nullsafeInt(nullA.getB().getC().getLength(), -1);
+	}
+
+	@Benchmark
+	public String nullsafeThenIfNull() {
+		String s = __nullsafe(a.getB().getC().getString());
+		if (s == null)
+			s = "default";
+		return s;
+	}
+
+	@Benchmark
+	public String nullsafeWithFallbackNonNull() {
+		return __nullsafe(a.getB().getC().getString(), "default");
+	}
+
+	@Benchmark
+	public String nullsafeWithFallbackNull() {
+		return __nullsafe(nullA.getB().getC().getString(), "default");
+	}
+
+	@Benchmark
+	public String normalFieldsNonNull() {
+		return a.fieldB.d.e.string;
+	}
+
+	@Benchmark
+	public String nullsafeFieldsNonNull() {
+		return __nullsafe(a.fieldB.d.e.string);
+	}
+
+	@Benchmark
+	public String nullsafeFieldsNull() {
+		return __nullsafe(nullA.fieldB.d.e.string);
+	}
+
 	public static void main(String[] args) throws RunnerException {
 		boolean withTrace = false;
 		ChainedOptionsBuilder opt = new OptionsBuilder()
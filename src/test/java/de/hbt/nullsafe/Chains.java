@@ -0,0 +1,1042 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * The expressions measured by {@link MatrixBench} and {@link NullPositionBench}: chains of 1 to 10 dereferences of
+ * {@link Node}s via field accesses, getters and array loads, ending in a {@link Node} or in a boxed <code>int</code>.
+ * Each chain exists as a plain expression, as a <code>__nullsafe(...)</code> expression, as a hand-written chain of
+ * <code>if (x != null)</code> checks and as a chain of {@link Optional#map(Function)} calls.
+ * <p>
+ * The expressions must be written out for each depth, so that the agent sees the same bytecode as in real code.
+ */
+class Chains {
+
+	/**
+	 * A node of a chain. {@link #getNext()} is overridden by the {@link #subclass(int) subclasses} to make its call
+	 * sites megamorphic.
+	 */
+	static class Node {
+		Node next;
+		final Node[] nexts = new Node[1];
+		/* Outside of the Integer cache, so that boxing allocates the same in all variants */
+		int value = 1000;
+		final int[] values = { 1000 };
+
+		Node getNext() {
+			return next;
+		}
+
+		int getValue() {
+			return value;
+		}
+
+		void setNext(Node next) {
+			this.next = next;
+			this.nexts[0] = next;
+		}
+	}
+
+	static class Node1 extends Node {
+		@Override
+		Node getNext() {
+			return next;
+		}
+	}
+
+	static class Node2 extends Node {
+		@Override
+		Node getNext() {
+			return next;
+		}
+	}
+
+	static class Node3 extends Node {
+		@Override
+		Node getNext() {
+			return next;
+		}
+	}
+
+	static class Node4 extends Node {
+		@Override
+		Node getNext() {
+			return next;
+		}
+	}
+
+	static final int RECEIVER_CLASSES = 5;
+
+	/**
+	 * Create a node of one of {@value #RECEIVER_CLASSES} different classes.
+	 */
+	static Node subclass(int i) {
+		switch (i % RECEIVER_CLASSES) {
+		case 1:
+			return new Node1();
+		case 2:
+			return new Node2();
+		case 3:
+			return new Node3();
+		case 4:
+			return new Node4();
+		default:
+			return new Node();
+		}
+	}
+
+
+	static final Function<Node, Node> NEXT_FIELD = new Function<Node, Node>() {
+		public Node apply(Node n) {
+			return n.next;
+		}
+	};
+
+	static final Function<Node, Integer> VALUE_FIELD = new Function<Node, Integer>() {
+		public Integer apply(Node n) {
+			return n.value;
+		}
+	};
+
+
+	static final Function<Node, Node> NEXT_GETTER = new Function<Node, Node>() {
+		public Node apply(Node n) {
+			return n.getNext();
+		}
+	};
+
+	static final Function<Node, Integer> VALUE_GETTER = new Function<Node, Integer>() {
+		public Integer apply(Node n) {
+			return n.getValue();
+		}
+	};
+
+
+	static final Function<Node, Node> NEXT_ARRAY = new Function<Node, Node>() {
+		public Node apply(Node n) {
+			return n.nexts[0];
+		}
+	};
+
+	static final Function<Node, Integer> VALUE_ARRAY = new Function<Node, Integer>() {
+		public Integer apply(Node n) {
+			return n.values[0];
+		}
+	};
+
+	private Chains() {
+	}
+
+	/**
+	 * Build a chain of <code>depth + 1</code> nodes starting with a node of the class with the given index.
+	 *
+	 * @param nullAt the dereference which produces <code>null</code> (1 for the first), or 0 if none
+	 */
+	static Node chain(int depth, int nullAt, int firstClass) {
+		Node head = subclass(firstClass);
+		Node n = head;
+		for (int i = 1; i <= depth; i++) {
+			Node next = subclass(firstClass + i);
+			n.setNext(i == nullAt ? null : next);
+			n = next;
+		}
+		return head;
+	}
+
+	private static Object unsupported(int depth) {
+		throw new IllegalArgumentException("Unsupported depth: " + depth);
+	}
+
+	static Object plainField(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return n.next;
+		case 2:
+			return n.next.next;
+		case 3:
+			return n.next.next.next;
+		case 4:
+			return n.next.next.next.next;
+		case 5:
+			return n.next.next.next.next.next;
+		case 6:
+			return n.next.next.next.next.next.next;
+		case 7:
+			return n.next.next.next.next.next.next.next;
+		case 8:
+			return n.next.next.next.next.next.next.next.next;
+		case 9:
+			return n.next.next.next.next.next.next.next.next.next;
+		case 10:
+			return n.next.next.next.next.next.next.next.next.next.next;
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object plainFieldInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return n.next.value;
+		case 2:
+			return n.next.next.value;
+		case 3:
+			return n.next.next.next.value;
+		case 4:
+			return n.next.next.next.next.value;
+		case 5:
+			return n.next.next.next.next.next.value;
+		case 6:
+			return n.next.next.next.next.next.next.value;
+		case 7:
+			return n.next.next.next.next.next.next.next.value;
+		case 8:
+			return n.next.next.next.next.next.next.next.next.value;
+		case 9:
+			return n.next.next.next.next.next.next.next.next.next.value;
+		case 10:
+			return n.next.next.next.next.next.next.next.next.next.next.value;
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object plainGetter(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return n.getNext();
+		case 2:
+			return n.getNext().getNext();
+		case 3:
+			return n.getNext().getNext().getNext();
+		case 4:
+			return n.getNext().getNext().getNext().getNext();
+		case 5:
+			return n.getNext().getNext().getNext().getNext().getNext();
+		case 6:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext();
+		case 7:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext();
+		case 8:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext();
+		case 9:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext();
+		case 10:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getNext();
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object plainGetterInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return n.getNext().getValue();
+		case 2:
+			return n.getNext().getNext().getValue();
+		case 3:
+			return n.getNext().getNext().getNext().getValue();
+		case 4:
+			return n.getNext().getNext().getNext().getNext().getValue();
+		case 5:
+			return n.getNext().getNext().getNext().getNext().getNext().getValue();
+		case 6:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getValue();
+		case 7:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getValue();
+		case 8:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext().getValue();
+		case 9:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getValue();
+		case 10:
+			return n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getNext().getValue();
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object plainArray(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return n.nexts[0];
+		case 2:
+			return n.nexts[0].nexts[0];
+		case 3:
+			return n.nexts[0].nexts[0].nexts[0];
+		case 4:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0];
+		case 5:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0];
+		case 6:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0];
+		case 7:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0];
+		case 8:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0];
+		case 9:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0];
+		case 10:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0];
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object plainArrayInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return n.nexts[0].values[0];
+		case 2:
+			return n.nexts[0].nexts[0].values[0];
+		case 3:
+			return n.nexts[0].nexts[0].nexts[0].values[0];
+		case 4:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].values[0];
+		case 5:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0];
+		case 6:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0];
+		case 7:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0];
+		case 8:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0];
+		case 9:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0];
+		case 10:
+			return n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]
+					.values[0];
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object nullsafeField(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return __nullsafe(n.next);
+		case 2:
+			return __nullsafe(n.next.next);
+		case 3:
+			return __nullsafe(n.next.next.next);
+		case 4:
+			return __nullsafe(n.next.next.next.next);
+		case 5:
+			return __nullsafe(n.next.next.next.next.next);
+		case 6:
+			return __nullsafe(n.next.next.next.next.next.next);
+		case 7:
+			return __nullsafe(n.next.next.next.next.next.next.next);
+		case 8:
+			return __nullsafe(n.next.next.next.next.next.next.next.next);
+		case 9:
+			return __nullsafe(n.next.next.next.next.next.next.next.next.next);
+		case 10:
+			return __nullsafe(n.next.next.next.next.next.next.next.next.next.next);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object nullsafeFieldInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return __nullsafe(n.next.value);
+		case 2:
+			return __nullsafe(n.next.next.value);
+		case 3:
+			return __nullsafe(n.next.next.next.value);
+		case 4:
+			return __nullsafe(n.next.next.next.next.value);
+		case 5:
+			return __nullsafe(n.next.next.next.next.next.value);
+		case 6:
+			return __nullsafe(n.next.next.next.next.next.next.value);
+		case 7:
+			return __nullsafe(n.next.next.next.next.next.next.next.value);
+		case 8:
+			return __nullsafe(n.next.next.next.next.next.next.next.next.value);
+		case 9:
+			return __nullsafe(n.next.next.next.next.next.next.next.next.next.value);
+		case 10:
+			return __nullsafe(n.next.next.next.next.next.next.next.next.next.next.value);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object nullsafeGetter(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return __nullsafe(n.getNext());
+		case 2:
+			return __nullsafe(n.getNext().getNext());
+		case 3:
+			return __nullsafe(n.getNext().getNext().getNext());
+		case 4:
+			return __nullsafe(n.getNext().getNext().getNext().getNext());
+		case 5:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext());
+		case 6:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext());
+		case 7:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext());
+		case 8:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext());
+		case 9:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getNext());
+		case 10:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getNext().getNext());
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object nullsafeGetterInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return __nullsafe(n.getNext().getValue());
+		case 2:
+			return __nullsafe(n.getNext().getNext().getValue());
+		case 3:
+			return __nullsafe(n.getNext().getNext().getNext().getValue());
+		case 4:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getValue());
+		case 5:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getValue());
+		case 6:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getValue());
+		case 7:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getValue());
+		case 8:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getValue());
+		case 9:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getNext().getValue());
+		case 10:
+			return __nullsafe(n.getNext().getNext().getNext().getNext().getNext().getNext().getNext().getNext()
+					.getNext().getNext().getValue());
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object nullsafeArray(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return __nullsafe(n.nexts[0]);
+		case 2:
+			return __nullsafe(n.nexts[0].nexts[0]);
+		case 3:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0]);
+		case 4:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0]);
+		case 5:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]);
+		case 6:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]);
+		case 7:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]);
+		case 8:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]);
+		case 9:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]);
+		case 10:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]
+					.nexts[0]);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object nullsafeArrayInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return __nullsafe(n.nexts[0].values[0]);
+		case 2:
+			return __nullsafe(n.nexts[0].nexts[0].values[0]);
+		case 3:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].values[0]);
+		case 4:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].values[0]);
+		case 5:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0]);
+		case 6:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0]);
+		case 7:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0]);
+		case 8:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].values[0]);
+		case 9:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]
+					.values[0]);
+		case 10:
+			return __nullsafe(n.nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0].nexts[0]
+					.nexts[0].values[0]);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object ifChainField(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			if (n == null)
+				return null;
+			return n.next;
+		case 2:
+			if (n == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		case 3:
+			if (n == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		case 4:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		case 5:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null)
+				return null;
+			return n.next;
+		case 6:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		case 7:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		case 8:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		case 9:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null)
+				return null;
+			return n.next;
+		case 10:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.next;
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object ifChainFieldInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			if (n == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 2:
+			if (n == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 3:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 4:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null)
+				return null;
+			return n.value;
+		case 5:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 6:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 7:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 8:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null)
+				return null;
+			return n.value;
+		case 9:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		case 10:
+			if (n == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null || (n = n.next) == null
+					|| (n = n.next) == null || (n = n.next) == null || (n = n.next) == null)
+				return null;
+			return n.value;
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object ifChainGetter(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			if (n == null)
+				return null;
+			return n.getNext();
+		case 2:
+			if (n == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 3:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 4:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 5:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 6:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 7:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 8:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 9:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		case 10:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getNext();
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object ifChainGetterInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			if (n == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 2:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 3:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 4:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 5:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 6:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 7:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 8:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 9:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		case 10:
+			if (n == null || (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null || (n = n.getNext()) == null || (n = n.getNext()) == null
+					|| (n = n.getNext()) == null)
+				return null;
+			return n.getValue();
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object ifChainArray(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			if (n == null)
+				return null;
+			return n.nexts[0];
+		case 2:
+			if (n == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 3:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 4:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 5:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 6:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 7:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 8:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 9:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		case 10:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.nexts[0];
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object ifChainArrayInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			if (n == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 2:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 3:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 4:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 5:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 6:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 7:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 8:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 9:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		case 10:
+			if (n == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null || (n = n.nexts[0]) == null || (n = n.nexts[0]) == null
+					|| (n = n.nexts[0]) == null)
+				return null;
+			return n.values[0];
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object optionalField(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return Optional.ofNullable(n).map(NEXT_FIELD).orElse(null);
+		case 2:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 3:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 4:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 5:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).orElse(null);
+		case 6:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 7:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 8:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 9:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).orElse(null);
+		case 10:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.orElse(null);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object optionalFieldInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 2:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 3:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 4:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(VALUE_FIELD).orElse(null);
+		case 5:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 6:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 7:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 8:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(VALUE_FIELD).orElse(null);
+		case 9:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(VALUE_FIELD)
+					.orElse(null);
+		case 10:
+			return Optional.ofNullable(n).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD).map(NEXT_FIELD)
+					.map(VALUE_FIELD).orElse(null);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object optionalGetter(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return Optional.ofNullable(n).map(NEXT_GETTER).orElse(null);
+		case 2:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).orElse(null);
+		case 3:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).orElse(null);
+		case 4:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.orElse(null);
+		case 5:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).orElse(null);
+		case 6:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).orElse(null);
+		case 7:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).orElse(null);
+		case 8:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).orElse(null);
+		case 9:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).orElse(null);
+		case 10:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).orElse(null);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object optionalGetterInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		case 2:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		case 3:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(VALUE_GETTER)
+					.orElse(null);
+		case 4:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(VALUE_GETTER).orElse(null);
+		case 5:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		case 6:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		case 7:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		case 8:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		case 9:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(VALUE_GETTER).orElse(null);
+		case 10:
+			return Optional.ofNullable(n).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER).map(NEXT_GETTER)
+					.map(NEXT_GETTER).map(VALUE_GETTER).orElse(null);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object optionalArray(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).orElse(null);
+		case 2:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 3:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 4:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 5:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).orElse(null);
+		case 6:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 7:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 8:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 9:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).orElse(null);
+		case 10:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.orElse(null);
+		default:
+			return unsupported(depth);
+		}
+	}
+
+	static Object optionalArrayInt(Node n, int depth) {
+		switch (depth) {
+		case 1:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 2:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 3:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 4:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(VALUE_ARRAY).orElse(null);
+		case 5:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 6:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 7:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 8:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(VALUE_ARRAY).orElse(null);
+		case 9:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(VALUE_ARRAY)
+					.orElse(null);
+		case 10:
+			return Optional.ofNullable(n).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY).map(NEXT_ARRAY)
+					.map(VALUE_ARRAY).orElse(null);
+		default:
+			return unsupported(depth);
+		}
+	}
+}
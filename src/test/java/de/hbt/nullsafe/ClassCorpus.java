@@ -0,0 +1,118 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.objectweb.asm.*;
+
+/**
+ * Provides a corpus of real class files of the JDK and of all jars on the class path for benchmarks.
+ */
+class ClassCorpus {
+
+	private ClassCorpus() {
+	}
+
+	/**
+	 * Read at most <code>max</code> class files of the JDK and at most <code>max</code> class files of the jars on the
+	 * class path.
+	 * <p>
+	 * Class files whose version is not supported by ASM are skipped.
+	 */
+	static List<byte[]> jdkAndLibraryClasses(int max) throws IOException {
+		List<byte[]> classes = new ArrayList<byte[]>();
+		File rtJar = new File(System.getProperty("java.home"), "lib/rt.jar");
+		if (rtJar.isFile())
+			readJar(rtJar, max, classes);
+		else
+			readJrt(max, classes);
+		int jdkClasses = classes.size();
+		for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (path.endsWith(".jar"))
+				readJar(new File(path), jdkClasses + max, classes);
+		}
+		return classes;
+	}
+
+	private static void readJar(File jar, int max, List<byte[]> classes) throws IOException {
+		ZipFile zipFile = new ZipFile(jar);
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements() && classes.size() < max) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.getName().endsWith(".class"))
+					add(readFully(zipFile.getInputStream(entry)), classes);
+			}
+		} finally {
+			zipFile.close();
+		}
+	}
+
+	private static void readJrt(int max, List<byte[]> classes) throws IOException {
+		FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+		readDirectory(jrt.getPath("/modules/java.base"), max, classes);
+	}
+
+	private static void readDirectory(Path dir, int max, List<byte[]> classes) throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+		try {
+			for (Path path : stream) {
+				if (classes.size() >= max)
+					return;
+				if (Files.isDirectory(path))
+					readDirectory(path, max, classes);
+				else if (path.toString().endsWith(".class"))
+					add(Files.readAllBytes(path), classes);
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void add(byte[] classfile, List<byte[]> classes) {
+		try {
+			new ClassReader(classfile);
+			classes.add(classfile);
+		} catch (IllegalArgumentException e) {
+			/* Unsupported class file version */
+		}
+	}
+
+	/**
+	 * Return the given class file as a Java 7 class file with computed stack map frames, unless it already is one.
+	 * <p>
+	 * The agent only outlines calls and preserves frames of Java 7 class files, but the test classes are compiled for
+	 * Java 5 by default and for Java 6 by the <code>jdk9</code> profile, so tests of those features upgrade their
+	 * fixtures with this.
+	 */
+	static byte[] java7(byte[] classfile) {
+		ClassReader cr = new ClassReader(classfile);
+		if (cr.readByte(7) >= Opcodes.V1_7)
+			return classfile;
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cr.accept(new ClassVisitor(Opcodes.ASM7, cw) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName,
+					String[] interfaces) {
+				super.visit(Opcodes.V1_7, access, name, signature, superName, interfaces);
+			}
+		}, ClassReader.SKIP_FRAMES);
+		return cw.toByteArray();
+	}
+
+	static byte[] readFully(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] arr = new byte[8192];
+			int read;
+			while ((read = is.read(arr)) != -1)
+				baos.write(arr, 0, read);
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+}
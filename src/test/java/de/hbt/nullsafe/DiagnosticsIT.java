@@ -0,0 +1,130 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Checks that the diagnostics write the diffs of the transformed methods of the diagnosed classes, and drop them
+ * instead of blocking when the writer falls behind.
+ */
+public class DiagnosticsIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+	private static final String OTHER = Other.class.getName().replace('.', '/');
+
+	static class Sample {
+		static String name(Thread thread) {
+			return __nullsafe(thread.getThreadGroup().getName());
+		}
+	}
+
+	static class Other {
+		static String name(Thread thread) {
+			return __nullsafe(thread.getName());
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("nullsafe-diagnostics").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testDiffOfDiagnosedClass() throws Exception {
+		File file = new File(dir, "nullsafe.diff");
+		Agent agent = new Agent(
+				AgentOptions.parse("diagnostics=" + file + ",diagnose=" + Sample.class.getName() + "*"));
+		agent.getDiagnostics().start();
+		assertNotNull(agent.transform(null, OTHER, null, null, readClass(OTHER)));
+		assertNotNull(agent.transform(null, SAMPLE, null, null, readClass(SAMPLE)));
+		String diff = await(file, "IFNULL");
+		assertTrue(diff, diff.startsWith("--- " + Sample.class.getName() + ".name(Ljava/lang/Thread;)"));
+		assertTrue(diff, diff.contains("\n+    IFNULL "));
+		assertTrue(diff, diff.contains("\n     INVOKEVIRTUAL java/lang/Thread.getThreadGroup ()"));
+		assertFalse(diff, diff.contains(Other.class.getName()));
+		assertTrue(diff, diff.contains("\n-    INVOKESTATIC de/hbt/nullsafe/Nullsafe.__nullsafe "));
+		assertEquals(0L, agent.getStats().getDiagnosticsDropped());
+	}
+
+	@Test
+	public void testFullQueueDropsDiffs() {
+		AgentStats stats = new AgentStats();
+		Diagnostics diagnostics = new Diagnostics(new File(dir, "nullsafe.diff"),
+				AgentOptions.parse("").diagnosticsFilter(), stats, 1, Diagnostics.MAX_FILE_SIZE);
+		List<Diagnostics.MethodDiff> diffs = Arrays.asList(diff(), diff());
+		/* The writer is not started, so the queue stays full */
+		diagnostics.offer(diffs);
+		diagnostics.offer(diffs);
+		diagnostics.offer(diffs);
+		assertEquals(4L, stats.getDiagnosticsDropped());
+	}
+
+	@Test
+	public void testFileIsRolled() throws Exception {
+		File file = new File(dir, "nullsafe.diff");
+		Diagnostics diagnostics = new Diagnostics(file, AgentOptions.parse("").diagnosticsFilter(), new AgentStats(),
+				Diagnostics.QUEUE_CAPACITY, 1L);
+		diagnostics.start();
+		diagnostics.offer(Collections.singletonList(diff()));
+		diagnostics.offer(Collections.singletonList(diff()));
+		String rolled = await(new File(dir, "nullsafe.diff.1"), "+    NOP");
+		assertTrue(rolled, rolled.startsWith("--- com.acme.Foo.bar()V\n"));
+		assertTrue(await(file, "+    NOP").startsWith("--- com.acme.Foo.bar()V\n"));
+	}
+
+	private static Diagnostics.MethodDiff diff() {
+		return new Diagnostics.MethodDiff("com/acme/Foo", "bar()V", Arrays.asList("    RETURN"),
+				Arrays.asList("    NOP", "    RETURN"));
+	}
+
+	@Test
+	public void testDiff() {
+		StringBuilder sb = new StringBuilder();
+		Diagnostics.diff(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j"),
+				Arrays.asList("a", "b", "c", "d", "x", "e", "f", "g", "h", "j"), sb);
+		assertEquals("@@ -2 +2 @@\n b\n c\n d\n+x\n e\n f\n g\n h\n-i\n j\n", sb.toString());
+		sb.setLength(0);
+		Diagnostics.diff(Arrays.asList("a", "b"), Arrays.asList("a", "b"), sb);
+		assertEquals("", sb.toString());
+	}
+
+	/**
+	 * Wait until the background thread has written the given text to the file, and return its content.
+	 */
+	private static String await(File file, String text) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		for (;;) {
+			if (file.isFile()) {
+				String content = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+				if (content.contains(text))
+					return content;
+			}
+			if (System.currentTimeMillis() > deadline)
+				throw new AssertionError("No '" + text + "' written to " + file);
+			Thread.sleep(10L);
+		}
+	}
+
+	private static byte[] readClass(String className) throws IOException {
+		InputStream is = DiagnosticsIT.class.getClassLoader().getResourceAsStream(className + ".class");
+		try {
+			return ClassCorpus.readFully(is);
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+
+import org.junit.*;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Checks that field and array dereferences guarded by the exception table are short-circuited like explicitly checked
+ * ones, while {@link NullPointerException}s thrown by called methods still propagate, by transforming {@link Sample}
+ * with <code>implicitChecks</code> and running it in its own class loader.
+ */
+public class ImplicitNullChecksIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+
+	public static class Node {
+		public final Node next;
+		public final String name;
+		public final int[] values;
+
+		public Node(Node next, String name, int[] values) {
+			this.next = next;
+			this.name = name;
+			this.values = values;
+		}
+
+		public Node getNext() {
+			return next;
+		}
+
+		public String failingName() {
+			throw new NullPointerException("callee");
+		}
+	}
+
+	public static class Sample {
+		public static String fields(Node node) {
+			return __nullsafe(node.next.next.name);
+		}
+
+		public static int array(Node node) {
+			return __nullsafeInt(node.next.values[1], -1);
+		}
+
+		public static String getters(Node node) {
+			return __nullsafe(node.getNext().getNext().name);
+		}
+
+		public static String callee(Node node) {
+			return __nullsafe(node.next.failingName());
+		}
+
+		public static String fieldsOrDefault(Node node) {
+			return __nullsafe(node.next.name, "default");
+		}
+
+		public static String notOnEmptyStack(Node node) {
+			return "x" + __nullsafe(node.next.name);
+		}
+
+		public static String caught(Node node) {
+			try {
+				return __nullsafe(node.next.name);
+			} catch (NullPointerException e) {
+				return "caught";
+			}
+		}
+	}
+
+	private static byte[] transformed;
+	private static Class<?> sampleClass;
+
+	@BeforeClass
+	public static void transformSample() throws Exception {
+		InputStream is = ImplicitNullChecksIT.class.getClassLoader().getResourceAsStream(SAMPLE + ".class");
+		byte[] original;
+		try {
+			original = ClassCorpus.readFully(is);
+		} finally {
+			is.close();
+		}
+		transformed = new Agent(AgentOptions.parse("implicitChecks=" + Sample.class.getName() + "*")).transform(null,
+				SAMPLE, null, null, original);
+		assertNotNull(transformed);
+		sampleClass = new ClassLoader(ImplicitNullChecksIT.class.getClassLoader()) {
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (!name.equals(Sample.class.getName()))
+					return super.loadClass(name, resolve);
+				synchronized (this) {
+					Class<?> c = findLoadedClass(name);
+					if (c == null)
+						c = defineClass(name, transformed, 0, transformed.length);
+					return c;
+				}
+			}
+		}.loadClass(Sample.class.getName());
+	}
+
+	private static Object call(String method, Node node) throws Throwable {
+		Method m = sampleClass.getMethod(method, Node.class);
+		try {
+			return m.invoke(null, node);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Test
+	public void testFields() throws Throwable {
+		assertNull(call("fields", null));
+		assertNull(call("fields", new Node(null, "a", null)));
+		assertNull(call("fields", new Node(new Node(null, "b", null), "a", null)));
+		assertEquals("c", call("fields", new Node(new Node(new Node(null, "c", null), "b", null), "a", null)));
+	}
+
+	@Test
+	public void testArray() throws Throwable {
+		assertEquals(Integer.valueOf(-1), call("array", null));
+		assertEquals(Integer.valueOf(-1), call("array", new Node(null, "a", null)));
+		assertEquals(Integer.valueOf(-1), call("array", new Node(new Node(null, "b", null), "a", null)));
+		assertEquals(Integer.valueOf(2), call("array", new Node(new Node(null, "b", new int[] { 1, 2 }), "a", null)));
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void testArrayIndexOutOfBounds() throws Throwable {
+		call("array", new Node(new Node(null, "b", new int[0]), "a", null));
+	}
+
+	@Test
+	public void testGetters() throws Throwable {
+		assertNull(call("getters", null));
+		assertNull(call("getters", new Node(null, "a", null)));
+		assertEquals("c", call("getters", new Node(new Node(new Node(null, "c", null), "b", null), "a", null)));
+	}
+
+	@Test
+	public void testCalleeThrows() throws Throwable {
+		assertNull(call("callee", null));
+		try {
+			call("callee", new Node(new Node(null, "b", null), "a", null));
+			fail();
+		} catch (NullPointerException e) {
+			assertEquals("callee", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testFieldsOrDefault() throws Throwable {
+		assertEquals("default", call("fieldsOrDefault", null));
+		assertEquals("default", call("fieldsOrDefault", new Node(null, "a", null)));
+		assertEquals("default", call("fieldsOrDefault", new Node(new Node(null, null, null), "a", null)));
+		assertEquals("b", call("fieldsOrDefault", new Node(new Node(null, "b", null), "a", null)));
+	}
+
+	@Test
+	public void testNotOnEmptyStack() throws Throwable {
+		assertEquals("xnull", call("notOnEmptyStack", null));
+		assertEquals("xb", call("notOnEmptyStack", new Node(new Node(null, "b", null), "a", null)));
+	}
+
+	@Test
+	public void testHandlerOfMethod() throws Throwable {
+		assertNull(call("caught", null));
+		assertNull(call("caught", new Node(null, "a", null)));
+		assertEquals("b", call("caught", new Node(new Node(null, "b", null), "a", null)));
+	}
+
+	@Test
+	public void testExceptionTable() {
+		ClassNode cn = new ClassNode();
+		new ClassReader(transformed).accept(cn, 0);
+		for (MethodNode mn : cn.methods) {
+			int guarded = 0;
+			int explicit = 0;
+			for (TryCatchBlockNode tcb : mn.tryCatchBlocks) {
+				if (tcb.start.getNext().getOpcode() == Opcodes.GETFIELD
+						|| tcb.start.getNext().getOpcode() == Opcodes.IALOAD)
+					guarded++;
+			}
+			for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn.getOpcode() == Opcodes.IFNULL || insn.getOpcode() == Opcodes.IFNONNULL)
+					explicit++;
+			}
+			if (mn.name.equals("fields") || mn.name.equals("array")) {
+				assertEquals(mn.name, 3, guarded);
+				assertEquals(mn.name, 0, explicit);
+			} else if (mn.name.equals("getters")) {
+				assertEquals(1, guarded);
+				assertEquals(2, explicit);
+			} else if (mn.name.equals("notOnEmptyStack")) {
+				assertEquals(0, guarded);
+				assertEquals(2, explicit);
+			}
+		}
+	}
+}
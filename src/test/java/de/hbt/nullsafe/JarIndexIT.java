@@ -0,0 +1,201 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.util.zip.*;
+
+import org.junit.*;
+
+/**
+ * Checks that the classes of jars without <code>__nullsafe(...)</code> calls are rejected once the jar was scanned,
+ * and that changed jars are scanned again.
+ */
+public class JarIndexIT {
+	private static final String WITH_NULLSAFE = WithNullsafe.class.getName().replace('.', '/');
+	private static final String WITHOUT_NULLSAFE = WithoutNullsafe.class.getName().replace('.', '/');
+
+	static class WithNullsafe {
+		static String name(Thread thread) {
+			return __nullsafe(thread.getThreadGroup().getName());
+		}
+	}
+
+	static class WithoutNullsafe {
+		static String name(Thread thread) {
+			return thread.getThreadGroup().getName();
+		}
+	}
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("nullsafe-jar-index").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void testJarWithoutNullsafe() throws Exception {
+		File jar = writeJar("without.jar", WITHOUT_NULLSAFE);
+		AgentStats stats = new AgentStats();
+		JarIndex index = new JarIndex(stats);
+		ProtectionDomain domain = domain(jar.toURI().toURL());
+		assertFalse(index.withoutNullsafe(domain));
+		await(index, domain, true);
+		assertEquals(1L, stats.getJarsScanned());
+		assertEquals(1L, stats.getJarsWithoutNullsafe());
+	}
+
+	@Test
+	public void testJarWithNullsafe() throws Exception {
+		File jar = writeJar("with.jar", WITHOUT_NULLSAFE, WITH_NULLSAFE);
+		AgentStats stats = new AgentStats();
+		JarIndex index = new JarIndex(stats);
+		ProtectionDomain domain = domain(jar.toURI().toURL());
+		assertFalse(index.withoutNullsafe(domain));
+		awaitScans(stats, 1L);
+		assertFalse(index.withoutNullsafe(domain));
+		assertEquals(0L, stats.getJarsWithoutNullsafe());
+	}
+
+	@Test
+	public void testChangedJarIsScannedAgain() throws Exception {
+		File jar = writeJar("changed.jar", WITHOUT_NULLSAFE);
+		AgentStats stats = new AgentStats();
+		JarIndex index = new JarIndex(stats, 0L);
+		ProtectionDomain domain = domain(jar.toURI().toURL());
+		assertFalse(index.withoutNullsafe(domain));
+		await(index, domain, true);
+		writeJar("changed.jar", WITHOUT_NULLSAFE, WITH_NULLSAFE);
+		assertTrue(jar.setLastModified(jar.lastModified() - 10000L));
+		assertFalse(index.withoutNullsafe(domain));
+		awaitScans(stats, 2L);
+		assertFalse(index.withoutNullsafe(domain));
+		assertEquals(1L, stats.getJarsWithoutNullsafe());
+	}
+
+	@Test
+	public void testJarTransformedByTool() throws Exception {
+		File in = writeJar("in.jar", WITHOUT_NULLSAFE, WITH_NULLSAFE);
+		File out = new File(dir, "out.jar");
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(in, out);
+		AgentStats stats = new AgentStats();
+		JarIndex index = new JarIndex(stats);
+		ProtectionDomain domain = domain(out.toURI().toURL());
+		assertFalse(index.withoutNullsafe(domain));
+		await(index, domain, true);
+		assertEquals(1L, stats.getJarsWithoutNullsafe());
+	}
+
+	@Test
+	public void testScannedJarIsClosed() throws Exception {
+		File jar = writeJar("closed.jar", WITHOUT_NULLSAFE, WITH_NULLSAFE);
+		assertFalse(JarIndex.scan(jar));
+		ToolIT.assertNotOpen(jar);
+	}
+
+	@Test
+	public void testIndexOfOtherClassFiles() throws Exception {
+		File jar = new File(dir, "other.jar");
+		ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(jar));
+		try {
+			zipOut.putNextEntry(new ZipEntry(WITH_NULLSAFE + ".class"));
+			zipOut.write(readClass(WITH_NULLSAFE));
+			zipOut.closeEntry();
+			zipOut.putNextEntry(new ZipEntry(Tool.INDEX_NAME));
+			zipOut.write(("12345678 " + WITH_NULLSAFE + ".class\n").getBytes("UTF-8"));
+			zipOut.closeEntry();
+		} finally {
+			zipOut.close();
+		}
+		assertFalse(JarIndex.scan(jar));
+	}
+
+	@Test
+	public void testDirectoryIsNotIndexed() throws Exception {
+		AgentStats stats = new AgentStats();
+		JarIndex index = new JarIndex(stats);
+		ProtectionDomain domain = domain(dir.toURI().toURL());
+		assertFalse(index.withoutNullsafe(domain));
+		assertFalse(index.withoutNullsafe(domain));
+		assertFalse(index.withoutNullsafe(domain(null)));
+		assertFalse(index.withoutNullsafe(null));
+		assertEquals(0L, stats.getJarsScanned());
+	}
+
+	@Test
+	public void testAgentRejectsClassesOfJar() throws Exception {
+		File jar = writeJar("agent.jar", WITHOUT_NULLSAFE);
+		Agent agent = new Agent(new AgentOptions());
+		ProtectionDomain domain = domain(jar.toURI().toURL());
+		byte[] classfile = readClass(WITHOUT_NULLSAFE);
+		assertNull(agent.transform(null, WITHOUT_NULLSAFE, null, domain, classfile));
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (agent.getStats().getClassesRejectedByJarIndex() == 0L) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The classes of " + jar + " were not rejected");
+			Thread.sleep(10L);
+			assertNull(agent.transform(null, WITHOUT_NULLSAFE, null, domain, classfile));
+		}
+		/* Classes without a code source are still transformed */
+		assertNotNull(agent.transform(null, WITH_NULLSAFE, null, null, readClass(WITH_NULLSAFE)));
+	}
+
+	private static ProtectionDomain domain(URL location) {
+		return new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null);
+	}
+
+	private static void await(JarIndex index, ProtectionDomain domain, boolean expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (index.withoutNullsafe(domain) != expected) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The jar was not scanned");
+			Thread.sleep(10L);
+		}
+	}
+
+	private static void awaitScans(AgentStats stats, long scans) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (stats.getJarsScanned() < scans) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The jar was not scanned");
+			Thread.sleep(10L);
+		}
+	}
+
+	private File writeJar(String name, String... classNames) throws IOException {
+		File jar = new File(dir, name);
+		ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(jar));
+		try {
+			for (String className : classNames) {
+				zipOut.putNextEntry(new ZipEntry(className + ".class"));
+				zipOut.write(readClass(className));
+				zipOut.closeEntry();
+			}
+		} finally {
+			zipOut.close();
+		}
+		return jar;
+	}
+
+	private static byte[] readClass(String className) throws IOException {
+		InputStream is = JarIndexIT.class.getClassLoader().getResourceAsStream(className + ".class");
+		try {
+			return ClassCorpus.readFully(is);
+		} finally {
+			is.close();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.*;
+import java.lang.reflect.Proxy;
+import java.net.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+import org.junit.*;
+
+/**
+ * Runs in a JVM with the agent in lazy mode, see the <code>lazy</code> execution of the failsafe plugin.
+ */
+public class LazyIT {
+
+	static class Node {
+		Node next;
+		String name;
+
+		Node(Node next, String name) {
+			this.next = next;
+			this.name = name;
+		}
+	}
+
+	static class Deferred {
+		static String staticName(Node node) {
+			return __nullsafe(node.next.name);
+		}
+
+		String name(Node node, long l, double d) {
+			return __nullsafe(node.next.name, "default") + l + d;
+		}
+
+		int length(Node node) {
+			return __nullsafeInt(node.next.name.length(), -1);
+		}
+	}
+
+	static class Overriding extends Deferred {
+		@Override
+		int length(Node node) {
+			return super.length(node) * 10;
+		}
+	}
+
+	static class Concurrent {
+		static String name(Node node) {
+			return __nullsafe(node.next.name);
+		}
+	}
+
+	static class WithConstructor {
+		final String name;
+
+		WithConstructor(Node node) {
+			name = __nullsafe(node.next.name);
+		}
+	}
+
+	/**
+	 * Loads the classes of nullsafe and of the tests before asking its parent, like the class loader of a web
+	 * application with its own copy of the nullsafe jar.
+	 */
+	static class ChildFirstClassLoader extends URLClassLoader {
+		ChildFirstClassLoader(URL... urls) {
+			super(urls, LazyIT.class.getClassLoader());
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			Class<?> c = findLoadedClass(name);
+			if (c == null && name.startsWith("de.hbt.nullsafe.")) {
+				try {
+					c = findClass(name);
+				} catch (ClassNotFoundException e) {
+					/* Such as the hooks on the bootstrap class path */
+				}
+			}
+			if (c == null)
+				return super.loadClass(name, resolve);
+			if (resolve)
+				resolveClass(c);
+			return c;
+		}
+	}
+
+	private static long attribute(String attribute) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(AgentStats.OBJECT_NAME);
+		/* The agent registers its MBean from a background thread */
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (!server.isRegistered(name)) {
+			if (System.currentTimeMillis() > deadline)
+				fail("The MBean was not registered");
+			Thread.sleep(10L);
+		}
+		return ((Long) server.getAttribute(name, attribute)).longValue();
+	}
+
+	@Test
+	public void testDeferredClass() throws Exception {
+		long retransformed = attribute("ClassesRetransformed");
+		Node chain = new Node(new Node(null, "b"), "a");
+		assertEquals("b", Deferred.staticName(chain));
+		assertNull(Deferred.staticName(null));
+		assertTrue(attribute("ClassesDeferred") > 0L);
+		assertTrue(attribute("ClassesRetransformed") > retransformed);
+		assertEquals("b12.0", new Deferred().name(chain, 1L, 2.0));
+		assertEquals("default12.0", new Deferred().name(null, 1L, 2.0));
+		assertEquals(1, new Deferred().length(chain));
+		assertEquals(-1, new Deferred().length(chain.next));
+	}
+
+	@Test
+	public void testOverriddenMethod() {
+		Node chain = new Node(new Node(null, "b"), "a");
+		assertEquals(10, new Overriding().length(chain));
+		assertEquals(-10, new Overriding().length(null));
+	}
+
+	@Test
+	public void testConcurrentFirstCalls() throws Exception {
+		final Node chain = new Node(new Node(null, "b"), "a");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] futures = new Future<?>[32];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submit(new Callable<String>() {
+					public String call() {
+						return Concurrent.name(chain);
+					}
+				});
+			}
+			for (Future<?> future : futures)
+				assertEquals("b", future.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConstructorTransformedEagerly() {
+		assertEquals("b", new WithConstructor(new Node(new Node(null, "b"), "a")).name);
+		assertNull(new WithConstructor(null).name);
+	}
+
+	@Test
+	public void testChildFirstClassLoader() throws Exception {
+		ClassLoader loader = new ChildFirstClassLoader(
+				Nullsafe.class.getProtectionDomain().getCodeSource().getLocation(),
+				LazyIT.class.getProtectionDomain().getCodeSource().getLocation());
+		/* The trapped class resolves its own copy of nullsafe, whose lazy transformer is not running */
+		assertNotSame(Nullsafe.class, loader.loadClass(Nullsafe.class.getName()));
+		Class<?> node = loader.loadClass(Node.class.getName());
+		Constructor<?> constructor = node.getDeclaredConstructor(node, String.class);
+		constructor.setAccessible(true);
+		Object chain = constructor.newInstance(constructor.newInstance(null, "b"), "a");
+		Method staticName = loader.loadClass(Deferred.class.getName()).getDeclaredMethod("staticName", node);
+		staticName.setAccessible(true);
+		assertEquals("b", staticName.invoke(null, chain));
+		assertNull(staticName.invoke(null, (Object) null));
+	}
+
+	@Test
+	public void testUnmodifiableClassFailsLoudly() {
+		assertRetransformFails(false);
+	}
+
+	@Test
+	public void testFailedRetransformationFailsLoudly() {
+		assertRetransformFails(true);
+	}
+
+	/**
+	 * Check that a class which is not modifiable, or whose retransformation fails, is reported by its name instead of
+	 * running its unrewritten <code>__nullsafe(...)</code> calls.
+	 */
+	private static void assertRetransformFails(final boolean modifiable) {
+		Instrumentation instrumentation = (Instrumentation) Proxy.newProxyInstance(LazyIT.class.getClassLoader(),
+				new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("isModifiableClass"))
+							return Boolean.valueOf(modifiable);
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		AgentStats stats = new AgentStats();
+		LazyTransformer transformer = new LazyTransformer(instrumentation, stats);
+		Thread thread = new Thread(transformer);
+		thread.setDaemon(true);
+		thread.start();
+		String message = null;
+		try {
+			transformer.retransform(Deferred.class);
+		} catch (AssertionError e) {
+			message = e.getMessage();
+		} finally {
+			thread.interrupt();
+		}
+		assertNotNull(message);
+		assertTrue(message, message.contains("'" + Deferred.class.getName() + "'"));
+		assertEquals(modifiable ? 1L : 0L, stats.getRetransformBatches());
+		assertEquals(0L, stats.getClassesRetransformed());
+	}
+}
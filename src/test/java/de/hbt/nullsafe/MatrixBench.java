@@ -0,0 +1,161 @@
+package de.hbt.nullsafe;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+import de.hbt.nullsafe.Chains.Node;
+
+/**
+ * Measures the runtime overhead of <code>__nullsafe(...)</code> on non-null chains of the {@link Chains}, compared to
+ * the plain expression, a hand-written <code>if</code> chain and an <code>Optional.map</code> chain, for:
+ * <ul>
+ * <li><code>access</code>: field accesses, getters or array loads
+ * <li><code>result</code>: a reference, or an <code>int</code> which gets boxed
+ * <li><code>depth</code>: the number of dereferences
+ * <li><code>receivers</code>: the number of classes of the nodes, to make getter calls megamorphic
+ * </ul>
+ * Like {@link Bench}, this must run with <code>-javaagent:nullsafe-1.0.0-SNAPSHOT.jar</code>. Run with
+ * <code>-prof gc</code> to compare the allocation, which {@link AllocationIT} checks in the build.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 4, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MatrixBench {
+
+	@Param({ "field", "getter", "array" })
+	private String access;
+
+	@Param({ "ref", "int" })
+	private String result;
+
+	@Param({ "1", "2", "3", "4", "5", "6", "7", "8", "9", "10" })
+	private int depth;
+
+	@Param({ "1", "" + Chains.RECEIVER_CLASSES })
+	private int receivers;
+
+	private int shape;
+	private Node[] heads;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		shape = shape(access, result);
+		heads = new Node[receivers];
+		for (int i = 0; i < receivers; i++)
+			heads[i] = Chains.chain(depth, 0, i);
+	}
+
+	/**
+	 * Determine the index of the given kind of chain, which selects the method of {@link Chains} to call.
+	 */
+	static int shape(String access, String result) {
+		int shape;
+		if ("field".equals(access))
+			shape = 0;
+		else if ("getter".equals(access))
+			shape = 2;
+		else if ("array".equals(access))
+			shape = 4;
+		else
+			throw new IllegalArgumentException("Unknown access: " + access);
+		return "int".equals(result) ? shape + 1 : shape;
+	}
+
+	private Node head() {
+		int i = next;
+		next = i + 1 == heads.length ? 0 : i + 1;
+		return heads[i];
+	}
+
+	@Benchmark
+	public Object plain() {
+		Node n = head();
+		switch (shape) {
+		case 0:
+			return Chains.plainField(n, depth);
+		case 1:
+			return Chains.plainFieldInt(n, depth);
+		case 2:
+			return Chains.plainGetter(n, depth);
+		case 3:
+			return Chains.plainGetterInt(n, depth);
+		case 4:
+			return Chains.plainArray(n, depth);
+		default:
+			return Chains.plainArrayInt(n, depth);
+		}
+	}
+
+	@Benchmark
+	public Object nullsafe() {
+		Node n = head();
+		switch (shape) {
+		case 0:
+			return Chains.nullsafeField(n, depth);
+		case 1:
+			return Chains.nullsafeFieldInt(n, depth);
+		case 2:
+			return Chains.nullsafeGetter(n, depth);
+		case 3:
+			return Chains.nullsafeGetterInt(n, depth);
+		case 4:
+			return Chains.nullsafeArray(n, depth);
+		default:
+			return Chains.nullsafeArrayInt(n, depth);
+		}
+	}
+
+	@Benchmark
+	public Object ifChain() {
+		Node n = head();
+		switch (shape) {
+		case 0:
+			return Chains.ifChainField(n, depth);
+		case 1:
+			return Chains.ifChainFieldInt(n, depth);
+		case 2:
+			return Chains.ifChainGetter(n, depth);
+		case 3:
+			return Chains.ifChainGetterInt(n, depth);
+		case 4:
+			return Chains.ifChainArray(n, depth);
+		default:
+			return Chains.ifChainArrayInt(n, depth);
+		}
+	}
+
+	@Benchmark
+	public Object optional() {
+		Node n = head();
+		switch (shape) {
+		case 0:
+			return Chains.optionalField(n, depth);
+		case 1:
+			return Chains.optionalFieldInt(n, depth);
+		case 2:
+			return Chains.optionalGetter(n, depth);
+		case 3:
+			return Chains.optionalGetterInt(n, depth);
+		case 4:
+			return Chains.optionalArray(n, depth);
+		default:
+			return Chains.optionalArrayInt(n, depth);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(MatrixBench.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.forks(1)
+				.build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,185 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.annotation.*;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.*;
+
+import org.junit.*;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Checks that the agent does not insert null checks for values which are known to be not null, by counting the
+ * <code>IFNULL</code> instructions which the agent added to the methods of {@link Sample}.
+ */
+public class NullCheckEliminationIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+
+	@Retention(RetentionPolicy.CLASS)
+	@Target(ElementType.METHOD)
+	@interface NotNull {
+	}
+
+	@SuppressWarnings("unused")
+	static class Sample {
+		private String field = "field";
+
+		@NotNull
+		String nonNullString() {
+			return "x";
+		}
+
+		String nullableString() {
+			return null;
+		}
+
+		Object newObject() {
+			StringBuilder sb = new StringBuilder();
+			return __nullsafe(sb.toString());
+		}
+
+		Object constant() {
+			String s = "x";
+			return __nullsafe(s.trim());
+		}
+
+		Object newArray() {
+			int[] array = new int[1];
+			return __nullsafe(array.clone());
+		}
+
+		Object testedNonNull(String s) {
+			if (s != null)
+				return __nullsafe(s.trim());
+			return null;
+		}
+
+		Object testedNull(String s) {
+			if (s == null)
+				return null;
+			return __nullsafe(s.trim());
+		}
+
+		Object thisField() {
+			return __nullsafe(this.field);
+		}
+
+		Object nonNullMethod() {
+			return __nullsafe(nonNullString().trim());
+		}
+
+		Object nullableMethod() {
+			return __nullsafe(nullableString().trim());
+		}
+
+		Object untested(String s) {
+			return __nullsafe(s.trim());
+		}
+
+		Object joined(String s, boolean flag) {
+			if (flag)
+				s = "x";
+			return __nullsafe(s.trim());
+		}
+
+		Object reassignedAfterTest(String s, String other) {
+			if (s != null) {
+				s = other;
+				return __nullsafe(s.trim());
+			}
+			return null;
+		}
+
+		Object nullBranch(String s) {
+			if (s == null)
+				return __nullsafe(s.trim());
+			return null;
+		}
+	}
+
+	/* The number of IFNULL instructions added to each method of the Sample */
+	private static Map<String, Integer> nullChecks;
+
+	@BeforeClass
+	public static void transformSample() throws IOException, IllegalClassFormatException {
+		ClassLoader cl = NullCheckEliminationIT.class.getClassLoader();
+		byte[] original = ClassCorpus.readFully(cl.getResourceAsStream(SAMPLE + ".class"));
+		byte[] transformed = new Agent(false).transform(null, SAMPLE, null, null, original);
+		assertNotNull(transformed);
+		Map<String, Integer> before = countNullChecks(original);
+		nullChecks = countNullChecks(transformed);
+		for (Map.Entry<String, Integer> e : nullChecks.entrySet())
+			e.setValue(Integer.valueOf(e.getValue().intValue() - before.get(e.getKey()).intValue()));
+	}
+
+	private static Map<String, Integer> countNullChecks(byte[] classfile) {
+		ClassNode cn = new ClassNode();
+		new ClassReader(classfile).accept(cn, 0);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (MethodNode mn : cn.methods) {
+			int count = 0;
+			for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn.getOpcode() == Opcodes.IFNULL)
+					count++;
+			}
+			counts.put(mn.name, Integer.valueOf(count));
+		}
+		return counts;
+	}
+
+	private static void assertNullChecks(int expected, String method) {
+		assertEquals(method, Integer.valueOf(expected), nullChecks.get(method));
+	}
+
+	@Test
+	public void testNewAndConstantsAreNotChecked() {
+		assertNullChecks(0, "newObject");
+		assertNullChecks(0, "constant");
+		assertNullChecks(0, "newArray");
+	}
+
+	@Test
+	public void testTestedLocalsAreNotChecked() {
+		assertNullChecks(0, "testedNonNull");
+		assertNullChecks(0, "testedNull");
+	}
+
+	@Test
+	public void testThisIsNotChecked() {
+		assertNullChecks(0, "thisField");
+	}
+
+	@Test
+	public void testNonNullMethodIsNotChecked() {
+		assertNullChecks(0, "nonNullMethod");
+		assertNullChecks(1, "nullableMethod");
+	}
+
+	@Test
+	public void testMaybeNullValuesAreChecked() {
+		assertNullChecks(1, "untested");
+		assertNullChecks(1, "joined");
+		assertNullChecks(1, "reassignedAfterTest");
+		assertNullChecks(1, "nullBranch");
+	}
+
+	@Test
+	public void testTransformedSampleStillWorks() {
+		Sample sample = new Sample();
+		assertEquals("", sample.newObject());
+		assertEquals("x", sample.constant());
+		assertEquals("a", sample.testedNonNull(" a "));
+		assertNull(sample.testedNonNull(null));
+		assertEquals("a", sample.testedNull(" a "));
+		assertNull(sample.nullableMethod());
+		assertNull(sample.untested(null));
+		assertNull(sample.joined(null, false));
+		assertEquals("x", sample.joined(null, true));
+		assertNull(sample.reassignedAfterTest("a", null));
+		assertNull(sample.nullBranch(null));
+	}
+}
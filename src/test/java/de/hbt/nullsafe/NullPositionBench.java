@@ -0,0 +1,95 @@
+package de.hbt.nullsafe;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+import de.hbt.nullsafe.Chains.Node;
+
+/**
+ * Measures the null paths of the {@link Chains}, depending on which dereference produces <code>null</code>:
+ * <code>first</code>, <code>middle</code> or <code>last</code>. The plain expressions are not measured, because they
+ * would throw a {@link NullPointerException}.
+ * <p>
+ * Like {@link Bench}, this must run with <code>-javaagent:nullsafe-1.0.0-SNAPSHOT.jar</code>.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 4, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NullPositionBench {
+
+	@Param({ "field", "getter", "array" })
+	private String access;
+
+	@Param({ "1", "2", "3", "4", "5", "6", "7", "8", "9", "10" })
+	private int depth;
+
+	@Param({ "first", "middle", "last" })
+	private String nullAt;
+
+	private int shape;
+	private Node head;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		shape = MatrixBench.shape(access, "ref");
+		int position;
+		if ("first".equals(nullAt))
+			position = 1;
+		else if ("middle".equals(nullAt))
+			position = (depth + 1) / 2;
+		else if ("last".equals(nullAt))
+			position = depth;
+		else
+			throw new IllegalArgumentException("Unknown null position: " + nullAt);
+		head = Chains.chain(depth, position, 0);
+	}
+
+	@Benchmark
+	public Object nullsafe() {
+		switch (shape) {
+		case 0:
+			return Chains.nullsafeField(head, depth);
+		case 2:
+			return Chains.nullsafeGetter(head, depth);
+		default:
+			return Chains.nullsafeArray(head, depth);
+		}
+	}
+
+	@Benchmark
+	public Object ifChain() {
+		switch (shape) {
+		case 0:
+			return Chains.ifChainField(head, depth);
+		case 2:
+			return Chains.ifChainGetter(head, depth);
+		default:
+			return Chains.ifChainArray(head, depth);
+		}
+	}
+
+	@Benchmark
+	public Object optional() {
+		switch (shape) {
+		case 0:
+			return Chains.optionalField(head, depth);
+		case 2:
+			return Chains.optionalGetter(head, depth);
+		default:
+			return Chains.optionalArray(head, depth);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(NullPositionBench.class.getSimpleName())
+				.forks(1)
+				.build();
+		new Runner(opt).run();
+	}
+}
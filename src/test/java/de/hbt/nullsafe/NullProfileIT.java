@@ -0,0 +1,162 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Checks that the profile mode counts at which link each <code>__nullsafe(...)</code> expression was
+ * <code>null</code>, by transforming {@link Sample} in profile mode and running it in its own class loader. Also runs in
+ * the <code>lazy</code> execution of the failsafe plugin, whose agent puts its hooks on the bootstrap class path.
+ */
+public class NullProfileIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+
+	public static class Node {
+		public final Node next;
+		public final String name;
+		public final int value;
+
+		public Node(Node next, String name, int value) {
+			this.next = next;
+			this.name = name;
+			this.value = value;
+		}
+
+		public Node getNext() {
+			return next;
+		}
+	}
+
+	public static class Sample {
+		public static String name(Node node) {
+			return __nullsafe(node.getNext().name);
+		}
+
+		public static int value(Node node) {
+			return __nullsafeInt(node.getNext().value, -1);
+		}
+
+		public static String nameOrDefault(Node node) {
+			return __nullsafe(node.getNext().name, "default");
+		}
+	}
+
+	private static byte[] transformed;
+	private static Class<?> sampleClass;
+
+	@BeforeClass
+	public static void transformSample() throws Exception {
+		InputStream is = NullProfileIT.class.getClassLoader().getResourceAsStream(SAMPLE + ".class");
+		byte[] original;
+		try {
+			original = ClassCorpus.readFully(is);
+		} finally {
+			is.close();
+		}
+		transformed = new Agent(AgentOptions.parse("profile")).transform(null, SAMPLE, null, null, original);
+		assertNotNull(transformed);
+		sampleClass = new ClassLoader(NullProfileIT.class.getClassLoader()) {
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (!name.equals(Sample.class.getName()))
+					return super.loadClass(name, resolve);
+				synchronized (this) {
+					Class<?> c = findLoadedClass(name);
+					if (c == null)
+						c = defineClass(name, transformed, 0, transformed.length);
+					return c;
+				}
+			}
+		}.loadClass(Sample.class.getName());
+	}
+
+	private static Object call(String method, Node node) throws Exception {
+		Method m = sampleClass.getMethod(method, Node.class);
+		return m.invoke(null, node);
+	}
+
+	/**
+	 * Return the hits of the given site of {@link Sample}, or <code>0</code> if it was never hit.
+	 */
+	private static long hits(String methodPrefix, int position, String link) {
+		for (String site : NullProfile.snapshot()) {
+			String[] fields = site.split("\t");
+			if (fields[1].equals(Sample.class.getName()) && fields[2].startsWith(methodPrefix)
+					&& Integer.parseInt(fields[4]) == position && fields[5].equals(link))
+				return Long.parseLong(fields[0]);
+		}
+		return 0L;
+	}
+
+	@Test
+	public void testHitsByPosition() throws Exception {
+		/* Other tests may have hit the sites before */
+		long nameHits = hits("name(", 0, "node");
+		Node node = new Node(new Node(null, null, 2), "a", 1);
+		for (int i = 0; i < 3; i++)
+			assertNull(call("name", null));
+		for (int i = 0; i < 2; i++)
+			assertNull(call("name", new Node(null, "b", 1)));
+		assertNull(call("name", node));
+		assertEquals(Integer.valueOf(-1), call("value", null));
+		assertEquals(Integer.valueOf(2), call("value", node));
+		assertEquals("default", call("nameOrDefault", node));
+		assertEquals("default", call("nameOrDefault", new Node(null, "b", 1)));
+		assertEquals(nameHits + 3L, hits("name(", 0, "node"));
+		assertEquals(2L, hits("name(", 1, "getNext()"));
+		assertEquals(1L, hits("value(", 0, "node"));
+		assertEquals(0L, hits("value(", 1, "getNext()"));
+		/* The value of the whole expression yields the default value as well */
+		assertEquals(1L, hits("nameOrDefault(", 2, "name"));
+		assertEquals(1L, hits("nameOrDefault(", 1, "getNext()"));
+	}
+
+	/**
+	 * Check that the hits of a class whose class loader has its own copy of nullsafe are counted by the agent, which
+	 * needs the hooks on the bootstrap class path, so that this only runs in the <code>lazy</code> execution of the
+	 * failsafe plugin.
+	 */
+	@Test
+	public void testChildFirstClassLoader() throws Exception {
+		Assume.assumeTrue(BootHooks.NAME.equals(BootHooks.name()));
+		ClassLoader loader = new LazyIT.ChildFirstClassLoader(
+				Nullsafe.class.getProtectionDomain().getCodeSource().getLocation(),
+				NullProfileIT.class.getProtectionDomain().getCodeSource().getLocation()) {
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				if (name.equals(Sample.class.getName()))
+					return defineClass(name, transformed, 0, transformed.length);
+				return super.findClass(name);
+			}
+		};
+		assertNotSame(Nullsafe.class, loader.loadClass(Nullsafe.class.getName()));
+		Class<?> node = loader.loadClass(Node.class.getName());
+		Method name = loader.loadClass(Sample.class.getName()).getMethod("name", node);
+		long nameHits = hits("name(", 0, "node");
+		assertNull(name.invoke(null, (Object) null));
+		assertEquals(nameHits + 1L, hits("name(", 0, "node"));
+	}
+
+	@Test
+	public void testDump() throws Exception {
+		assertNull(call("name", null));
+		File file = File.createTempFile("nullsafe-profile", ".tsv");
+		try {
+			NullProfile.dump(file);
+			List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+			assertEquals("hits\tclass\tmethod\tline\tposition\tlink", lines.get(0));
+			assertEquals(Arrays.asList(NullProfile.snapshot()), lines.subList(1, lines.size()));
+			assertTrue(lines.size() > 1);
+		} finally {
+			file.delete();
+		}
+	}
+}
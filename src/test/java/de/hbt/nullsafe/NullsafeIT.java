@@ -34,6 +34,8 @@ public class NullsafeIT {
 	}
 
 	static class C {
+		int length = 1;
+
 		String getNullName() {
 			return null;
 		}
@@ -45,6 +47,28 @@ public class NullsafeIT {
 
 	private A nullA;
 	private A a = new A();
+	private double[] nullDoubles;
+	private int defaultValueCalls;
+
+	private int defaultValue(int value) {
+		defaultValueCalls++;
+		return value;
+	}
+
+	private String defaultValue(String value) {
+		defaultValueCalls++;
+		return value;
+	}
+
+	private Nullsafe.Fallback<String> fallback(final String value) {
+		defaultValueCalls++;
+		return new Nullsafe.Fallback<String>() {
+			public String get() {
+				defaultValueCalls++;
+				return value;
+			}
+		};
+	}
 
 	@Test
 	public void testNullObject() {
@@ -156,6 +180,12 @@ public class NullsafeIT {
 		assertNull(__nullsafe(((A) null).getB().getC().getName()));
 	}
 
+	@Test
+	public void testNullsafeFollowedByOtherArguments() {
+		assertEquals(null, __nullsafe(((A) null).getB().getC()), null);
+		assertEquals("C", __nullsafe(a.getB().getC().getName()), "C");
+	}
+
 	@Test
 	public void testNullStringListGet() {
 		assertNull(__nullsafe(((List<String>) null).get(0)));
@@ -244,4 +274,95 @@ public class NullsafeIT {
 		assertEquals((Double) 3.0, __nullsafe(new double[] { 3.0 }[0]));
 	}
 
+	@Test
+	public void testBoxedIntField() {
+		assertEquals((Integer) 1, __nullsafe(a.getB().getC().length));
+		assertNull(__nullsafe(a.getNullB().getC().length));
+	}
+
+	@Test
+	public void testNullsafeInt() {
+		assertEquals(-1, __nullsafeInt(((List<String>) null).size(), -1));
+		assertEquals(2, __nullsafeInt(Arrays.asList("a", "b").size(), -1));
+		assertEquals(-1, __nullsafeInt(nullA.getB().getC().length, -1));
+		assertEquals(1, __nullsafeInt(a.getB().getC().length, -1));
+	}
+
+	@Test
+	public void testNullsafePrimitives() {
+		assertEquals(7L, __nullsafeLong(nullA.getB().getC().getName().length(), 7L));
+		assertEquals(1L, __nullsafeLong(a.getB().getC().getName().length(), 7L));
+		assertEquals(1.5, __nullsafeDouble(nullDoubles[0], 1.5), 0.0);
+		assertEquals(3.0, __nullsafeDouble(new double[] { 3.0 }[0], 1.5), 0.0);
+		assertEquals(2.5f, __nullsafeFloat(nullA.getB().getC().length, 2.5f), 0.0f);
+		assertTrue(__nullsafeBoolean(nullA.getB().getC().getName().isEmpty(), true));
+		assertFalse(__nullsafeBoolean(a.getB().getC().getName().isEmpty(), true));
+		assertEquals('x', __nullsafeChar(nullA.getB().getC().getName().charAt(0), 'x'));
+		assertEquals('C', __nullsafeChar(a.getB().getC().getName().charAt(0), 'x'));
+		assertEquals((byte) 2, __nullsafeByte((byte) nullA.getB().getC().length, (byte) 2));
+		assertEquals((short) 1, __nullsafeShort((short) a.getB().getC().length, (short) 2));
+	}
+
+	@Test
+	public void testNullsafeIntDefaultOnlyEvaluatedIfNull() {
+		assertEquals(1, __nullsafeInt(a.getB().getC().length, defaultValue(-1)));
+		assertEquals(0, defaultValueCalls);
+		assertEquals(-1, __nullsafeInt(nullA.getB().getC().length, defaultValue(-1)));
+		assertEquals(1, defaultValueCalls);
+		assertEquals(3, __nullsafeInt(new int[] { 3 }[0], defaultValue(-1)));
+		assertEquals(1, defaultValueCalls);
+	}
+
+	@Test
+	public void testNullsafeIntWithConditionalDefault() {
+		boolean flag = defaultValueCalls == 0;
+		assertEquals(4, __nullsafeInt(nullA.getB().getC().length, flag ? 4 : 5));
+		assertEquals(1, __nullsafeInt(a.getB().getC().length, flag ? 4 : 5));
+	}
+
+	@Test
+	public void testNullsafeIntAsArgument() {
+		assertEquals(5, Math.max(__nullsafeInt(nullA.getB().getC().length, 0), 5));
+		assertEquals(3,
+				Math.max(__nullsafeInt(nullA.getB().getC().length, 3), __nullsafeInt(a.getB().getC().length, 0)));
+		int sum = 0;
+		for (A x : new A[] { a, nullA, a })
+			sum += __nullsafeInt(x.getB().getC().length, 10);
+		assertEquals(12, sum);
+	}
+
+	@Test
+	public void testNullsafeWithFallback() {
+		assertEquals("default", __nullsafe(nullA.getB().getC().getName(), "default"));
+		assertEquals("default", __nullsafe(a.getB().getC().getNullName(), "default"));
+		assertEquals("C", __nullsafe(a.getB().getC().getName(), "default"));
+		assertEquals("default", __nullsafe((String) null, "default"));
+		assertSame(a, __nullsafe(a, new A()));
+	}
+
+	@Test
+	public void testNullsafeFallbackOnlyEvaluatedIfNull() {
+		assertEquals("C", __nullsafe(a.getB().getC().getName(), defaultValue("default")));
+		assertEquals(0, defaultValueCalls);
+		assertEquals("default", __nullsafe(nullA.getB().getC().getName(), defaultValue("default")));
+		assertEquals(1, defaultValueCalls);
+	}
+
+	@Test
+	public void testNullsafeOrElseGet() {
+		assertEquals("C", __nullsafeOrElseGet(a.getB().getC().getName(), fallback("lazy")));
+		assertEquals(0, defaultValueCalls);
+		assertEquals("lazy", __nullsafeOrElseGet(nullA.getB().getC().getName(), fallback("lazy")));
+		assertEquals(2, defaultValueCalls);
+		assertEquals("lazy", __nullsafeOrElseGet(a.getB().getC().getNullName(), fallback("lazy")));
+		assertEquals(4, defaultValueCalls);
+	}
+
+	@Test
+	public void testNullsafeWithConditionalFallback() {
+		boolean flag = defaultValueCalls == 0;
+		assertEquals("yes", __nullsafe(nullA.getB().getC().getName(), flag ? "yes" : "no"));
+		assertEquals("C", __nullsafe(a.getB().getC().getName(), flag ? "yes" : "no"));
+	}
+
 }
@@ -0,0 +1,170 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.junit.*;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+/**
+ * Checks that <code>__nullsafe(...)</code> calls of methods which grow beyond the budget are moved into helper methods,
+ * by transforming {@link Sample} as a Java 7 class file with a tiny budget and running it in its own class loader.
+ */
+public class OutlineIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+
+	public static class Node {
+		public Node next;
+		public String name;
+		public int value = 1;
+
+		public Node(Node next, String name) {
+			this.next = next;
+			this.name = name;
+		}
+
+		public Node getNext() {
+			return next;
+		}
+	}
+
+	public static class Sample {
+		private Node head;
+
+		public Sample() {
+		}
+
+		public Sample(Node head) {
+			this.head = __nullsafe(head.next);
+		}
+
+		public String name(Node node) {
+			return __nullsafe(node.getNext().getNext().name);
+		}
+
+		public int value(Node node) {
+			return __nullsafeInt(node.getNext().next.value, -1);
+		}
+
+		public String nameOrDefault(Node node, String defaultName) {
+			return __nullsafe(node.getNext().name, defaultName);
+		}
+
+		public String headName() {
+			return __nullsafe(head.getNext().name);
+		}
+
+		public static double scaled(Node node, long offset, double factor) {
+			return __nullsafeDouble((node.next.value + offset) * factor, -1.0);
+		}
+
+		public String twoCalls(Node node) {
+			String name = __nullsafe(node.next.name);
+			int value = __nullsafeInt(node.getNext().getNext().value, 0);
+			return name + value;
+		}
+
+		public String conditional(Node node, boolean flag) {
+			return __nullsafe(node.getNext().name, flag ? "yes" : "no");
+		}
+	}
+
+	private static byte[] transformed;
+	private static Map<String, int[]> sizes = new HashMap<String, int[]>();
+	private static Class<?> sampleClass;
+
+	@BeforeClass
+	public static void transformSample() throws Exception {
+		byte[] original = ClassCorpus
+				.java7(ClassCorpus.readFully(OutlineIT.class.getClassLoader().getResourceAsStream(SAMPLE + ".class")));
+		Agent agent = new Agent(AgentOptions.parse("budget=1"));
+		agent.setSizeListener(new Agent.MethodSizeListener() {
+			public void methodTransformed(String className, String method, int sizeBefore, int sizeAfter) {
+				sizes.put(method, new int[] { sizeBefore, sizeAfter });
+			}
+		});
+		transformed = agent.transform(null, SAMPLE, null, null, original);
+		assertNotNull(transformed);
+		assertEquals(8, agent.getStats().getMethodsOutlined());
+		sampleClass = new ClassLoader(OutlineIT.class.getClassLoader()) {
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+				if (!name.equals(Sample.class.getName()))
+					return super.loadClass(name, resolve);
+				synchronized (this) {
+					Class<?> c = findLoadedClass(name);
+					if (c == null)
+						c = defineClass(name, transformed, 0, transformed.length);
+					return c;
+				}
+			}
+		}.loadClass(Sample.class.getName());
+	}
+
+	private static Object call(String method, Object... args) throws Exception {
+		for (Method m : sampleClass.getMethods()) {
+			if (m.getName().equals(method))
+				return m.invoke(Modifier.isStatic(m.getModifiers()) ? null : sampleClass.newInstance(), args);
+		}
+		throw new NoSuchMethodException(method);
+	}
+
+	@Test
+	public void testHelpersCreated() {
+		ClassNode cn = new ClassNode();
+		new ClassReader(transformed).accept(cn, 0);
+		int helpers = 0;
+		for (MethodNode mn : cn.methods) {
+			if (mn.name.startsWith("nullsafe$")) {
+				helpers++;
+				assertEquals(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, mn.access);
+				continue;
+			}
+			/* A conditional default cannot be moved and is rewritten in place */
+			if (mn.name.equals("conditional"))
+				continue;
+			for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.equals(Agent.Nullsafe_name))
+					fail(mn.name + " still calls " + ((MethodInsnNode) insn).name);
+			}
+		}
+		assertEquals(8, helpers);
+	}
+
+	@Test
+	public void testSizesReported() {
+		int[] size = sizes.get("name(L" + Node.class.getName().replace('.', '/') + ";)Ljava/lang/String;");
+		assertNotNull(size);
+		assertTrue(size[1] < size[0]);
+	}
+
+	@Test
+	public void testOutlinedCallsStillNullsafe() throws Exception {
+		Node chain = new Node(new Node(new Node(null, "c"), "b"), "a");
+		assertEquals("c", call("name", chain));
+		assertNull(call("name", chain.next));
+		assertNull(call("name", new Object[] { null }));
+		assertEquals(1, call("value", chain));
+		assertEquals(-1, call("value", chain.next));
+		assertEquals("b", call("nameOrDefault", chain, "default"));
+		assertEquals("default", call("nameOrDefault", null, "default"));
+		assertNull(call("headName"));
+		assertEquals(6.0, call("scaled", chain, 2L, 2.0));
+		assertEquals(-1.0, call("scaled", null, 2L, 2.0));
+		assertEquals("b1", call("twoCalls", chain));
+		assertEquals("null0", call("twoCalls", new Object[] { null }));
+		assertEquals("yes", call("conditional", null, true));
+		assertEquals("b", call("conditional", chain, false));
+	}
+
+	@Test
+	public void testOutlinedCallInConstructor() throws Exception {
+		Constructor<?> constructor = sampleClass.getConstructor(Node.class);
+		assertNotNull(constructor.newInstance(new Node(null, "a")));
+		assertNotNull(constructor.newInstance(new Object[] { null }));
+	}
+}
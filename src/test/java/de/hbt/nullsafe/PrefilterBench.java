@@ -0,0 +1,75 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Compares the cost of rejecting a class without any <code>__nullsafe(...)</code> calls via a full
+ * {@link ClassReader} scan of all methods against the {@link ConstantPoolScanner}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PrefilterBench {
+
+	@Param({ "5000" })
+	private int classesPerSource;
+
+	private byte[][] corpus;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		List<byte[]> classes = ClassCorpus.jdkAndLibraryClasses(classesPerSource);
+		corpus = classes.toArray(new byte[0][]);
+	}
+
+	private byte[] nextClass() {
+		byte[] classfile = corpus[next];
+		next = (next + 1) % corpus.length;
+		return classfile;
+	}
+
+	@Benchmark
+	public boolean classReaderScan() {
+		ClassReader cr = new ClassReader(nextClass());
+		final boolean[] found = new boolean[1];
+		cr.accept(new ClassVisitor(ASM7) {
+			public MethodVisitor visitMethod(int access, final String methodName, final String methodDescriptor,
+					String signature, String[] exceptions) {
+				return new MethodVisitor(ASM7) {
+					public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+							boolean isInterface) {
+						if (opcode == INVOKESTATIC && Agent.Nullsafe_name.equals(owner)
+								&& Agent.__nullsafe.equals(name))
+							found[0] = true;
+					}
+				};
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return found[0];
+	}
+
+	@Benchmark
+	public boolean constantPoolScan() {
+		return ConstantPoolScanner.referencesNullsafe(nextClass());
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(PrefilterBench.class.getSimpleName())
+				.forks(1)
+				.build();
+		new Runner(opt).run();
+	}
+}
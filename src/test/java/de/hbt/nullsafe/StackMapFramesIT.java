@@ -0,0 +1,78 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Checks that the existing stack map frames of the transformed test classes are preserved, and that the frames of a
+ * class are only computed if a jump to a new label disagrees with the state at that label.
+ */
+public class StackMapFramesIT {
+	private static final String FALLBACK = Fallback.class.getName().replace('.', '/');
+
+	static class Node {
+		Node next;
+		String name;
+	}
+
+	/**
+	 * Assigns a local within the expression, so that the jump before the assignment and the one after it disagree on
+	 * the locals at the null label.
+	 */
+	static class Fallback {
+		static String assigned(Node node) {
+			Node next;
+			return __nullsafe((next = node.next).next.name);
+		}
+	}
+
+	@Test
+	public void testTestClassesKeepTheirFrames() throws Exception {
+		Agent agent = new Agent(AgentOptions.parse("frames=preserve"));
+		File dir = new File(StackMapFramesIT.class.getResource("StackMapFramesIT.class").toURI()).getParentFile();
+		List<String> transformed = new ArrayList<String>();
+		for (File file : dir.listFiles()) {
+			String className = "de/hbt/nullsafe/" + file.getName().replaceFirst("\\.class$", "");
+			if (!file.getName().endsWith(".class") || className.equals(FALLBACK))
+				continue;
+			if (agent.transform(null, className, null, null, read(file)) != null)
+				transformed.add(className);
+		}
+		assertTrue(transformed.toString(), transformed.contains(NullsafeIT.class.getName().replace('.', '/')));
+		assertEquals(transformed.size(), agent.getStats().getClassesTransformed());
+		assertEquals(0L, agent.getStats().getClassesWithComputedFrames());
+	}
+
+	@Test
+	public void testDisagreeingJumpsComputeFrames() throws Exception {
+		Agent agent = new Agent(AgentOptions.parse("frames=preserve"));
+		InputStream is = StackMapFramesIT.class.getClassLoader().getResourceAsStream(FALLBACK + ".class");
+		byte[] classfile;
+		try {
+			classfile = ClassCorpus.java7(ClassCorpus.readFully(is));
+		} finally {
+			is.close();
+		}
+		assertNotNull(agent.transform(null, FALLBACK, null, null, classfile));
+		assertEquals(1L, agent.getStats().getClassesTransformed());
+		assertEquals(1L, agent.getStats().getClassesWithComputedFrames());
+		/* Computing all frames is not counted as a fallback */
+		Agent computing = new Agent(AgentOptions.parse("frames=compute"));
+		assertNotNull(computing.transform(null, FALLBACK, null, null, classfile));
+		assertEquals(0L, computing.getStats().getClassesWithComputedFrames());
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			return ClassCorpus.readFully(is);
+		} finally {
+			is.close();
+		}
+	}
+}
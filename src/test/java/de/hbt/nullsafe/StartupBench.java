@@ -0,0 +1,219 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.zip.*;
+
+import javax.management.*;
+
+import org.objectweb.asm.*;
+
+/**
+ * Measures the effect of the agent on the startup of an application, by launching forked JVMs which load all classes
+ * of a generated application:
+ * <ul>
+ * <li><code>plain</code>: the original classes without the agent, whose <code>__nullsafe(...)</code> calls are not
+ * rewritten
+ * <li><code>agent</code>: the original classes with <code>-javaagent</code>
+ * <li><code>tool</code>: the classes transformed by {@link Tool} beforehand, without the agent
+ * </ul>
+ * The application consists of <code>-classes n</code> classes with {@value #METHODS} static methods each, of which
+ * <code>-share percent</code> contain <code>__nullsafe(...)</code> calls in every other method. Its main class loads
+ * and initializes all of them in one go, like the first request of a server application. For each variant, the median
+ * of <code>-runs n</code> JVMs is reported:
+ * <ul>
+ * <li><code>total</code>: the wall-clock time from launching the JVM until it exited
+ * <li><code>uptime</code>: the uptime of the JVM when all classes were loaded
+ * <li><code>loading</code>: the time to load and initialize all classes of the application
+ * <li><code>agent</code>: the time spent in {@link Agent#transform}, as reported by its MBean (the agent is started
+ * with <code>jmx</code>), and its share of <code>uptime</code>
+ * </ul>
+ * The agent is the packaged jar given by the system property <code>nullsafe.jar</code>, by default
+ * <code>target/nullsafe-1.0.0-SNAPSHOT.jar</code>, so run <code>mvn package</code> first. Further agent options can
+ * be given with <code>-options</code>.
+ */
+public class StartupBench {
+
+	static final int METHODS = 10;
+
+	private static final String APP_PACKAGE = "startup";
+	private static final String[] VARIANTS = { "plain", "agent", "tool" };
+
+	/**
+	 * The main class of the forked JVMs, which loads the given number of generated classes and prints
+	 * <code>"uptime loading agent"</code> in nanoseconds. A second argument waits for the MBean of the agent.
+	 */
+	public static class App {
+		public static void main(String[] args) throws Exception {
+			long start = System.nanoTime();
+			int classes = Integer.parseInt(args[0]);
+			ClassLoader loader = App.class.getClassLoader();
+			for (int i = 0; i < classes; i++)
+				Class.forName(APP_PACKAGE + ".C" + i, true, loader);
+			long loading = System.nanoTime() - start;
+			long uptime = ManagementFactory.getRuntimeMXBean().getUptime() * 1000000L;
+			long agent = 0L;
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("de.hbt.nullsafe:type=Agent");
+			/* The agent registers its MBean from a background thread */
+			long deadline = System.nanoTime() + 5000000000L;
+			while (args.length > 1 && !server.isRegistered(name) && System.nanoTime() < deadline)
+				Thread.sleep(1L);
+			if (server.isRegistered(name))
+				agent = ((Long) server.getAttribute(name, "TransformNanos")).longValue();
+			System.out.println(uptime + " " + loading + " " + agent);
+		}
+	}
+
+	/**
+	 * Generate a class with {@value #METHODS} static methods, each calling <code>o.getClass().getName()</code>, every
+	 * other one in a <code>__nullsafe(...)</code> call if <code>sites</code> is set, and a static initializer calling
+	 * one of the others, so that initializing the class also resolves its references, even without the agent.
+	 */
+	static byte[] appClass(String name, boolean sites) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name, null, "java/lang/Object", null);
+		for (int m = 0; m < METHODS; m++) {
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "m" + m,
+					"(Ljava/lang/Object;)Ljava/lang/Object;", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;", false);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class", "getName", "()Ljava/lang/String;", false);
+			if (sites && m % 2 == 0)
+				mv.visitMethodInsn(INVOKESTATIC, Agent.Nullsafe_name, Agent.__nullsafe,
+						"(Ljava/lang/Object;)Ljava/lang/Object;", false);
+			mv.visitInsn(ARETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		MethodVisitor mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(name);
+		mv.visitMethodInsn(INVOKESTATIC, name, "m1", "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+		mv.visitInsn(POP);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Write a jar with the given number of generated classes, of which the given percentage contain
+	 * <code>__nullsafe(...)</code> calls, spread evenly over the jar.
+	 */
+	static void writeApp(File jar, int classes, int share) throws IOException {
+		ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(jar)));
+		try {
+			for (int i = 0; i < classes; i++) {
+				String name = APP_PACKAGE + "/C" + i;
+				zipOut.putNextEntry(new ZipEntry(name + ".class"));
+				zipOut.write(appClass(name, i * share / 100 != (i + 1) * share / 100));
+				zipOut.closeEntry();
+			}
+		} finally {
+			zipOut.close();
+		}
+	}
+
+	/**
+	 * Launch a JVM running {@link App} and return its wall-clock time followed by the nanoseconds printed by it.
+	 */
+	private static long[] launch(File agentJar, String options, File appJar, int classes) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+		if (options != null)
+			command.add("-javaagent:" + agentJar.getPath() + "=jmx" + (options.length() == 0 ? "" : "," + options));
+		command.add("-cp");
+		command.add(appJar.getPath() + File.pathSeparator + agentJar.getPath() + File.pathSeparator
+				+ new File(App.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath());
+		command.add(App.class.getName());
+		command.add(Integer.toString(classes));
+		if (options != null)
+			command.add("agent");
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		String line;
+		String last = null;
+		try {
+			while ((line = reader.readLine()) != null)
+				last = line;
+		} finally {
+			reader.close();
+		}
+		int exitCode = process.waitFor();
+		long total = System.nanoTime() - start;
+		if (exitCode != 0 || last == null)
+			throw new IOException("The application failed with exit code " + exitCode + ": " + last);
+		String[] fields = last.split(" ");
+		return new long[] { total, Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]) };
+	}
+
+	private static long median(long[][] runs, int field) {
+		long[] values = new long[runs.length];
+		for (int i = 0; i < runs.length; i++)
+			values[i] = runs[i][field];
+		Arrays.sort(values);
+		return values[values.length / 2];
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%8.1f", Double.valueOf(nanos / 1E6));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int classes = 5000;
+		int share = 10;
+		int runs = 5;
+		String options = "";
+		for (int arg = 0; arg + 1 < args.length; arg += 2) {
+			if ("-classes".equals(args[arg]))
+				classes = Integer.parseInt(args[arg + 1]);
+			else if ("-share".equals(args[arg]))
+				share = Integer.parseInt(args[arg + 1]);
+			else if ("-runs".equals(args[arg]))
+				runs = Integer.parseInt(args[arg + 1]);
+			else if ("-options".equals(args[arg]))
+				options = args[arg + 1];
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[arg]);
+		}
+		File agentJar = new File(System.getProperty("nullsafe.jar", "target/nullsafe-1.0.0-SNAPSHOT.jar"));
+		if (!agentJar.isFile())
+			throw new FileNotFoundException("No agent jar " + agentJar + ", run mvn package first");
+		File appJar = File.createTempFile("nullsafe-startup", ".jar");
+		File toolJar = File.createTempFile("nullsafe-startup-transformed", ".jar");
+		try {
+			writeApp(appJar, classes, share);
+			new Tool(new Agent(AgentOptions.parse(options)), Runtime.getRuntime().availableProcessors(),
+					Deflater.BEST_COMPRESSION).transform(appJar, toolJar);
+			System.out.println(classes + " classes, " + share + "% with __nullsafe(...) calls, median of " + runs
+					+ " JVMs (ms):");
+			System.out.println("variant     total   uptime  loading    agent  agent share");
+			for (String variant : VARIANTS) {
+				long[][] results = new long[runs][];
+				for (int run = 0; run < runs; run++) {
+					if ("plain".equals(variant))
+						results[run] = launch(agentJar, null, appJar, classes);
+					else if ("agent".equals(variant))
+						results[run] = launch(agentJar, options, appJar, classes);
+					else
+						results[run] = launch(agentJar, null, toolJar, classes);
+				}
+				long uptime = median(results, 1);
+				long agent = median(results, 3);
+				System.out.println(String.format("%-7s", variant) + millis(median(results, 0)) + " " + millis(uptime)
+						+ " " + millis(median(results, 2)) + " " + millis(agent) + " "
+						+ String.format("%11.1f%%", Double.valueOf(agent * 100.0 / uptime)));
+			}
+		} finally {
+			appJar.delete();
+			toolJar.delete();
+		}
+	}
+}
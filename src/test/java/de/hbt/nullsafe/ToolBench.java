@@ -0,0 +1,107 @@
+package de.hbt.nullsafe;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Measures the wall-clock time of transforming a jar with {@link Tool} depending on the number of threads.
+ * <p>
+ * The input jar is built from all jars on the class path (which are mostly classes without any
+ * <code>__nullsafe(...)</code> calls) plus a number of copies of the classes of {@link NullsafeIT}, which do need to
+ * be transformed.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ToolBench {
+
+	@Param({ "1", "2", "4", "8", "16" })
+	private int threads;
+
+	@Param({ "200" })
+	private int nullsafeCopies;
+
+	private File inFile;
+	private File outFile;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		inFile = File.createTempFile("nullsafe-bench-in", ".jar");
+		outFile = File.createTempFile("nullsafe-bench-out", ".jar");
+		ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(inFile));
+		try {
+			Set<String> names = new HashSet<String>();
+			for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+				if (path.endsWith(".jar"))
+					copyJar(new File(path), zipOut, names);
+			}
+			for (int i = 0; i < nullsafeCopies; i++) {
+				for (Class<?> c : new Class<?>[] { NullsafeIT.class, NullsafeIT.A.class, NullsafeIT.B.class,
+						NullsafeIT.C.class }) {
+					String name = c.getName().replace('.', '/') + ".class";
+					zipOut.putNextEntry(new ZipEntry("copy" + i + "/" + name));
+					copy(ToolBench.class.getClassLoader().getResourceAsStream(name), zipOut);
+					zipOut.closeEntry();
+				}
+			}
+		} finally {
+			zipOut.close();
+		}
+	}
+
+	private static void copyJar(File jar, ZipOutputStream zipOut, Set<String> names) throws IOException {
+		ZipFile zipIn = new ZipFile(jar);
+		try {
+			Enumeration<? extends ZipEntry> entries = zipIn.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.isDirectory() || !names.add(entry.getName()))
+					continue;
+				zipOut.putNextEntry(new ZipEntry(entry.getName()));
+				copy(zipIn.getInputStream(entry), zipOut);
+				zipOut.closeEntry();
+			}
+		} finally {
+			zipIn.close();
+		}
+	}
+
+	private static void copy(InputStream is, OutputStream os) throws IOException {
+		try {
+			byte[] arr = new byte[8192];
+			int read;
+			while ((read = is.read(arr)) != -1)
+				os.write(arr, 0, read);
+		} finally {
+			is.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		inFile.delete();
+		outFile.delete();
+	}
+
+	@Benchmark
+	public long transformJar() throws IOException {
+		new Tool(new Agent(false), threads, Deflater.BEST_COMPRESSION).transform(inFile, outFile);
+		return outFile.length();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(ToolBench.class.getSimpleName())
+				.forks(1)
+				.build();
+		new Runner(opt).run();
+	}
+}
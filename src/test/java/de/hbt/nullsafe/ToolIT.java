@@ -0,0 +1,327 @@
+package de.hbt.nullsafe;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.*;
+
+public class ToolIT {
+	private static final String NULLSAFE_IT = NullsafeIT.class.getName().replace('.', '/') + ".class";
+	private static final String NULLSAFE_IT_C = NullsafeIT.C.class.getName().replace('.', '/') + ".class";
+
+	private File inFile;
+	private File outFile;
+
+	@Before
+	public void createInput() throws IOException {
+		inFile = File.createTempFile("nullsafe-in", ".jar");
+		outFile = File.createTempFile("nullsafe-out", ".jar");
+		ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(inFile));
+		try {
+			zipOut.setComment("archive comment");
+			zipOut.putNextEntry(new ZipEntry("META-INF/"));
+			zipOut.closeEntry();
+			zipOut.setLevel(1);
+			putEntry(zipOut, "META-INF/resource.txt", "Hello, World! Hello, World!".getBytes("UTF-8"));
+			byte[] nested = "nested jar".getBytes("UTF-8");
+			ZipEntry storedEntry = new ZipEntry("lib/nested.jar");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(nested.length);
+			CRC32 crc = new CRC32();
+			crc.update(nested);
+			storedEntry.setCrc(crc.getValue());
+			zipOut.putNextEntry(storedEntry);
+			zipOut.write(nested);
+			zipOut.closeEntry();
+			putEntry(zipOut, NULLSAFE_IT, classBytes(NULLSAFE_IT));
+			putEntry(zipOut, NULLSAFE_IT_C, classBytes(NULLSAFE_IT_C));
+		} finally {
+			zipOut.close();
+		}
+	}
+
+	@After
+	public void deleteFiles() {
+		inFile.delete();
+		outFile.delete();
+	}
+
+	private static void putEntry(ZipOutputStream zipOut, String name, byte[] bytes) throws IOException {
+		zipOut.putNextEntry(new ZipEntry(name));
+		zipOut.write(bytes);
+		zipOut.closeEntry();
+	}
+
+	private static byte[] classBytes(String name) throws IOException {
+		return readFully(ToolIT.class.getClassLoader().getResourceAsStream(name));
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] arr = new byte[8192];
+			int read;
+			while ((read = is.read(arr)) != -1)
+				baos.write(arr, 0, read);
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	private static Map<String, ZipEntry> entries(ZipFile zipFile) {
+		Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+		for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();) {
+			ZipEntry entry = e.nextElement();
+			entries.put(entry.getName(), entry);
+		}
+		return entries;
+	}
+
+	private void transformAndVerify(int threads) throws Exception {
+		new Tool(new Agent(false), threads, Deflater.BEST_SPEED).transform(inFile, outFile);
+		ZipFile in = new ZipFile(inFile);
+		ZipFile out = new ZipFile(outFile);
+		try {
+			assertEquals("archive comment", out.getComment());
+			Map<String, ZipEntry> inEntries = entries(in);
+			Map<String, ZipEntry> outEntries = entries(out);
+			List<String> names = new ArrayList<String>(inEntries.keySet());
+			names.add(Tool.INDEX_NAME);
+			assertEquals(names, new ArrayList<String>(outEntries.keySet()));
+			for (String name : Arrays.asList("META-INF/", "META-INF/resource.txt", "lib/nested.jar", NULLSAFE_IT_C)) {
+				ZipEntry inEntry = inEntries.get(name);
+				ZipEntry outEntry = outEntries.get(name);
+				assertEquals(name, inEntry.getMethod(), outEntry.getMethod());
+				assertEquals(name, inEntry.getCrc(), outEntry.getCrc());
+				assertEquals(name, inEntry.getCompressedSize(), outEntry.getCompressedSize());
+				assertEquals(name, inEntry.getTime(), outEntry.getTime());
+				assertArrayEquals(name, readFully(in.getInputStream(inEntry)), readFully(out.getInputStream(outEntry)));
+			}
+			assertEquals(ZipEntry.STORED, outEntries.get("lib/nested.jar").getMethod());
+			byte[] transformed = readFully(out.getInputStream(outEntries.get(NULLSAFE_IT)));
+			assertFalse(Arrays.equals(classBytes(NULLSAFE_IT), transformed));
+			assertNull(new Agent(false).transform(null, NULLSAFE_IT.substring(0, NULLSAFE_IT.length() - 6), null,
+					null, transformed));
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	@Test
+	public void testTransformSequentially() throws Exception {
+		transformAndVerify(1);
+	}
+
+	@Test
+	public void testTransformConcurrently() throws Exception {
+		transformAndVerify(4);
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(inFile, outFile);
+		/* Transforming the output again replaces its index */
+		File againFile = File.createTempFile("nullsafe-again", ".jar");
+		try {
+			new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(outFile, againFile);
+			ZipFile out = new ZipFile(againFile);
+			try {
+				Map<String, ZipEntry> outEntries = entries(out);
+				String index = new String(readFully(out.getInputStream(outEntries.get(Tool.INDEX_NAME))), "UTF-8");
+				assertEquals("# Classes transformed by nullsafe\n"
+						+ Long.toHexString(outEntries.get(NULLSAFE_IT).getCrc()) + " " + NULLSAFE_IT + "\n"
+						+ Long.toHexString(outEntries.get(NULLSAFE_IT_C).getCrc()) + " " + NULLSAFE_IT_C + "\n", index);
+				assertEquals(1, Collections.frequency(new ArrayList<String>(outEntries.keySet()), Tool.INDEX_NAME));
+			} finally {
+				out.close();
+			}
+		} finally {
+			againFile.delete();
+		}
+		assertTrue(JarIndex.scan(outFile));
+		assertFalse(JarIndex.scan(inFile));
+	}
+
+	@Test
+	public void testIndexOmitsFilteredClasses() throws Exception {
+		String filtered = "org/apache/Filtered.class";
+		ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(inFile));
+		try {
+			putEntry(zipOut, NULLSAFE_IT, classBytes(NULLSAFE_IT));
+			putEntry(zipOut, filtered, classBytes(NULLSAFE_IT));
+		} finally {
+			zipOut.close();
+		}
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(inFile, outFile);
+		ZipFile out = new ZipFile(outFile);
+		try {
+			Map<String, ZipEntry> outEntries = entries(out);
+			String index = new String(readFully(out.getInputStream(outEntries.get(Tool.INDEX_NAME))), "UTF-8");
+			assertEquals("# Classes transformed by nullsafe\n"
+					+ Long.toHexString(outEntries.get(NULLSAFE_IT).getCrc()) + " " + NULLSAFE_IT + "\n", index);
+			CRC32 crc = new CRC32();
+			crc.update(classBytes(NULLSAFE_IT));
+			assertEquals(crc.getValue(), outEntries.get(filtered).getCrc());
+		} finally {
+			out.close();
+		}
+		/* An agent including org.apache must still scan the class, which was not rewritten */
+		assertFalse(JarIndex.scan(outFile));
+	}
+
+	@Test
+	public void testZip64() throws Exception {
+		int resources = 70000;
+		ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(inFile)));
+		try {
+			zipOut.setLevel(Deflater.NO_COMPRESSION);
+			for (int i = 0; i < resources; i++)
+				putEntry(zipOut, "r/" + i, new byte[0]);
+			putEntry(zipOut, NULLSAFE_IT, classBytes(NULLSAFE_IT));
+		} finally {
+			zipOut.close();
+		}
+		/* More than 65535 entries need a ZIP64 end of central directory record */
+		assertTrue(hasZip64EndLocator(inFile));
+		new Tool(new Agent(false), 2, Deflater.BEST_SPEED).transform(inFile, outFile);
+		assertTrue(hasZip64EndLocator(outFile));
+		ZipFile out = new ZipFile(outFile);
+		try {
+			Map<String, ZipEntry> outEntries = entries(out);
+			assertEquals(resources + 2, outEntries.size());
+			assertEquals(0, readFully(out.getInputStream(outEntries.get("r/" + (resources - 1)))).length);
+			byte[] transformed = readFully(out.getInputStream(outEntries.get(NULLSAFE_IT)));
+			assertFalse(Arrays.equals(classBytes(NULLSAFE_IT), transformed));
+		} finally {
+			out.close();
+		}
+		assertTrue(JarIndex.scan(outFile));
+	}
+
+	@Test
+	public void testZip64ExtendedInformation() throws Exception {
+		byte[] data = "Hello, World!".getBytes("UTF-8");
+		byte[] name = "hello.txt".getBytes("UTF-8");
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		/* A stored entry whose sizes and offset are only given in the ZIP64 extended information */
+		ByteBuffer b = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0).putInt(0);
+		b.putInt((int) crc.getValue()).putInt(-1).putInt(-1).putShort((short) name.length).putShort((short) 20);
+		b.put(name).putShort((short) 1).putShort((short) 16).putLong(data.length).putLong(data.length);
+		b.put(data);
+		int centralDirectoryOffset = b.position();
+		b.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0).putShort((short) 0);
+		b.putInt(0).putInt((int) crc.getValue()).putInt(-1).putInt(-1).putShort((short) name.length);
+		b.putShort((short) 28).putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt(-1);
+		b.put(name).putShort((short) 1).putShort((short) 24).putLong(data.length).putLong(data.length).putLong(0L);
+		int centralDirectorySize = b.position() - centralDirectoryOffset;
+		b.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1);
+		b.putInt(centralDirectorySize).putInt(centralDirectoryOffset).putShort((short) 0);
+		OutputStream os = new FileOutputStream(inFile);
+		try {
+			os.write(b.array(), 0, b.position());
+		} finally {
+			os.close();
+		}
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(inFile, outFile);
+		ZipFile out = new ZipFile(outFile);
+		try {
+			ZipEntry entry = out.getEntry("hello.txt");
+			assertEquals(data.length, entry.getSize());
+			assertArrayEquals(data, readFully(out.getInputStream(entry)));
+			/* The extended information is not needed anymore */
+			assertNull(entry.getExtra());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static boolean hasZip64EndLocator(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			/* The locator precedes the end of central directory record without a comment */
+			raf.seek(raf.length() - 22 - 20);
+			return Integer.reverseBytes(raf.readInt()) == 0x07064b50;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(inFile, outFile);
+		byte[] expected = readFully(new FileInputStream(outFile));
+		File dir = Files.createTempDirectory("nullsafe-batch").toFile();
+		try {
+			File secondIn = new File(dir, "second.jar");
+			Files.copy(inFile.toPath(), secondIn.toPath());
+			File batchFile = new File(dir, "batch.txt");
+			Writer writer = new OutputStreamWriter(new FileOutputStream(batchFile), "UTF-8");
+			try {
+				writer.write("# in out\n\n" + inFile + " " + new File(dir, "first-out.jar") + "\n");
+				writer.write("  " + dir + "\t" + new File(dir, "out") + "\n");
+			} finally {
+				writer.close();
+			}
+			List<File> inFiles = new ArrayList<File>();
+			List<File> outFiles = new ArrayList<File>();
+			Tool.readBatch(batchFile, inFiles, outFiles);
+			assertEquals(Arrays.asList(inFile, secondIn), inFiles);
+			assertEquals(Arrays.asList(new File(dir, "first-out.jar"), new File(dir, "out/second.jar")), outFiles);
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			Agent agent = new Agent(false);
+			PrintStream out = new PrintStream(report, true, "UTF-8");
+			new Tool(agent, 4, Deflater.BEST_SPEED).transform(inFiles, outFiles, out);
+			for (File file : outFiles)
+				assertArrayEquals(expected, readFully(new FileInputStream(file)));
+			String[] lines = report.toString("UTF-8").split("\n");
+			assertEquals(2, lines.length);
+			assertTrue(lines[1],
+					lines[1].startsWith(secondIn + " -> " + outFiles.get(1) + ": transformed 1 of 2 classes in "));
+			assertEquals(2L, agent.getStats().getClassesTransformed());
+		} finally {
+			new File(dir, "out/second.jar").delete();
+			new File(dir, "out").delete();
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testInputJarIsClosed() throws Exception {
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(inFile, outFile);
+		new Tool(new Agent(false), 4, Deflater.BEST_SPEED).transform(inFile, outFile);
+		assertNotOpen(inFile);
+	}
+
+	/**
+	 * Assert that the given file is neither open nor mapped by this JVM, as far as <code>/proc/self</code> tells.
+	 */
+	static void assertNotOpen(File file) throws IOException {
+		File maps = new File("/proc/self/maps");
+		Assume.assumeTrue(maps.isFile());
+		String path = file.getCanonicalPath();
+		assertFalse(path + " is still mapped", new String(readFully(new FileInputStream(maps)), "UTF-8").contains(path));
+		for (File fd : new File("/proc/self/fd").listFiles()) {
+			File target = fd.getCanonicalFile();
+			assertFalse(path + " is still open", target.getPath().equals(path));
+		}
+	}
+
+	@Test
+	public void testOutputIndependentOfThreads() throws IOException {
+		new Tool(new Agent(false), 1, Deflater.BEST_SPEED).transform(inFile, outFile);
+		byte[] sequential = readFully(new FileInputStream(outFile));
+		new Tool(new Agent(false), 4, Deflater.BEST_SPEED).transform(inFile, outFile);
+		assertArrayEquals(sequential, readFully(new FileInputStream(outFile)));
+	}
+}
@@ -0,0 +1,149 @@
+package de.hbt.nullsafe;
+
+import static de.hbt.nullsafe.Nullsafe.*;
+import static org.junit.Assert.*;
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Checks that agents sharing a cache directory, such as the agents of restarted JVMs, read the results of each other
+ * instead of transforming classes again.
+ */
+public class TransformCacheIT {
+	private static final String SAMPLE = Sample.class.getName().replace('.', '/');
+
+	static class Sample {
+		static String name(Thread thread) {
+			return __nullsafe(thread.getThreadGroup().getName());
+		}
+	}
+
+	private File cacheDir;
+	private byte[] sample;
+
+	@Before
+	public void setUp() throws IOException {
+		cacheDir = Files.createTempDirectory("nullsafe-cache").toFile();
+		InputStream is = TransformCacheIT.class.getClassLoader().getResourceAsStream(SAMPLE + ".class");
+		try {
+			sample = ClassCorpus.readFully(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		delete(cacheDir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files)
+				delete(f);
+		}
+		assertTrue(file + " could not be deleted", file.delete());
+	}
+
+	private Agent agent(String options) {
+		return new Agent(AgentOptions.parse("cache=" + cacheDir + (options.length() > 0 ? "," + options : "")));
+	}
+
+	@Test
+	public void testRestartedAgentReadsCache() throws Exception {
+		Agent first = agent("");
+		byte[] transformed = first.transform(null, SAMPLE, null, null, sample);
+		assertNotNull(transformed);
+		assertEquals(1L, first.getStats().getClassesTransformed());
+		assertEquals(0L, first.getStats().getClassesFromCache());
+
+		Agent second = agent("");
+		assertArrayEquals(transformed, second.transform(null, SAMPLE, null, null, sample));
+		assertEquals(0L, second.getStats().getClassesTransformed());
+		assertEquals(1L, second.getStats().getClassesFromCache());
+	}
+
+	@Test
+	public void testClassesWithoutCallsAreCached() throws Exception {
+		/* A class whose constant pool references __nullsafe(...), which it never calls */
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "de/hbt/nullsafe/Unused", null, "java/lang/Object", null);
+		cw.newMethod(Agent.Nullsafe_name, Agent.__nullsafe, "(Ljava/lang/Object;)Ljava/lang/Object;", false);
+		cw.visitEnd();
+		byte[] unused = cw.toByteArray();
+		Agent first = agent("");
+		assertNull(first.transform(null, "de/hbt/nullsafe/Unused", null, null, unused));
+		assertEquals(1L, first.getStats().getClassesWithoutNullsafe());
+
+		Agent second = agent("");
+		assertNull(second.transform(null, "de/hbt/nullsafe/Unused", null, null, unused));
+		assertEquals(0L, second.getStats().getClassesWithoutNullsafe());
+		assertEquals(1L, second.getStats().getClassesFromCache());
+	}
+
+	@Test
+	public void testOtherOptionsDoNotShareEntries() throws Exception {
+		agent("").transform(null, SAMPLE, null, null, sample);
+		Agent other = agent("budget=1");
+		other.transform(null, SAMPLE, null, null, sample);
+		assertEquals(1L, other.getStats().getClassesTransformed());
+		assertEquals(0L, other.getStats().getClassesFromCache());
+	}
+
+	@Test
+	public void testCorruptEntryIsReplaced() throws Exception {
+		byte[] transformed = agent("").transform(null, SAMPLE, null, null, sample);
+		List<File> entries = entries(cacheDir, new ArrayList<File>());
+		assertEquals(1, entries.size());
+		OutputStream out = new FileOutputStream(entries.get(0));
+		try {
+			out.write(new byte[] { 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+		Agent agent = agent("");
+		assertArrayEquals(transformed, agent.transform(null, SAMPLE, null, null, sample));
+		assertEquals(0L, agent.getStats().getClassesFromCache());
+		assertEquals(transformed.length, entries.get(0).length());
+	}
+
+	@Test
+	public void testConcurrentAgents() throws Exception {
+		final byte[] expected = new Agent(new AgentOptions()).transform(null, SAMPLE, null, null, sample);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 64; i++) {
+				results.add(executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						return agent("").transform(null, SAMPLE, null, null, sample);
+					}
+				}));
+			}
+			for (Future<byte[]> result : results)
+				assertArrayEquals(expected, result.get());
+		} finally {
+			executor.shutdown();
+		}
+		/* No temporary files are left behind */
+		assertEquals(1, entries(cacheDir, new ArrayList<File>()).size());
+	}
+
+	private static List<File> entries(File dir, List<File> entries) {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory())
+				entries(file, entries);
+			else
+				entries.add(file);
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,143 @@
+package de.hbt.nullsafe;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Measures the throughput of {@link Agent#transform} in classes per second, and in class file bytes per second via the
+ * <code>bytes</code> counter, for:
+ * <ul>
+ * <li><code>corpus</code>: real classes of the JDK and the class path, most of which do not contain any
+ * <code>__nullsafe(...)</code> calls, together with the test classes which do
+ * <li><code>sites1</code>, <code>sites10</code>, <code>sites100</code>: synthetic classes with as many methods each
+ * containing one <code>__nullsafe(...)</code> call
+ * <li><code>hugeMethod</code>: a synthetic class with a single method containing thousands of
+ * <code>__nullsafe(...)</code> calls
+ * <li><code>manyMethods</code>: a synthetic class with a thousand methods, only every hundredth of which contains a
+ * <code>__nullsafe(...)</code> call, which measures how cheaply all other methods are copied
+ * </ul>
+ * Run with <code>-prof gc</code> to also measure the allocation per transformed class.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 1000, timeUnit = TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransformerBench {
+
+	private static final String[] NULLSAFE_CLASSES = { "de/hbt/nullsafe/NullsafeIT", "de/hbt/nullsafe/Bench",
+			"de/hbt/nullsafe/AgentStatsIT$WithNullsafe" };
+
+	private static final int HUGE_METHOD_SITES = 2000;
+	private static final int MANY_METHODS = 1000;
+	private static final int MANY_METHODS_SITE_EVERY = 100;
+
+	@Param({ "corpus", "sites1", "sites10", "sites100", "hugeMethod", "manyMethods" })
+	private String classes;
+
+	private Agent agent;
+	private String[] names;
+	private byte[][] classfiles;
+	private int next;
+
+	/**
+	 * Counts the transformed class file bytes, which JMH reports as a rate next to the classes per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0L;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		/* Also transform the classes of the JDK and all libraries */
+		AgentOptions options = new AgentOptions();
+		options.excludes.clear();
+		agent = new Agent(options);
+		List<byte[]> corpus = new ArrayList<byte[]>();
+		if ("corpus".equals(classes)) {
+			corpus.addAll(ClassCorpus.jdkAndLibraryClasses(5000));
+			for (String name : NULLSAFE_CLASSES)
+				corpus.add(ClassCorpus.readFully(TransformerBench.class.getResourceAsStream("/" + name + ".class")));
+		} else if ("hugeMethod".equals(classes)) {
+			corpus.add(syntheticClass("de/hbt/nullsafe/HugeMethod", 1, HUGE_METHOD_SITES));
+		} else if ("manyMethods".equals(classes)) {
+			corpus.add(syntheticClass("de/hbt/nullsafe/ManyMethods", MANY_METHODS, 1, MANY_METHODS_SITE_EVERY));
+		} else {
+			int sites = Integer.parseInt(classes.substring("sites".length()));
+			corpus.add(syntheticClass("de/hbt/nullsafe/Sites" + sites, sites, 1));
+		}
+		classfiles = corpus.toArray(new byte[0][]);
+		names = new String[classfiles.length];
+		for (int i = 0; i < classfiles.length; i++)
+			names[i] = new ClassReader(classfiles[i]).getClassName();
+	}
+
+	/**
+	 * Generate a class with the given number of static methods, each containing the given number of
+	 * <code>__nullsafe(o.getClass().getName())</code> calls.
+	 */
+	static byte[] syntheticClass(String name, int methods, int sitesPerMethod) {
+		return syntheticClass(name, methods, sitesPerMethod, 1);
+	}
+
+	/**
+	 * Generate a class with the given number of static methods, of which only every <code>siteEvery</code>th contains
+	 * the given number of <code>__nullsafe(o.getClass().getName())</code> calls, and all others the same expressions
+	 * without <code>__nullsafe</code>.
+	 */
+	static byte[] syntheticClass(String name, int methods, int sitesPerMethod, int siteEvery) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name, null, "java/lang/Object", null);
+		for (int m = 0; m < methods; m++) {
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "m" + m, "(Ljava/lang/Object;)V", null,
+					null);
+			mv.visitCode();
+			for (int s = 0; s < sitesPerMethod; s++) {
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;", false);
+				mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Class", "getName", "()Ljava/lang/String;", false);
+				if (m % siteEvery == 0)
+					mv.visitMethodInsn(INVOKESTATIC, Agent.Nullsafe_name, Agent.__nullsafe,
+							"(Ljava/lang/Object;)Ljava/lang/Object;", false);
+				mv.visitInsn(POP);
+			}
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] transform(Bytes bytes) throws Exception {
+		int i = next;
+		next = (i + 1) % classfiles.length;
+		bytes.bytes += classfiles[i].length;
+		return agent.transform(null, names[i], null, null, classfiles[i]);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options opt = new OptionsBuilder()
+				.include(TransformerBench.class.getSimpleName())
+				.addProfiler("gc")
+				.forks(1)
+				.build();
+		new Runner(opt).run();
+	}
+}